@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of checking an IRI against a large index of known SPARQL endpoints
+ * (read from a generated endpoints file), for IRIs in the index and not in the
+ * index.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EndpointsIndexBenchmark {
+
+    @Param({"1000", "100000"})
+    public int endpoints; // The number of endpoints of the index
+
+    private File file; // The endpoints file
+    private EndpointsIndex index; // The index
+    private String[] iris; // The IRIs of the endpoints (as written in SERVICE operators)
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("endpoints", ".lst");
+        List<String> lines = new ArrayList<>();
+        iris = new String[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            iris[i] = "http://Endpoint" + i + ".example.org/sparql";
+            lines.add(iris[i]);
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        index = new EndpointsIndex(file.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        index.flush();
+        new File(index.getProfilesFilepath()).delete();
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean hit() {
+        return index.inIndex(iris[ThreadLocalRandom.current().nextInt(endpoints)]);
+    }
+
+    @Benchmark
+    public boolean miss() {
+        return index.inIndex("http://example.org/resource/" + ThreadLocalRandom.current().nextInt(endpoints));
+    }
+}
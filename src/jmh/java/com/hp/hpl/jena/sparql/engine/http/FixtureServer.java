@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetLang;
+
+/**
+ * A local stand-in for the Web, for the benchmarks: an HTTP server (on a free
+ * port of the loopback interface) that serves fixture documents and a SPARQL
+ * endpoint, with a configurable latency per request.
+ * <ul>
+ * <li>/doc/N.EXT: a document of a fixed number of triples about the resources
+ * of document N, in the syntax of the extension EXT (nt, ttl, n3, rdf, jsonld
+ * or html with RDFa). Requests with a query string are rejected, so the
+ * documents are not taken for SPARQL endpoints.</li>
+ * <li>/sparql: a SPARQL endpoint (GET and form POST) over the fixture data of
+ * the documents 0 to N-1, answering in the first result format of the Accept
+ * header that it supports.</li>
+ * </ul>
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class FixtureServer {
+
+    /**
+     * The namespace of the fixture data.
+     */
+    public static final String NS = "http://example.org/fixture/";
+    private final HttpServer server; // The HTTP server
+    private final ExecutorService executor; // The threads of the HTTP server
+    private final int triples; // The number of triples of each document
+    private final Model endpointData; // The data of the SPARQL endpoint
+    private final ConcurrentHashMap<String, byte[]> documents; // The serialized documents, by path
+    private volatile int latency; // The latency (in milliseconds) added to each request
+
+    /**
+     * Create and start a new server.
+     *
+     * @param triples The number of triples of each document.
+     * @param endpointDocuments The number of documents whose data are served
+     * by the SPARQL endpoint.
+     */
+    public FixtureServer(int triples, int endpointDocuments) throws IOException {
+        this.triples = triples;
+        this.documents = new ConcurrentHashMap<>();
+        this.endpointData = ModelFactory.createDefaultModel();
+        for (int i = 0; i < endpointDocuments; i++) {
+            endpointData.add(fixture(i, triples));
+        }
+        this.executor = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/doc/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveDocument(exchange);
+            }
+        });
+        server.createContext("/sparql", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveQuery(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Create the fixture data of a document: for each resource, a label, a
+     * type and a link to the next resource (three triples per resource).
+     *
+     * @param doc The number of the document.
+     * @param triples The (approximate) number of triples.
+     * @return The data.
+     */
+    public static Model fixture(int doc, int triples) {
+        Model model = ModelFactory.createDefaultModel();
+        model.setNsPrefix("ex", NS);
+        Property link = model.createProperty(NS + "link");
+        Resource type = model.createResource(NS + "Thing");
+        int resources = Math.max(1, triples / 3);
+        for (int i = 0; i < resources; i++) {
+            Resource resource = model.createResource(NS + "d" + doc + "/r" + i);
+            resource.addProperty(RDFS.label, "Resource " + i + " of document " + doc, "en");
+            resource.addProperty(RDF.type, type);
+            resource.addProperty(link, model.createResource(NS + "d" + doc + "/r" + ((i + 1) % resources)));
+        }
+        return model;
+    }
+
+    /**
+     * Return the IRI of a document.
+     *
+     * @param doc The number of the document.
+     * @param extension The extension of its syntax (nt, ttl, n3, rdf, jsonld
+     * or html).
+     * @return The IRI.
+     */
+    public String documentIri(int doc, String extension) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/doc/" + doc + "." + extension;
+    }
+
+    public String getEndpointIri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/sparql";
+    }
+
+    public void setLatency(int latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Stop the server.
+     *
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serveDocument(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        int dot = path.lastIndexOf('.');
+        if (exchange.getRequestURI().getRawQuery() != null || dot < 0) {
+            send(exchange, 400, null, new byte[0]);
+            return;
+        }
+        String extension = path.substring(dot + 1);
+        byte[] body = documents.get(path);
+        if (body == null) {
+            int doc;
+            try {
+                doc = Integer.parseInt(path.substring("/doc/".length(), dot));
+            } catch (NumberFormatException ex) {
+                send(exchange, 404, null, new byte[0]);
+                return;
+            }
+            body = serialize(fixture(doc, triples), extension);
+            documents.put(path, body);
+        }
+        delay();
+        send(exchange, 200, contentType(extension), body);
+    }
+
+    private static byte[] serialize(Model model, String extension) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (extension.equals("html")) {
+            StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html><head><title>Fixture</title></head><body>\n");
+            for (Resource resource : model.listSubjects().toList()) {
+                html.append("<div about=\"").append(resource.getURI()).append("\" typeof=\"").append(NS).append("Thing\">");
+                html.append("<span property=\"").append(RDFS.label.getURI()).append("\" lang=\"en\">")
+                        .append(resource.getProperty(RDFS.label).getString()).append("</span>");
+                html.append("<a rel=\"").append(NS).append("link\" href=\"")
+                        .append(resource.getPropertyResourceValue(model.createProperty(NS + "link")).getURI()).append("\">next</a>");
+                html.append("</div>\n");
+            }
+            html.append("</body></html>\n");
+            return html.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        RDFDataMgr.write(out, model, format(extension));
+        return out.toByteArray();
+    }
+
+    /**
+     * The output format of a syntax. N3 is written as Turtle (a subset of N3)
+     * and RDF/XML is written plain, since the abbreviated writer recurses
+     * along the chain of links of the fixture.
+     */
+    private static RDFFormat format(String extension) {
+        switch (extension) {
+            case "ttl":
+            case "n3":
+                return RDFFormat.TURTLE;
+            case "rdf":
+                return RDFFormat.RDFXML_PLAIN;
+            case "jsonld":
+                return RDFFormat.JSONLD;
+            default:
+                return RDFFormat.NTRIPLES;
+        }
+    }
+
+    private static String contentType(String extension) {
+        switch (extension) {
+            case "html":
+                return "text/html; charset=utf-8";
+            case "ttl":
+                return "text/turtle";
+            case "n3":
+                return "text/n3";
+            case "rdf":
+                return "application/rdf+xml";
+            case "jsonld":
+                return "application/ld+json";
+            default:
+                return "application/n-triples";
+        }
+    }
+
+    private void serveQuery(HttpExchange exchange) throws IOException {
+        String params = exchange.getRequestURI().getRawQuery();
+        if ("POST".equals(exchange.getRequestMethod())) {
+            params = new String(IO.readWholeFile(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        }
+        String queryString = null;
+        if (params != null) {
+            for (String param : params.split("&")) {
+                if (param.startsWith("query=")) {
+                    queryString = URLDecoder.decode(param.substring("query=".length()), "UTF-8");
+                }
+            }
+        }
+        if (queryString == null) {
+            send(exchange, 400, null, new byte[0]);
+            return;
+        }
+        delay();
+        Query query = QueryFactory.create(queryString);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String contentType = WebContent.contentTypeResultsXML;
+        try (QueryExecution qe = QueryExecutionFactory.create(query, endpointData)) {
+            if (query.isAskType()) {
+                ResultSetFormatter.outputAsXML(out, qe.execAsk());
+            } else {
+                contentType = resultsFormat(exchange.getRequestHeaders().getFirst("Accept"));
+                ResultSetMgr.write(out, qe.execSelect(), resultsLang(contentType));
+            }
+        }
+        send(exchange, 200, contentType, out.toByteArray());
+    }
+
+    /**
+     * Return the first result format of an Accept header that is supported.
+     */
+    private static String resultsFormat(String accept) {
+        String[] supported = {WebContent.contentTypeResultsThrift, WebContent.contentTypeResultsJSON,
+            WebContent.contentTypeTextTSV, WebContent.contentTypeResultsXML};
+        String format = WebContent.contentTypeResultsXML;
+        int first = Integer.MAX_VALUE;
+        if (accept != null) {
+            for (String contentType : supported) {
+                int index = accept.indexOf(contentType);
+                if (index >= 0 && index < first) {
+                    first = index;
+                    format = contentType;
+                }
+            }
+        }
+        return format;
+    }
+
+    private static Lang resultsLang(String contentType) {
+        switch (contentType) {
+            case WebContent.contentTypeResultsThrift:
+                return ResultSetLang.SPARQLResultSetThrift;
+            case WebContent.contentTypeResultsJSON:
+                return ResultSetLang.SPARQLResultSetJSON;
+            case WebContent.contentTypeTextTSV:
+                return ResultSetLang.SPARQLResultSetTSV;
+            default:
+                return ResultSetLang.SPARQLResultSetXML;
+        }
+    }
+
+    private void delay() {
+        int ms = latency;
+        if (ms > 0) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the shared cache of resources under contention: lookups of
+ * cached IRIs (hits), of IRIs that are not cached (misses), and lookups mixed
+ * with additions, from several threads at the same time.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@Threads(8)
+public class ResourcesCacheBenchmark {
+
+    @Param({"1000", "100000"})
+    public int resources; // The number of cached resources
+
+    private ResourcesCache cache; // The cache
+    private String[] iris; // The IRIs of the cached resources
+    private Model model; // The model added by the mixed benchmark
+
+    @Setup
+    public void setup() {
+        cache = new ResourcesCache(Long.MAX_VALUE, Long.MAX_VALUE, ResourcesCache.DEFAULT_TTL);
+        model = FixtureServer.fixture(0, 3);
+        iris = new String[resources];
+        for (int i = 0; i < resources; i++) {
+            iris[i] = FixtureServer.NS + "doc/" + i;
+            cache.add(iris[i], FixtureServer.fixture(i, 3));
+        }
+    }
+
+    @Benchmark
+    public Model hit() {
+        return cache.getModel(iris[ThreadLocalRandom.current().nextInt(resources)]);
+    }
+
+    @Benchmark
+    public Model miss() {
+        return cache.getModel(FixtureServer.NS + "missing/" + ThreadLocalRandom.current().nextInt(resources));
+    }
+
+    @Benchmark
+    public Model mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String iri = iris[random.nextInt(resources)];
+        if (random.nextInt(10) == 0) { // 10% additions (replacing a cached resource)
+            cache.add(iri, model);
+            return model;
+        }
+        return cache.getModel(iri);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing cost of the result formats negotiated with SPARQL endpoints (see
+ * EndpointResults): the same result set is serialized in each format and read
+ * back, binding by binding. The JSON results are also read with the reader of
+ * Jena, which builds the whole JSON document in memory.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ResultsParsingBenchmark {
+
+    @Param({"application/sparql-results+xml", "application/sparql-results+json", "text/tab-separated-values", "application/sparql-results+thrift"})
+    public String contentType; // The result format
+
+    @Param({"10000"})
+    public int rows; // The number of results
+
+    private byte[] data; // The serialized results
+
+    @Setup
+    public void setup() {
+        List<Binding> bindings = new ArrayList<>();
+        Var s = Var.alloc("s");
+        Var p = Var.alloc("p");
+        Var o = Var.alloc("o");
+        for (int i = 0; i < rows; i++) {
+            BindingMap binding = BindingFactory.create();
+            binding.add(s, NodeFactory.createURI("http://example.org/resource/" + i));
+            binding.add(p, NodeFactory.createURI("http://www.w3.org/2000/01/rdf-schema#label"));
+            Node label = i % 2 == 0
+                    ? NodeFactory.createLiteral("Resource number " + i, "en", false)
+                    : NodeFactory.createLiteral(Integer.toString(i), null, com.hp.hpl.jena.datatypes.xsd.XSDDatatype.XSDinteger);
+            binding.add(o, label);
+            bindings.add(binding);
+        }
+        ResultSet rs = new ResultSetStream(Arrays.asList("s", "p", "o"), null, bindings.iterator());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultSetMgr.write(out, rs, lang(contentType));
+        data = out.toByteArray();
+    }
+
+    private static Lang lang(String contentType) {
+        switch (contentType) {
+            case WebContent.contentTypeResultsJSON:
+                return ResultSetLang.SPARQLResultSetJSON;
+            case WebContent.contentTypeTextTSV:
+                return ResultSetLang.SPARQLResultSetTSV;
+            case WebContent.contentTypeResultsThrift:
+                return ResultSetLang.SPARQLResultSetThrift;
+            default:
+                return ResultSetLang.SPARQLResultSetXML;
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) {
+        consume(EndpointResults.read(new ByteArrayInputStream(data), contentType), bh);
+    }
+
+    @Benchmark
+    public void parseJenaJSON(Blackhole bh) {
+        if (!WebContent.contentTypeResultsJSON.equals(contentType)) {
+            return;
+        }
+        consume(ResultSetFactory.fromJSON(new ByteArrayInputStream(data)), bh);
+    }
+
+    private static void consume(ResultSet rs, Blackhole bh) {
+        while (rs.hasNext()) {
+            bh.consume(rs.nextBinding());
+        }
+    }
+}
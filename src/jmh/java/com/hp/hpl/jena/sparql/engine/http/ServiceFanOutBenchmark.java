@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.util.Symbol;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of queries whose SERVICE operators fan out to many sources
+ * of the local fixture server, with a simulated network latency:
+ * <ul>
+ * <li>documents: a SERVICE operator evaluated for many Web resources (bound by
+ * VALUES), read one after the other ("sequential") or prefetched in parallel
+ * ("concurrent", see Service.servicePrefetch). The cache of resources is
+ * cleared before each query.</li>
+ * <li>endpoint: three independent SERVICE operators to a SPARQL endpoint,
+ * evaluated one after the other ("sequential") or at the same time
+ * ("concurrent", see Service.serviceParallel).</li>
+ * </ul>
+ *
+ * The shared indexes of endpoints and non-endpoints are replaced by temporary
+ * ones, so the endpoints files of the working directory are not changed.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServiceFanOutBenchmark {
+
+    @Param({"sequential", "concurrent"})
+    public String mode; // The evaluation of the SERVICE operators
+
+    @Param({"0", "20"})
+    public int latency; // The latency (in milliseconds) of each request
+
+    @Param({"50"})
+    public int sources; // The number of Web resources of the documents query
+
+    private FixtureServer server; // The local fixture server
+    private Path directory; // The directory of the temporary indexes
+    private EndpointsIndex endpointIndex; // The shared index of endpoints (restored after the benchmark)
+    private NonEndpointsIndex nonEndpointIndex; // The shared index of non-endpoints (restored after the benchmark)
+    private String documentsQuery; // The query to the Web resources
+    private String endpointQuery; // The query to the SPARQL endpoint
+
+    @Setup
+    public void setup() throws IOException {
+        server = new FixtureServer(300, 1);
+        server.setLatency(latency);
+
+        directory = Files.createTempDirectory("sparql-ld-bench");
+        endpointIndex = QueryExecutionBase.endpointIndex;
+        nonEndpointIndex = QueryExecutionBase.nonEndpointIndex;
+        QueryExecutionBase.endpointIndex = new EndpointsIndex(new File(directory.toFile(), "endpoints.lst").getPath());
+        QueryExecutionBase.nonEndpointIndex = new NonEndpointsIndex(new File(directory.toFile(), "non-endpoints.lst").getPath(), NonEndpointsIndex.DEFAULT_TTL);
+        QueryExecutionBase.endpointIndex.add(server.getEndpointIri());
+
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < sources; i++) {
+            values.append('<').append(server.documentIri(i, "nt")).append("> ");
+        }
+        documentsQuery = "SELECT * WHERE { VALUES ?d { " + values + "} "
+                + "SERVICE ?d { ?s <http://www.w3.org/2000/01/rdf-schema#label> ?l } }";
+        String endpoint = server.getEndpointIri();
+        endpointQuery = "SELECT * WHERE { "
+                + "SERVICE <" + endpoint + "> { ?s a <" + FixtureServer.NS + "Thing> } "
+                + "SERVICE <" + endpoint + "> { ?s <http://www.w3.org/2000/01/rdf-schema#label> ?l } "
+                + "SERVICE <" + endpoint + "> { ?s <" + FixtureServer.NS + "link> ?t } }";
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        QueryExecutionBase.cache.clear();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        QueryExecutionBase.endpointIndex.flush();
+        QueryExecutionBase.endpointIndex = endpointIndex;
+        QueryExecutionBase.nonEndpointIndex = nonEndpointIndex;
+        for (File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public int documents() {
+        return run(documentsQuery, Service.servicePrefetch);
+    }
+
+    @Benchmark
+    public int endpoint() {
+        return run(endpointQuery, Service.serviceParallel);
+    }
+
+    private int run(String query, Symbol concurrent) {
+        QueryExecution qe = QueryExecutionFactory.create(QueryFactory.create(query), ModelFactory.createDefaultModel());
+        try {
+            if (mode.equals("concurrent")) {
+                qe.getContext().set(concurrent, true);
+            }
+            ResultSet rs = qe.execSelect();
+            int rows = 0;
+            while (rs.hasNext()) {
+                rs.nextBinding();
+                rows++;
+            }
+            return rows;
+        } finally {
+            qe.close();
+        }
+    }
+}
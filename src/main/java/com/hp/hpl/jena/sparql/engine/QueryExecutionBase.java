@@ -17,10 +17,13 @@
  */
 package com.hp.hpl.jena.sparql.engine;
 
+import java.io.File;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.jena.atlas.lib.AlarmClock;
@@ -40,8 +43,19 @@ import com.hp.hpl.jena.sparql.engine.binding.Binding;
 import com.hp.hpl.jena.sparql.engine.binding.BindingRoot;
 import com.hp.hpl.jena.sparql.engine.binding.BindingUtils;
 import com.hp.hpl.jena.sparql.engine.http.EndpointsIndex;
+import com.hp.hpl.jena.sparql.engine.http.FailureMemo;
+import com.hp.hpl.jena.sparql.engine.http.MappedIndexes;
+import com.hp.hpl.jena.sparql.engine.http.NonEndpointsIndex;
+import com.hp.hpl.jena.sparql.engine.http.OpExecutorSPARQLLD;
 import com.hp.hpl.jena.sparql.engine.http.ResourcesCache;
+import com.hp.hpl.jena.sparql.engine.http.Service;
+import com.hp.hpl.jena.sparql.engine.http.ServiceMetrics;
+import com.hp.hpl.jena.sparql.engine.http.ServiceProfile;
+import com.hp.hpl.jena.sparql.engine.http.ServiceResultsCache;
+import com.hp.hpl.jena.sparql.engine.http.SourceSelection;
 import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorWrapper;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.sparql.engine.main.QC;
 import com.hp.hpl.jena.sparql.graph.GraphFactory;
 import com.hp.hpl.jena.sparql.modify.TemplateLib;
 import com.hp.hpl.jena.sparql.syntax.ElementGroup;
@@ -54,8 +68,9 @@ import com.hp.hpl.jena.sparql.util.ModelUtils;
  * All the SPARQL query result forms made from a graph-level execution object.
  *
  * This class has been extended to support SPARQL-LD. SPARQL-LD uses: a) a
- * request-score cache of the already-retrieved resources/datasets, and b) an
- * index of known SPARQL endpoints.
+ * cache of the already-retrieved resources/datasets, shared across queries,
+ * b) an index of known SPARQL endpoints, c) an index of IRIs known not to be
+ * SPARQL endpoints, and d) a memo of the IRIs that failed recently.
  *
  * Author of this extension: Pavlos Fafalios (fafalios@ics.forth.gr,
  * fafalios.pavlos@gmail.com)
@@ -85,14 +100,44 @@ public class QueryExecutionBase implements QueryExecution {
     private long timeout2 = TIMEOUT_UNSET;
     private final AlarmClock alarmClock = AlarmClock.get();
     /**
-     * [SPARQL-LD] Request-scope cache of the already-retrieved
-     * resources/datasets.
+     * [SPARQL-LD] Cache of the already-retrieved resources/datasets, shared
+     * across queries.
      */
     public static ResourcesCache cache = new ResourcesCache();
     /**
      * [SPARQL-LD] Index of known SPARQL endpoints.
      */
     public static EndpointsIndex endpointIndex = new EndpointsIndex();
+    /**
+     * [SPARQL-LD] Index of IRIs known NOT to correspond to a SPARQL endpoint.
+     */
+    public static NonEndpointsIndex nonEndpointIndex = new NonEndpointsIndex();
+    /**
+     * [SPARQL-LD] Memo of the IRIs (and hosts) that failed recently.
+     */
+    public static FailureMemo failureMemo = new FailureMemo();
+    /**
+     * [SPARQL-LD] Summaries of the sources, used to skip the sources that
+     * cannot match a SERVICE sub-query.
+     */
+    public static SourceSelection sourceSelection = new SourceSelection();
+    /**
+     * [SPARQL-LD] Cache of the results of SERVICE sub-queries, shared across
+     * queries.
+     */
+    public static ServiceResultsCache resultsCache = new ServiceResultsCache();
+    /**
+     * [SPARQL-LD] Memory-mapped indexes of Web resources (see
+     * Service.serviceMappedIndex), stored in the temporary directory.
+     */
+    public static MappedIndexes mappedIndexes = new MappedIndexes(new File(System.getProperty("java.io.tmpdir"), "sparql-ld-indexes"));
+    /**
+     * [SPARQL-LD] Counters and histograms of the evaluation of SERVICE
+     * operators (disabled by default).
+     */
+    public static ServiceMetrics metrics = new ServiceMetrics();
+    // [SPARQL-LD] The operator executor factories that replaced the SPARQL-LD executor (each is logged once)
+    private static final Set<String> foreignFactories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public QueryExecutionBase(Query query,
             Dataset dataset,
@@ -111,12 +156,35 @@ public class QueryExecutionBase implements QueryExecution {
         if (query != null) {
             context.put(ARQConstants.sysCurrentQuery, query);
         }
+        // [SPARQL-LD] Use the SPARQL-LD operator executor, unless another one has been set (see checkOpExecutor).
+        if (QC.getFactory(context) == null) {
+            QC.setFactory(context, OpExecutorSPARQLLD.factory);
+        }
         // NB: Setting timeouts via the context after creating a QueryExecutionBase 
         // will not work. But we can't move it until the point the execution starts because of
         // get and set timeout operations on this object.   
         setAnyTimeouts();
     }
 
+    /**
+     * [SPARQL-LD] Warn if the context enables strategies of the SPARQL-LD
+     * operator executor, but another operator executor (e.g. of TDB) is
+     * registered and will be used instead.
+     */
+    private void checkOpExecutor() {
+        OpExecutorFactory factory = QC.getFactory(context);
+        if (factory == null || factory == OpExecutorSPARQLLD.factory || !OpExecutorSPARQLLD.isRequired(context)) {
+            return;
+        }
+        String name = factory.getClass().getName();
+        if (foreignFactories.add(name)) {
+            Log.warn(this, "[SPARQL-LD] Another operator executor (" + name + ") is registered: servicePrefetch, serviceBindJoin "
+                    + "and serviceParallel are not used. Set OpExecutorSPARQLLD.factory in the context (QC.setFactory) to use them.");
+        } else {
+            ServiceMetrics.trace("Another operator executor (%s) is registered. The SPARQL-LD strategies are not used.", name);
+        }
+    }
+
     private void setAnyTimeouts() {
         if (context.isDefined(ARQ.queryTimeout)) {
             Object obj = context.get(ARQ.queryTimeout);
@@ -150,6 +218,10 @@ public class QueryExecutionBase implements QueryExecution {
         if (queryIterator != null) {
             queryIterator.close();
         }
+        ServiceProfile profile = getServiceProfile();
+        if (profile != null) {
+            profile.getRoot().stop();
+        }
         if (plan != null) {
             plan.close();
         }
@@ -159,31 +231,16 @@ public class QueryExecutionBase implements QueryExecution {
         if (timeout2Callback != null) {
             alarmClock.cancel(timeout2Callback);
         }
-        cache.clear(); // [SPARQL-LD]
     }
 
     /*
-     * Allow to close a Query Execution without emptying the cache (for SPARQL-LD).
+     * Allow to close a Query Execution and also empty the (shared) cache (for SPARQL-LD).
      */
     public void close(boolean emptyCache) {
+        close();
         if (emptyCache) {
-            close();
-        } else {
-            closed = true;
-            if (queryIterator != null) {
-                queryIterator.close();
-            }
-            if (plan != null) {
-                plan.close();
-            }
-            if (timeout1Callback != null) {
-                alarmClock.cancel(timeout1Callback);
-            }
-            if (timeout2Callback != null) {
-                alarmClock.cancel(timeout2Callback);
-            }
+            cache.clear();
         }
-
     }
 
     @Override
@@ -499,6 +556,7 @@ public class QueryExecutionBase implements QueryExecution {
      */
     private void startQueryIterator() {
         execInit();
+        checkOpExecutor();
         if (queryIterator != null) {
             Log.warn(this, "Query iterator has already been started");
         }
@@ -568,6 +626,10 @@ public class QueryExecutionBase implements QueryExecution {
                 inputBinding = BindingRoot.create();
             }
 
+            // [SPARQL-LD] Collect the execution profile of the SERVICE calls (if enabled)
+            if (context.isTrue(Service.serviceProfile) && !context.isDefined(Service.serviceProfileResult)) {
+                context.set(Service.serviceProfileResult, new ServiceProfile());
+            }
             plan = qeFactory.create(query, dsg, inputBinding, getContext());
         }
         return plan;
@@ -610,6 +672,16 @@ public class QueryExecutionBase implements QueryExecution {
         return context;
     }
 
+    /**
+     * [SPARQL-LD] Return the execution profile of the SERVICE calls of the
+     * query (see Service.serviceProfile).
+     *
+     * @return The profile, or null if it is not collected.
+     */
+    public ServiceProfile getServiceProfile() {
+        return ServiceProfile.get(context);
+    }
+
     @Override
     public Dataset getDataset() {
         return dataset;
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a blocked gzip (BGZF) stream in parallel. A BGZF stream is a
+ * series of gzip members of at most 64 KB, each of which records its size in
+ * an extra field ("BC") of its header, so the members can be found without
+ * decompressing them. The members are read by the calling thread and inflated
+ * at the same time on a fork-join pool, and their bytes are returned in the
+ * order of the stream. At most two members per thread are kept in memory.
+ *
+ * Plain gzip streams (single or concatenated members without sizes) cannot be
+ * split this way; they are read with a GZIPInputStream (see Decompression).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class BlockedGzipInputStream extends InputStream {
+
+    private static final int HEADER_LENGTH = 12; // The length of the fixed part of a member header (up to XLEN)
+    private static final int TRAILER_LENGTH = 8; // The length of a member trailer (CRC32 and ISIZE)
+    private final DataInputStream in; // The compressed stream
+    private final ForkJoinPool pool; // The threads that inflate the members
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending; // The members being inflated, in the order of the stream
+    private final int maxPending; // The maximum number of members being inflated
+    private byte[] current; // The inflated bytes of the current member
+    private int position; // The position of the next byte of the current member
+    private boolean eof; // True if all the members have been read from the compressed stream
+
+    /**
+     * Create a new parallel BGZF stream.
+     *
+     * @param in The compressed stream.
+     * @param pool The threads that inflate the members.
+     */
+    public BlockedGzipInputStream(InputStream in, ForkJoinPool pool) {
+        this.in = new DataInputStream(in);
+        this.pool = pool;
+        this.pending = new ArrayDeque<>();
+        this.maxPending = 2 * pool.getParallelism();
+        this.current = new byte[0];
+    }
+
+    /**
+     * Check if the header of a gzip member is the header of a BGZF block.
+     *
+     * @param head The first bytes of the member.
+     * @param length The number of bytes of head.
+     * @return True if the member has the "BC" extra field.
+     */
+    public static boolean isBlockHeader(byte[] head, int length) {
+        return length >= 18 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b
+                && head[2] == 8 && head[3] == 4 && head[12] == 'B' && head[13] == 'C' && head[14] == 2;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ForkJoinTask<byte[]> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+        in.close();
+    }
+
+    /**
+     * Make the next inflated byte available, reading and inflating members as
+     * needed.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        while (position >= current.length) {
+            while (!eof && pending.size() < maxPending) {
+                byte[] block = readBlock();
+                if (block == null) {
+                    eof = true;
+                } else {
+                    pending.add(pool.submit(new BlockInflater(block)));
+                }
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                current = pending.poll().get();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted while inflating a BGZF block");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                while (!(cause instanceof IOException) && cause.getCause() != null) { // the pool may wrap the exception
+                    cause = cause.getCause();
+                }
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Read the next member (header, compressed data and trailer) of the
+     * compressed stream.
+     *
+     * @return The bytes of the member, or null at the end of the stream.
+     */
+    private byte[] readBlock() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = (byte) first;
+        in.readFully(header, 1, HEADER_LENGTH - 1);
+        int xlen = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        byte[] extra = new byte[xlen];
+        in.readFully(extra);
+        int size = -1; // The size of the member
+        for (int i = 0; i + 4 <= xlen; i += 4 + ((extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8)) {
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && i + 6 <= xlen) {
+                size = ((extra[i + 4] & 0xff) | (extra[i + 5] & 0xff) << 8) + 1;
+            }
+        }
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[3] != 4 || size < HEADER_LENGTH + xlen + TRAILER_LENGTH) {
+            throw new ZipException("Not a BGZF block");
+        }
+        byte[] block = new byte[size];
+        System.arraycopy(header, 0, block, 0, HEADER_LENGTH);
+        System.arraycopy(extra, 0, block, HEADER_LENGTH, xlen);
+        try {
+            in.readFully(block, HEADER_LENGTH + xlen, size - HEADER_LENGTH - xlen);
+        } catch (EOFException ex) {
+            throw new ZipException("Truncated BGZF block");
+        }
+        return block;
+    }
+
+    /**
+     * Inflates a member and checks its trailer.
+     */
+    private static class BlockInflater implements Callable<byte[]> {
+
+        private final byte[] block; // The bytes of the member
+
+        BlockInflater(byte[] block) {
+            this.block = block;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            int start = HEADER_LENGTH + ((block[10] & 0xff) | (block[11] & 0xff) << 8);
+            int end = block.length - TRAILER_LENGTH;
+            byte[] data = new byte[readInt(block, end + 4)];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(block, start, end - start);
+                int length = 0;
+                while (length < data.length && !inflater.finished()) {
+                    int count = inflater.inflate(data, length, data.length - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += count;
+                }
+                if (length != data.length) {
+                    throw new ZipException("Corrupt BGZF block (wrong size)");
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException("Corrupt BGZF block: " + ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            if ((int) crc.getValue() != readInt(block, end)) {
+                throw new ZipException("Corrupt BGZF block (wrong CRC)");
+            }
+            return data;
+        }
+
+        private static int readInt(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Capabilities;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact, read-only RDF graph for the cached resources. The terms of the
+ * triples are encoded as integer IDs by a dictionary that is shared by all the
+ * compact graphs (see TermDictionary), and the triples are stored in three
+ * sorted arrays of IDs, in the SPO, POS and OSP orders, so every triple
+ * pattern is answered by a binary search over one of them. A triple costs 36
+ * bytes (plus its share of the dictionary), instead of the hundreds of bytes
+ * of an in-memory model.
+ *
+ * As in an in-memory graph, the literal objects of triple patterns are
+ * matched by value. Adding or deleting triples is not allowed.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class CompactGraph extends GraphBase {
+
+    /**
+     * The heap size (in bytes) of a triple of a compact graph, without the
+     * terms of the dictionary.
+     */
+    public static final long BYTES_PER_TRIPLE = 36;
+    static final int[] SPO = {0, 1, 2}; // The positions of the subject, predicate and object in the SPO order
+    static final int[] POS = {2, 0, 1}; // The positions of the subject, predicate and object in the POS order
+    static final int[] OSP = {1, 2, 0}; // The positions of the subject, predicate and object in the OSP order
+    private static final Capabilities CAPABILITIES = new Capabilities() {
+        @Override
+        public boolean sizeAccurate() {
+            return true;
+        }
+
+        @Override
+        public boolean addAllowed() {
+            return false;
+        }
+
+        @Override
+        public boolean addAllowed(boolean every) {
+            return false;
+        }
+
+        @Override
+        public boolean deleteAllowed() {
+            return false;
+        }
+
+        @Override
+        public boolean deleteAllowed(boolean every) {
+            return false;
+        }
+
+        @Override
+        public boolean iteratorRemoveAllowed() {
+            return false;
+        }
+
+        @Override
+        public boolean canBeEmpty() {
+            return true;
+        }
+
+        @Override
+        public boolean findContractSafe() {
+            return true;
+        }
+
+        @Override
+        public boolean handlesLiteralTyping() {
+            return true;
+        }
+    };
+    private final TermDictionary dictionary; // The dictionary of the terms
+    private final int[] spo; // The triples (three IDs each), sorted by subject, predicate and object
+    private final int[] pos; // The triples, sorted by predicate, object and subject
+    private final int[] osp; // The triples, sorted by object, subject and predicate
+    private final int size; // The number of triples
+    private final long terms; // The number of terms added to the dictionary by this graph
+
+    /**
+     * Create the compact copy of a graph.
+     *
+     * @param graph The graph.
+     * @param dictionary The dictionary of the terms.
+     */
+    public CompactGraph(Graph graph, TermDictionary dictionary) {
+        this(dictionary, dictionary.size(), encode(graph, dictionary));
+        getPrefixMapping().setNsPrefixes(graph.getPrefixMapping());
+    }
+
+    /**
+     * Create a compact graph from the IDs of its (distinct) triples.
+     *
+     * @param dictionary The dictionary of the terms.
+     * @param before The number of terms of the dictionary before the terms of
+     * the triples were added.
+     * @param triples The triples (subject, predicate and object IDs).
+     */
+    CompactGraph(TermDictionary dictionary, int before, int[] triples) {
+        this.dictionary = dictionary;
+        this.size = triples.length / 3;
+        this.terms = Math.max(0, dictionary.size() - before);
+        this.spo = sort(triples, size, SPO);
+        this.pos = sort(triples, size, POS);
+        this.osp = sort(triples, size, OSP);
+    }
+
+    /**
+     * Return the IDs of the triples of a graph, adding their terms to a
+     * dictionary.
+     */
+    private static int[] encode(Graph graph, TermDictionary dictionary) {
+        int[] triples = new int[graph.size() * 3];
+        int count = 0;
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (it.hasNext()) {
+                Triple triple = it.next();
+                if (count == triples.length) {
+                    triples = Arrays.copyOf(triples, Math.max(3, triples.length * 2));
+                }
+                triples[count++] = dictionary.encode(triple.getSubject());
+                triples[count++] = dictionary.encode(triple.getPredicate());
+                triples[count++] = dictionary.encode(triple.getObject());
+            }
+        } finally {
+            it.close();
+        }
+        return count == triples.length ? triples : Arrays.copyOf(triples, count);
+    }
+
+    /**
+     * Create a model over the compact copy of the graph of a model.
+     *
+     * @param model The model.
+     * @param dictionary The dictionary of the terms.
+     * @return The (read-only) model.
+     */
+    public static Model compact(Model model, TermDictionary dictionary) {
+        return ModelFactory.createModelForGraph(new CompactGraph(model.getGraph(), dictionary));
+    }
+
+    /**
+     * Return the estimated heap size (in bytes) of the graph, including the
+     * terms that it added to the dictionary.
+     *
+     * @return The estimated heap size of the graph.
+     */
+    public long getEstimatedBytes() {
+        return size * BYTES_PER_TRIPLE + terms * TermDictionary.ESTIMATED_BYTES_PER_TERM;
+    }
+
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        return size;
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+        int s = id(pattern.getSubject());
+        int p = id(pattern.getPredicate());
+        if (s == -1 || p == -1) {
+            return NiceIterator.emptyIterator();
+        }
+        if (pattern.getObject().isLiteral()) {
+            ExtendedIterator<Triple> it = NiceIterator.emptyIterator();
+            for (int o : dictionary.lookupValue(pattern.getObject())) {
+                it = it.andThen(find(s, p, o));
+            }
+            return it;
+        }
+        return find(s, p, id(pattern.getObject()));
+    }
+
+    /**
+     * Return the triples that match the IDs of a triple pattern.
+     *
+     * @param s The ID of the subject (or -2 for a wildcard).
+     * @param p The ID of the predicate (or -2 for a wildcard).
+     * @param o The ID of the object (or -2 for a wildcard, or -1 for a term
+     * that is not in the dictionary).
+     * @return The triples.
+     */
+    private ExtendedIterator<Triple> find(int s, int p, int o) {
+        if (o == -1) {
+            return NiceIterator.emptyIterator();
+        }
+        if (s >= 0) {
+            if (p < 0 && o >= 0) {
+                return find(osp, OSP, new int[]{o, s});
+            }
+            return find(spo, SPO, p < 0 ? new int[]{s} : o < 0 ? new int[]{s, p} : new int[]{s, p, o});
+        } else if (p >= 0) {
+            return find(pos, POS, o < 0 ? new int[]{p} : new int[]{p, o});
+        } else if (o >= 0) {
+            return find(osp, OSP, new int[]{o});
+        }
+        return find(spo, SPO, new int[0]);
+    }
+
+    /**
+     * Return the ID of a node of a triple pattern.
+     *
+     * @return The ID, -2 for a wildcard (or a variable), or -1 for a term that
+     * is not in the dictionary (and so has no match).
+     */
+    private int id(Node node) {
+        return node == null || !node.isConcrete() ? -2 : dictionary.lookup(node);
+    }
+
+    /**
+     * Return the triples of an index whose first IDs are equal to a prefix.
+     *
+     * @param index The index.
+     * @param order The positions of the subject, predicate and object in the
+     * order of the index.
+     * @param prefix The prefix (in the order of the index).
+     * @return The triples.
+     */
+    private ExtendedIterator<Triple> find(final int[] index, final int[] order, int[] prefix) {
+        final int from = bound(index, prefix, false);
+        final int to = bound(index, prefix, true);
+        return new NiceIterator<Triple>() {
+            private int next = from; // The next triple of the index
+
+            @Override
+            public boolean hasNext() {
+                return next < to;
+            }
+
+            @Override
+            public Triple next() {
+                if (next >= to) {
+                    throw new NoSuchElementException();
+                }
+                int i = next++ * 3;
+                return Triple.create(dictionary.decode(index[i + order[0]]),
+                        dictionary.decode(index[i + order[1]]),
+                        dictionary.decode(index[i + order[2]]));
+            }
+        };
+    }
+
+    /**
+     * Binary search for the first triple of an index that is greater than
+     * (or, if upper is false, not less than) a prefix.
+     */
+    private int bound(int[] index, int[] prefix, boolean upper) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compare(index, middle * 3, prefix);
+            if (cmp < 0 || (upper && cmp == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(int[] index, int offset, int[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (index[offset + i] != prefix[i]) {
+                return index[offset + i] < prefix[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the triples permuted into the order of an index and sorted.
+     *
+     * @param triples The triples (subject, predicate and object IDs).
+     * @param size The number of triples.
+     * @param order The positions of the subject, predicate and object in the
+     * order of the index.
+     * @return The index.
+     */
+    private static int[] sort(int[] triples, int size, int[] order) {
+        int[] index = permute(triples, size, order);
+        int[] positions = sortPositions(index, size);
+        int[] sorted = new int[size * 3];
+        for (int t = 0; t < size; t++) {
+            System.arraycopy(index, positions[t] * 3, sorted, t * 3, 3);
+        }
+        return sorted;
+    }
+
+    /**
+     * Return the triples permuted into the order of an index.
+     *
+     * @param triples The triples (subject, predicate and object IDs).
+     * @param size The number of triples.
+     * @param order The positions of the subject, predicate and object in the
+     * order of the index.
+     * @return The permuted triples (not sorted).
+     */
+    static int[] permute(int[] triples, int size, int[] order) {
+        int[] index = new int[size * 3];
+        for (int t = 0; t < size; t++) {
+            index[t * 3 + order[0]] = triples[t * 3];
+            index[t * 3 + order[1]] = triples[t * 3 + 1];
+            index[t * 3 + order[2]] = triples[t * 3 + 2];
+        }
+        return index;
+    }
+
+    /**
+     * Return the positions of triples in their sorted order (by a merge sort).
+     *
+     * @param index The triples (three IDs each).
+     * @param size The number of triples.
+     * @return The positions of the triples, sorted by the triples.
+     */
+    static int[] sortPositions(int[] index, int size) {
+        int[] positions = new int[size];
+        for (int t = 0; t < size; t++) {
+            positions[t] = t;
+        }
+        int[] buffer = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int low = 0; low < size; low += 2 * width) {
+                int middle = Math.min(low + width, size);
+                int high = Math.min(low + 2 * width, size);
+                int i = low;
+                int j = middle;
+                for (int k = low; k < high; k++) {
+                    if (i < middle && (j >= high || compareTriples(index, positions[i], positions[j]) <= 0)) {
+                        buffer[k] = positions[i++];
+                    } else {
+                        buffer[k] = positions[j++];
+                    }
+                }
+            }
+            int[] swap = positions;
+            positions = buffer;
+            buffer = swap;
+        }
+        return positions;
+    }
+
+    static int compareTriples(int[] index, int a, int b) {
+        for (int i = 0; i < 3; i++) {
+            int x = index[a * 3 + i];
+            int y = index[b * 3 + i];
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
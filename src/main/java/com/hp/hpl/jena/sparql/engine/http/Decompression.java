@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+
+/**
+ * Streaming decompression of compressed RDF documents (e.g. dumps published as
+ * .nt.gz, .ttl.bz2 or .nq.xz). The compression is recognized from the first
+ * bytes of the content (so it does not depend on the file extension or on the
+ * content type), and the content is decompressed while it is read, so parsing
+ * starts while the compressed bytes are still arriving:
+ * <ul>
+ * <li>gzip, with java.util.zip (concatenated members are read too); blocked
+ * gzip (BGZF) is decompressed in parallel (see BlockedGzipInputStream).</li>
+ * <li>bzip2 and xz, with Apache Commons Compress (xz also needs the XZ for
+ * Java library), which are only loaded for such content.</li>
+ * </ul>
+ *
+ * Content sent with a Content-Encoding header is already decompressed by the
+ * HTTP client (see HttpClientPool).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class Decompression {
+
+    /**
+     * The gzip compression.
+     */
+    public static final String GZIP = "gzip";
+    /**
+     * The bzip2 compression.
+     */
+    public static final String BZIP2 = "bzip2";
+    /**
+     * The xz compression.
+     */
+    public static final String XZ = "xz";
+    private static final int MAGIC_LENGTH = 18; // The number of bytes read for recognizing the compression (a BGZF header)
+    private static final int BUFFER_SIZE = 64 * 1024; // The size of the buffers of the decompressors
+    private static final String[] EXTENSIONS = {".gz", ".gzip", ".bz2", ".bzip2", ".xz"}; // The file extensions of compressed documents
+
+    private Decompression() {
+    }
+
+    /**
+     * Recognize the compression of a stream from its first bytes. The stream
+     * is reset to its beginning.
+     *
+     * @param in The (buffered) stream.
+     * @return GZIP, BZIP2, XZ, or null if the stream is not compressed.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static String detect(BufferedInputStream in) throws IOException {
+        return detect(peek(in));
+    }
+
+    private static String detect(byte[] head) {
+        if ((head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+            return GZIP;
+        } else if (head[0] == 'B' && head[1] == 'Z' && head[2] == 'h' && head[3] >= '1' && head[3] <= '9'
+                && head[4] == 0x31 && head[5] == 0x41 && head[6] == 0x59 && head[7] == 0x26 && head[8] == 0x53 && head[9] == 0x59) {
+            return BZIP2;
+        } else if ((head[0] & 0xff) == 0xfd && head[1] == '7' && head[2] == 'z' && head[3] == 'X' && head[4] == 'Z' && head[5] == 0) {
+            return XZ;
+        }
+        return null;
+    }
+
+    /**
+     * Return the decompressed content of a stream, or the stream itself if it
+     * is not compressed.
+     *
+     * @param body The stream.
+     * @return The (buffered) decompressed content.
+     * @throws IOException If the stream cannot be read or its compressed
+     * header is corrupt.
+     */
+    public static InputStream decompress(InputStream body) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(body, BUFFER_SIZE);
+        byte[] head = peek(in);
+        String compression = detect(head);
+        if (compression == null) {
+            return in;
+        }
+        ServiceMetrics.trace("Decompressing %s content...", compression);
+        switch (compression) {
+            case GZIP:
+                ForkJoinPool pool = ParallelNTriplesParser.getPool();
+                if (BlockedGzipInputStream.isBlockHeader(head, head.length) && pool.getParallelism() > 1) {
+                    return new BufferedInputStream(new BlockedGzipInputStream(in, pool), BUFFER_SIZE);
+                }
+                return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+            default:
+                try {
+                    return decompressWithCommons(in, compression);
+                } catch (NoClassDefFoundError ex) {
+                    throw new IOException("Reading " + compression + " content needs Apache Commons Compress"
+                            + (compression.equals(XZ) ? " and XZ for Java" : "") + " (missing class " + ex.getMessage() + ")");
+                }
+        }
+    }
+
+    /**
+     * Return the decompressed content of a bzip2 or xz stream, using Apache
+     * Commons Compress (in a separate method, so that its classes are only
+     * loaded for such content).
+     */
+    private static InputStream decompressWithCommons(InputStream in, String compression) throws IOException {
+        if (compression.equals(BZIP2)) {
+            return new BufferedInputStream(new BZip2CompressorInputStream(in, true), BUFFER_SIZE);
+        }
+        return new BufferedInputStream(new XZCompressorInputStream(in, true), BUFFER_SIZE);
+    }
+
+    /**
+     * Remove the compression file extension (e.g. .gz) of an IRI, so that the
+     * RDF syntax can be found from the remaining extension (e.g. .nt).
+     *
+     * @param iri The IRI.
+     * @return The IRI without its compression extension.
+     */
+    public static String stripExtension(String iri) {
+        String path = iri.toLowerCase();
+        for (String extension : EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return iri.substring(0, iri.length() - extension.length());
+            }
+        }
+        return iri;
+    }
+
+    /**
+     * Read the first bytes of a stream (zero-filled if the stream is shorter)
+     * and reset the stream to its beginning.
+     */
+    private static byte[] peek(BufferedInputStream in) throws IOException {
+        byte[] head = new byte[MAGIC_LENGTH];
+        in.mark(MAGIC_LENGTH);
+        int length = 0;
+        int count;
+        while (length < head.length && (count = in.read(head, length, head.length - length)) > 0) {
+            length += count;
+        }
+        in.reset();
+        return head;
+    }
+}
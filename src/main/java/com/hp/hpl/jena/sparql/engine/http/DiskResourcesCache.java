@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFLanguages;
+
+/**
+ * Persistent (on-disk) tier of the cache of the already-retrieved resources.
+ * Each resource is stored in the binary RDF Thrift encoding, keyed by its IRI,
+ * together with its HTTP caching metadata (ETag, Last-Modified and expiration
+ * time). Expired resources are revalidated with a conditional GET; a 304 (Not
+ * Modified) response renews the stored copy without downloading it again.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class DiskResourcesCache {
+
+    private final File directory; // The directory of the stored resources
+    private long ttl; // The time-to-live of a resource without caching metadata
+
+    /**
+     * Initialize a new on-disk cache.
+     *
+     * @param directory The directory of the stored resources.
+     * @param ttl The time-to-live (in milliseconds) of a resource whose HTTP
+     * response does not define an expiration time.
+     */
+    public DiskResourcesCache(File directory, long ttl) {
+        this.directory = directory;
+        this.ttl = ttl;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logger.getLogger(DiskResourcesCache.class.getName()).log(Level.SEVERE, "Cannot create the cache directory {0}", directory);
+        }
+    }
+
+    /**
+     * Initialize a new on-disk cache using the default time-to-live.
+     *
+     * @param directory The directory of the stored resources.
+     */
+    public DiskResourcesCache(File directory) {
+        this(directory, ResourcesCache.DEFAULT_TTL);
+    }
+
+    /**
+     * Get the RDF model of a Web resource from the disk. If the stored copy
+     * has expired, it is first revalidated. If the revalidation fails because
+     * the Web resource cannot be reached, the expired copy is returned.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The RDF model of the Web resource, or null if it is not stored
+     * (or it is no longer available)
+     */
+    public Model load(String iri) {
+        ResourceMetadata metadata = readMetadata(iri);
+        if (metadata == null) {
+            return null;
+        }
+        if (metadata.isFresh()) {
+            return readModel(iri);
+        }
+
+        ServiceMetrics.trace("The stored copy of the IRI \"%s\" has expired. Revalidating it...", iri);
+        HttpEntity entity = null;
+        try {
+            HttpResponse response = HttpClientPool.execGet(iri, ReadRDFFromIRI.ACCEPT, metadata);
+            entity = response.getEntity();
+            int code = response.getStatusLine().getStatusCode();
+            if (code == HttpStatus.SC_NOT_MODIFIED) {
+                writeMetadata(iri, metadata.revalidated(response, ttl));
+                return readModel(iri);
+            }
+            if (code == HttpStatus.SC_OK && entity != null) {
+                ReadRDFFromIRI reader; // the resource has changed: read it from the response
+                try {
+                    reader = new ReadRDFFromIRI(iri, response);
+                } catch (RuntimeException ex) {
+                    remove(iri);
+                    throw ex;
+                }
+                store(iri, reader.getModel(), ResourceMetadata.fromResponse(response, ttl));
+                return reader.getModel();
+            }
+            remove(iri);
+            return null;
+        } catch (IOException ex) {
+            ServiceMetrics.trace("The IRI \"%s\" cannot be revalidated. Using the stored copy...", iri);
+            return readModel(iri);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    /**
+     * Return the expiration time of a stored Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The expiration time, or 0 if the Web resource is not stored.
+     */
+    public long getExpires(String iri) {
+        ResourceMetadata metadata = readMetadata(iri);
+        return metadata == null ? 0 : metadata.getExpires();
+    }
+
+    /**
+     * Store the RDF model of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param model The RDF model of the Web resource.
+     * @param metadata The HTTP caching metadata of the Web resource (or null).
+     */
+    public void store(String iri, Model model, ResourceMetadata metadata) {
+        if (metadata == null) {
+            metadata = ResourceMetadata.withoutValidators(ttl);
+        }
+        if (!metadata.isStorable()) {
+            remove(iri);
+            return;
+        }
+        File file = modelFile(iri);
+        File tmp = new File(directory, file.getName() + ".tmp" + Thread.currentThread().getId());
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                RDFDataMgr.write(out, model, RDFFormat.RDF_THRIFT);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeMetadata(iri, metadata);
+        } catch (IOException ex) {
+            Logger.getLogger(DiskResourcesCache.class.getName()).log(Level.SEVERE, null, ex);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Remove a Web resource from the disk.
+     *
+     * @param iri The IRI of the Web resource.
+     */
+    public void remove(String iri) {
+        metadataFile(iri).delete();
+        modelFile(iri).delete();
+    }
+
+    /**
+     * Remove all the stored Web resources.
+     *
+     */
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".rt") || file.getName().endsWith(".meta")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the stored RDF model of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The RDF model, or null if it cannot be read.
+     */
+    private Model readModel(String iri) {
+        File file = modelFile(iri);
+        if (!file.isFile()) {
+            return null;
+        }
+        Model model = ModelFactory.createDefaultModel();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            RDFDataMgr.read(model, in, RDFLanguages.THRIFT);
+            return model;
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(DiskResourcesCache.class.getName()).log(Level.WARNING, "Cannot read the stored copy of " + iri, ex);
+            remove(iri);
+            return null;
+        }
+    }
+
+    /**
+     * Read the stored HTTP caching metadata of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The metadata, or null if the Web resource is not stored.
+     */
+    private ResourceMetadata readMetadata(String iri) {
+        File file = metadataFile(iri);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException ex) {
+            return null;
+        }
+        if (!iri.equals(properties.getProperty("iri"))) {
+            return null; // hash collision
+        }
+        return ResourceMetadata.load(properties);
+    }
+
+    /**
+     * Write the HTTP caching metadata of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param metadata The metadata.
+     */
+    private void writeMetadata(String iri, ResourceMetadata metadata) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("iri", iri);
+        metadata.store(properties);
+        File file = metadataFile(iri);
+        File tmp = new File(directory, file.getName() + ".tmp" + Thread.currentThread().getId());
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File modelFile(String iri) {
+        return new File(directory, key(iri) + ".rt");
+    }
+
+    private File metadataFile(String iri) {
+        return new File(directory, key(iri) + ".meta");
+    }
+
+    /**
+     * Return the file name key of an IRI (the hex SHA-1 digest of the IRI).
+     *
+     * @param iri The IRI.
+     * @return The key.
+     */
+    static String key(String iri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(iri.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Return the directory of the stored resources.
+     *
+     * @return The directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the time-to-live of a resource whose HTTP response does not define
+     * an expiration time.
+     *
+     * @param ttl The time-to-live (in milliseconds).
+     */
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.util.Arrays;
+
+/**
+ * What a SPARQL endpoint has been observed to support: its result format,
+ * whether VALUES and POST queries work, the maximum length of its queries,
+ * and the latency and error rate of its requests. The capabilities are
+ * learned from the responses of the endpoint and stored by EndpointsIndex;
+ * the latency and the errors are kept in memory only.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class EndpointProfile {
+
+    /**
+     * The minimum read timeout (in milliseconds) suggested by a profile.
+     */
+    public static final int MIN_READ_TIMEOUT = 5000;
+    /**
+     * The maximum read timeout (in milliseconds) suggested by a profile.
+     */
+    public static final int MAX_READ_TIMEOUT = 5 * 60 * 1000;
+    private static final int LATENCY_SAMPLES = 128; // The number of recent latencies kept
+    private static final int MIN_LATENCY_SAMPLES = 10; // The latencies needed before a timeout is suggested
+    private final String iri; // The IRI of the SPARQL endpoint (lowercased)
+    private String resultsFormat; // The content type of the results returned last time (or null)
+    private Boolean valuesSupported; // Whether VALUES queries work (null if unknown)
+    private Boolean postSupported; // Whether POST queries work (null if unknown)
+    private int maxQueryLength; // The maximum length of a query (0 if unknown)
+    private long lastCheck; // The time of the last request (0 if none)
+    private final long[] latencies; // The latencies (in milliseconds) of the recent successful requests
+    private int latencyCount; // The number of latencies recorded
+    private long requests; // The number of requests
+    private long errors; // The number of failed requests
+
+    /**
+     * Create an empty profile.
+     *
+     * @param iri The IRI of the SPARQL endpoint.
+     */
+    public EndpointProfile(String iri) {
+        this.iri = iri.trim().toLowerCase();
+        this.latencies = new long[LATENCY_SAMPLES];
+    }
+
+    public String getIri() {
+        return iri;
+    }
+
+    public synchronized String getResultsFormat() {
+        return resultsFormat;
+    }
+
+    /**
+     * Set the content type of the results returned by the endpoint.
+     *
+     * @param contentType The content type.
+     * @return True if the profile changed.
+     */
+    public synchronized boolean setResultsFormat(String contentType) {
+        if (contentType.equals(resultsFormat)) {
+            return false;
+        }
+        resultsFormat = contentType;
+        return true;
+    }
+
+    public synchronized Boolean getValuesSupported() {
+        return valuesSupported;
+    }
+
+    /**
+     * Set whether the endpoint accepts queries with a VALUES block.
+     *
+     * @param supported True if VALUES queries work.
+     * @return True if the profile changed.
+     */
+    public synchronized boolean setValuesSupported(boolean supported) {
+        if (valuesSupported != null && valuesSupported == supported) {
+            return false;
+        }
+        valuesSupported = supported;
+        return true;
+    }
+
+    public synchronized Boolean getPostSupported() {
+        return postSupported;
+    }
+
+    /**
+     * Set whether the endpoint accepts queries sent with POST.
+     *
+     * @param supported True if POST queries work.
+     * @return True if the profile changed.
+     */
+    public synchronized boolean setPostSupported(boolean supported) {
+        if (postSupported != null && postSupported == supported) {
+            return false;
+        }
+        postSupported = supported;
+        return true;
+    }
+
+    public synchronized int getMaxQueryLength() {
+        return maxQueryLength;
+    }
+
+    /**
+     * Record that a request was rejected as too long (HTTP 413 or 414).
+     *
+     * @param length The length of the rejected request (the URL of a GET, or
+     * the body of a POST).
+     * @return True if the profile changed.
+     */
+    public synchronized boolean recordTooLong(int length) {
+        if (maxQueryLength > 0 && maxQueryLength < length) {
+            return false;
+        }
+        maxQueryLength = Math.max(1, length - 1);
+        return true;
+    }
+
+    /**
+     * Record a successful request.
+     *
+     * @param latency The time (in milliseconds) until the response arrived.
+     */
+    public synchronized void recordSuccess(long latency) {
+        requests++;
+        latencies[latencyCount % LATENCY_SAMPLES] = latency;
+        latencyCount++;
+        lastCheck = System.currentTimeMillis();
+    }
+
+    /**
+     * Record a failed request.
+     *
+     */
+    public synchronized void recordError() {
+        requests++;
+        errors++;
+        lastCheck = System.currentTimeMillis();
+    }
+
+    /**
+     * Return a percentile of the latency of the recent successful requests.
+     *
+     * @param percentile The percentile (between 0 and 100).
+     * @return The latency (in milliseconds), or -1 if no request succeeded.
+     */
+    public synchronized long getLatency(double percentile) {
+        int count = Math.min(latencyCount, LATENCY_SAMPLES);
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Return the fraction of the requests that failed.
+     *
+     * @return The error rate (0 if no request has been sent).
+     */
+    public synchronized double getErrorRate() {
+        return requests == 0 ? 0 : (double) errors / requests;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getLastCheck() {
+        return lastCheck;
+    }
+
+    /**
+     * Return the read timeout for the queries of the endpoint: four times the
+     * 99th percentile of its latency, within MIN_READ_TIMEOUT and
+     * MAX_READ_TIMEOUT.
+     *
+     * @return The read timeout (in milliseconds), or -1 if too few requests
+     * have succeeded.
+     */
+    public synchronized int getReadTimeout() {
+        if (latencyCount < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        return (int) Math.max(MIN_READ_TIMEOUT, Math.min(MAX_READ_TIMEOUT, 4 * getLatency(99)));
+    }
+
+    /**
+     * Return the stored form of the capabilities of the profile (a line of
+     * tab-separated fields).
+     *
+     * @return The line.
+     */
+    synchronized String toLine() {
+        StringBuilder sb = new StringBuilder(iri);
+        if (resultsFormat != null) {
+            sb.append("\tformat=").append(resultsFormat);
+        }
+        if (valuesSupported != null) {
+            sb.append("\tvalues=").append(valuesSupported);
+        }
+        if (postSupported != null) {
+            sb.append("\tpost=").append(postSupported);
+        }
+        if (maxQueryLength > 0) {
+            sb.append("\tmaxLength=").append(maxQueryLength);
+        }
+        if (lastCheck > 0) {
+            sb.append("\tchecked=").append(lastCheck);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read a profile from its stored form.
+     *
+     * @param line The line (see toLine).
+     * @return The profile, or null if the line is not valid.
+     */
+    static EndpointProfile fromLine(String line) {
+        String[] fields = line.split("\t");
+        if (fields[0].trim().isEmpty()) {
+            return null;
+        }
+        EndpointProfile profile = new EndpointProfile(fields[0]);
+        for (int i = 1; i < fields.length; i++) {
+            int eq = fields[i].indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String key = fields[i].substring(0, eq);
+            String value = fields[i].substring(eq + 1).trim();
+            try {
+                switch (key) {
+                    case "format":
+                        profile.resultsFormat = value;
+                        break;
+                    case "values":
+                        profile.valuesSupported = Boolean.valueOf(value);
+                        break;
+                    case "post":
+                        profile.postSupported = Boolean.valueOf(value);
+                        break;
+                    case "maxLength":
+                        profile.maxQueryLength = Integer.parseInt(value);
+                        break;
+                    case "checked":
+                        profile.lastCheck = Long.parseLong(value);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException ex) {
+                // ignore the field
+            }
+        }
+        return profile;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return toLine() + "\trequests=" + requests + "\terrorRate=" + getErrorRate()
+                + "\tp50=" + getLatency(50) + "\tp95=" + getLatency(95) + "\tp99=" + getLatency(99);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import java.io.InputStream;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetLang;
+
+/**
+ * The result formats requested from SPARQL endpoints, and the streaming
+ * readers of the results. The Accept header of a query lists, in order of
+ * preference: the format that the endpoint returned last time (see
+ * EndpointsIndex.getResultsFormat), binary (Thrift) rows, JSON, TSV and XML.
+ * The results are read according to the content type of the response, and
+ * the format is remembered for the endpoint.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class EndpointResults {
+
+    /**
+     * The supported result formats, in order of preference (cheapest to parse
+     * first).
+     */
+    public static final String[] CONTENT_TYPES = {
+        WebContent.contentTypeResultsThrift,
+        WebContent.contentTypeResultsJSON,
+        WebContent.contentTypeTextTSV,
+        WebContent.contentTypeResultsXML
+    };
+
+    private EndpointResults() {
+    }
+
+    /**
+     * Return the Accept header of a query sent to a SPARQL endpoint.
+     *
+     * @param preferred The format that the endpoint returned last time (or
+     * null).
+     * @return The value of the Accept header.
+     */
+    public static String accept(String preferred) {
+        StringBuilder sb = new StringBuilder();
+        int q = 10;
+        if (isSupported(preferred)) {
+            sb.append(preferred);
+            q--;
+        }
+        for (String contentType : CONTENT_TYPES) {
+            if (!contentType.equals(preferred)) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(contentType);
+                if (q < 10) {
+                    sb.append(";q=0.").append(q);
+                }
+                q--;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the Accept header of a query sent to a SPARQL endpoint, with the
+     * format that the endpoint returned last time first.
+     *
+     * @param uri The IRI of the SPARQL endpoint.
+     * @return The value of the Accept header.
+     */
+    public static String acceptFor(String uri) {
+        return accept(QueryExecutionBase.endpointIndex.getResultsFormat(uri));
+    }
+
+    /**
+     * Check if a result format can be read.
+     *
+     * @param contentType The content type (without parameters), or null.
+     * @return True if the format is supported.
+     */
+    public static boolean isSupported(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        for (String supported : CONTENT_TYPES) {
+            if (supported.equals(contentType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the results returned by a SPARQL endpoint, and remember their
+     * format for the endpoint. The bindings are parsed while the result set is
+     * consumed.
+     *
+     * @param uri The IRI of the SPARQL endpoint.
+     * @param in The body of the response.
+     * @param contentType The content type of the response (parameters are
+     * ignored), or null.
+     * @return The result set.
+     */
+    public static ResultSet read(String uri, InputStream in, String contentType) {
+        String mediaType = mediaType(contentType);
+        ResultSet rs = read(in, mediaType);
+        if (isSupported(mediaType) && !mediaType.equals(QueryExecutionBase.endpointIndex.getResultsFormat(uri))) {
+            QueryExecutionBase.endpointIndex.setResultsFormat(uri, mediaType);
+        }
+        return rs;
+    }
+
+    /**
+     * Read a result set of a given format. An unknown (or missing) content
+     * type is read as XML.
+     *
+     * @param in The results.
+     * @param contentType The content type (without parameters), or null.
+     * @return The result set.
+     */
+    public static ResultSet read(InputStream in, String contentType) {
+        if (WebContent.contentTypeResultsThrift.equals(contentType)) {
+            return ResultSetMgr.read(in, ResultSetLang.SPARQLResultSetThrift);
+        }
+        if (WebContent.contentTypeResultsJSON.equals(contentType)) {
+            return JSONResultsReader.read(in);
+        }
+        if (WebContent.contentTypeTextTSV.equals(contentType)) {
+            return ResultSetFactory.fromTSV(in);
+        }
+        return ResultSetFactory.fromXML(in);
+    }
+
+    private static String mediaType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int i = contentType.indexOf(';');
+        return (i < 0 ? contentType : contentType.substring(0, i)).trim().toLowerCase();
+    }
+}
@@ -17,20 +17,23 @@
  */
 package com.hp.hpl.jena.sparql.engine.http;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Index of known SPARQL endpoints.
  *
+ * The list of endpoints (and the profiles of the endpoints) is persisted as a
+ * snapshot plus a write-behind log (see LineJournal): the new endpoints are
+ * written in the background, and at startup the log is compacted into the
+ * snapshot (removing duplicates). The snapshot (e.g. the endpoints.lst file of
+ * the distribution) is rewritten only if the log adds new endpoints to it.
+ *
  * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios@csd.uoc.gr)
  */
 public class EndpointsIndex {
@@ -38,11 +41,23 @@ public class EndpointsIndex {
     /* 
      * A set containing the IRIs of the known SPARQL endpoints.
      */
-    private HashSet<String> endpoints;
+    private final Set<String> endpoints;
     /* 
      * The file containing the list of known SPARQL endpoints.
      */
     private String filepath;
+    /* 
+     * The profiles (observed capabilities) of the SPARQL endpoints.
+     */
+    private final ConcurrentHashMap<String, EndpointProfile> profiles;
+    /* 
+     * The journal of the list of known SPARQL endpoints.
+     */
+    private LineJournal journal;
+    /* 
+     * The journal of the profiles of the SPARQL endpoints.
+     */
+    private LineJournal profilesJournal;
 
     /**
      * Initialize a new index by reading a list of endpoints from a given file.
@@ -51,27 +66,49 @@ public class EndpointsIndex {
      */
     public EndpointsIndex(String file) {
 
-        this.endpoints = new HashSet<>();
+        this.endpoints = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         this.filepath = file;
+        this.profiles = new ConcurrentHashMap<>();
+        this.journal = new LineJournal(filepath);
+        this.profilesJournal = new LineJournal(getProfilesFilepath());
 
-        try {
-
-            File fileDir = new File(filepath);
-            try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(
-                    new FileInputStream(fileDir), "UTF8"))) {
-                String str;
-                while ((str = in.readLine()) != null) {
-                    if (!str.trim().equals("")) {
-                        if (!str.trim().startsWith("#")) {
-                            endpoints.add(str.trim().toLowerCase());
-                        }
-                    }
-                }
+        // The endpoints of the snapshot, followed by the new endpoints of the log.
+        List<String> compacted = journal.loadSnapshot();
+        for (String str : compacted) {
+            String line = str.trim();
+            if (!line.equals("") && !line.startsWith("#")) {
+                endpoints.add(line.toLowerCase());
             }
+        }
+        boolean added = false;
+        for (String str : journal.loadLog()) {
+            String line = str.trim();
+            if (!line.equals("") && endpoints.add(line.toLowerCase())) {
+                compacted.add(line);
+                added = true;
+            }
+        }
+        if (added) {
+            journal.compact(compacted);
+        }
 
-        } catch (IOException ex) {
-            Logger.getLogger(EndpointsIndex.class.getName()).log(Level.SEVERE, null, ex);
+        // The profiles of the endpoints (see EndpointProfile.toLine, the last line of an IRI wins)
+        LinkedHashMap<String, EndpointProfile> loaded = new LinkedHashMap<>();
+        int lines = 0;
+        for (String str : profilesJournal.load()) {
+            EndpointProfile profile = EndpointProfile.fromLine(str);
+            if (profile != null) {
+                loaded.put(profile.getIri(), profile);
+                lines++;
+            }
+        }
+        profiles.putAll(loaded);
+        if (lines > loaded.size() || profilesJournal.hasLog()) {
+            List<String> profileLines = new ArrayList<>();
+            for (EndpointProfile profile : loaded.values()) {
+                profileLines.add(profile.toLine());
+            }
+            profilesJournal.compact(profileLines);
         }
     }
 
@@ -84,22 +121,15 @@ public class EndpointsIndex {
     }
 
     /**
-     * Add to the index the IRI of a SPARQL endpoint.
+     * Add to the index the IRI of a SPARQL endpoint. A new IRI is written to
+     * the file in the background.
      *
      * @param endpointIRI The IRI of the SPARQL Endpoint.
      */
     public void add(String endpointIRI) {
-        endpoints.add(endpointIRI.trim().toLowerCase());
-        try {
-            FileWriter fstream = new FileWriter(filepath, true);
-            try (BufferedWriter out = new BufferedWriter(fstream)) {
-                out.write(endpointIRI);
-                out.newLine();
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(EndpointsIndex.class.getName()).log(Level.SEVERE, null, ex);
+        if (endpoints.add(endpointIRI.trim().toLowerCase())) {
+            journal.append(endpointIRI.trim());
         }
-
     }
 
     /**
@@ -117,12 +147,75 @@ public class EndpointsIndex {
     }
 
     /**
-     * Return the set of SPARQL endpoints in the Index.
+     * Return the profile of a SPARQL endpoint, creating an empty profile if the
+     * endpoint has none.
+     *
+     * @param iri The IRI of the SPARQL endpoint.
+     * @return The profile.
+     */
+    public EndpointProfile getProfile(String iri) {
+        String key = iri.trim().toLowerCase();
+        EndpointProfile profile = profiles.get(key);
+        if (profile == null) {
+            EndpointProfile created = new EndpointProfile(key);
+            profile = profiles.putIfAbsent(key, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Store the capabilities of a profile (after a change). The profile is
+     * written to the file in the background.
+     *
+     * @param profile The profile.
+     */
+    public void saveProfile(EndpointProfile profile) {
+        profilesJournal.append(profile.toLine());
+    }
+    /**
+     * Return the result format that a SPARQL endpoint returned last time.
+     *
+     * @param iri The IRI of the SPARQL endpoint.
+     * @return The content type of the results, or null if not known.
+     */
+    public String getResultsFormat(String iri) {
+        return getProfile(iri).getResultsFormat();
+    }
+
+    /**
+     * Remember the result format that a SPARQL endpoint returned (it is
+     * requested first next time).
+     *
+     * @param iri The IRI of the SPARQL endpoint.
+     * @param contentType The content type of the results.
+     */
+    public void setResultsFormat(String iri, String contentType) {
+        EndpointProfile profile = getProfile(iri);
+        if (profile.setResultsFormat(contentType)) {
+            saveProfile(profile);
+        }
+    }
+
+    /**
+     * Return the file containing the profiles of the endpoints (next to the
+     * list of known SPARQL endpoints).
+     *
+     * @return The file path.
+     */
+    public String getProfilesFilepath() {
+        return filepath + ".profiles";
+    }
+
+    /**
+     * Return (a copy of) the set of SPARQL endpoints in the Index.
      *
      * @return A set of SPARQL endpoints.
      */
     public HashSet<String> getEndpoints() {
-        return endpoints;
+        return new HashSet<>(endpoints);
     }
 
     /**
@@ -140,6 +233,20 @@ public class EndpointsIndex {
      * @param filepath The file path.
      */
     public void setFilepath(String filepath) {
+        journal.close();
+        profilesJournal.close();
         this.filepath = filepath;
+        this.journal = new LineJournal(filepath);
+        this.profilesJournal = new LineJournal(getProfilesFilepath());
+    }
+
+    /**
+     * Wait until the new endpoints and profiles have been written to the
+     * files.
+     *
+     */
+    public void flush() {
+        journal.flush();
+        profilesJournal.flush();
     }
 }
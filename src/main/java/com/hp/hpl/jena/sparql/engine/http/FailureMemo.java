@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Memo of the IRIs (and hosts) that failed recently. A failed IRI is skipped
+ * until its back-off period ends; the back-off period doubles with each
+ * consecutive failure. If the failure shows that the host of the IRI cannot
+ * be connected to (unknown host, refused or timed-out connection), all the
+ * IRIs of the host are skipped; a failure after the connection (such as a
+ * read timeout of a slow resource) only affects the IRI.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class FailureMemo {
+
+    /**
+     * The default back-off period (in milliseconds) after a first failure.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF = 10 * 1000;
+    /**
+     * The default maximum back-off period (in milliseconds).
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 60 * 60 * 1000;
+    private static final int SWEEP_THRESHOLD = 10000; // The memo size over which the ended back-off periods are removed
+    private final HashMap<String, Failure> failures; // The failures, keyed by IRI or by "host:" and the host name
+    private long initialBackoff; // The back-off period after a first failure
+    private long maxBackoff; // The maximum back-off period
+
+    /**
+     * Create a new memo with the default back-off periods.
+     *
+     */
+    public FailureMemo() {
+        this(DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Create a new memo.
+     *
+     * @param initialBackoff The back-off period (in milliseconds) after a first
+     * failure.
+     * @param maxBackoff The maximum back-off period (in milliseconds).
+     */
+    public FailureMemo(long initialBackoff, long maxBackoff) {
+        this.failures = new HashMap<>();
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Check if an IRI, or its host, is in a back-off period.
+     *
+     * @param iri The IRI.
+     * @return True if the IRI must be skipped.
+     */
+    public synchronized boolean isBlocked(String iri) {
+        long now = System.currentTimeMillis();
+        Failure failure = failures.get(iri);
+        if (failure != null && failure.retryAt > now) {
+            return true;
+        }
+        String host = hostKey(iri);
+        failure = host == null ? null : failures.get(host);
+        return failure != null && failure.retryAt > now;
+    }
+
+    /**
+     * Record a failure of an IRI. If the failure shows that the host cannot be
+     * connected to, the failure is also recorded for the host.
+     *
+     * @param iri The IRI.
+     * @param cause The cause of the failure.
+     */
+    public synchronized void recordFailure(String iri, Throwable cause) {
+        record(iri);
+        String host = hostKey(iri);
+        if (host != null && isHostUnreachable(cause)) {
+            record(host);
+        }
+        if (failures.size() > SWEEP_THRESHOLD) {
+            sweep();
+        }
+    }
+
+    /**
+     * Record a success of an IRI, ending any back-off period of the IRI and of
+     * its host.
+     *
+     * @param iri The IRI.
+     */
+    public synchronized void recordSuccess(String iri) {
+        if (failures.isEmpty()) {
+            return;
+        }
+        failures.remove(iri);
+        String host = hostKey(iri);
+        if (host != null) {
+            failures.remove(host);
+        }
+    }
+
+    /**
+     * Check if a failure shows that an IRI cannot be reached (unknown host,
+     * refused connection, connect or read timeout), as opposed to e.g. a
+     * syntax error of the document.
+     *
+     * @param cause The cause of the failure.
+     * @return True if the IRI cannot be reached.
+     */
+    public static boolean isUnreachable(Throwable cause) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof UnknownHostException
+                    || t instanceof ConnectException
+                    || t instanceof NoRouteToHostException
+                    || t instanceof InterruptedIOException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a failure shows that the host cannot be connected to (unknown
+     * host, refused connection, no route, connect timeout). A read timeout
+     * does not count: the host answered, but the resource is slow.
+     *
+     * @param cause The cause of the failure.
+     * @return True if the host cannot be connected to.
+     */
+    public static boolean isHostUnreachable(Throwable cause) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof UnknownHostException
+                    || t instanceof ConnectException
+                    || t instanceof NoRouteToHostException
+                    || t instanceof ConnectTimeoutException
+                    || (t instanceof SocketTimeoutException && String.valueOf(t.getMessage()).contains("connect timed out"))) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Clear the memo.
+     *
+     */
+    public synchronized void clear() {
+        failures.clear();
+    }
+
+    private void record(String key) {
+        Failure failure = failures.get(key);
+        if (failure == null) {
+            failure = new Failure();
+            failures.put(key, failure);
+        }
+        long backoff = initialBackoff;
+        for (int i = 0; i < failure.count && backoff < maxBackoff; i++) {
+            backoff *= 2;
+        }
+        failure.count++;
+        failure.retryAt = System.currentTimeMillis() + Math.min(backoff, maxBackoff);
+    }
+
+    /**
+     * Remove the failures whose back-off period has ended long ago.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Failure> it = failures.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().retryAt + maxBackoff < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String hostKey(String iri) {
+        try {
+            String host = URI.create(iri).getHost();
+            return host == null ? null : "host:" + host.toLowerCase();
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * The consecutive failures of an IRI or host.
+     */
+    private static class Failure {
+
+        int count; // The number of consecutive failures
+        long retryAt; // The end of the back-off period
+    }
+}
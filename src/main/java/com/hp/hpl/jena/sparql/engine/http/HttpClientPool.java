@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.io.IOException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * The HTTP client shared by all the SPARQL-LD network operations: the
+ * dereferencing of IRIs, the revalidation of stored resources and the queries
+ * sent to SPARQL endpoints. The client keeps alive and reuses its connections
+ * (with a limit on the connections per host) and asks for gzip/deflate
+ * compressed responses. It is not installed as the default client of Jena
+ * (HttpOp), since Jena's HttpQuery writes its timeouts into the parameters of
+ * the client it uses; the timeouts of a request are set in the parameters of
+ * the request instead.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class HttpClientPool {
+
+    /**
+     * The default maximum number of open connections.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    /**
+     * The default maximum number of open connections per host.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    /**
+     * The default connection timeout (in milliseconds).
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    /**
+     * The default read timeout (in milliseconds).
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static int readTimeout = DEFAULT_READ_TIMEOUT;
+    private static PoolingClientConnectionManager manager; // The pool of connections (null if not yet created)
+    private static DefaultHttpClient client; // The shared client (null if not yet created)
+
+    private HttpClientPool() {
+    }
+
+    /**
+     * Return the shared HTTP client, creating it on first use.
+     *
+     * @return The shared HTTP client.
+     */
+    public static synchronized HttpClient getClient() {
+        if (client == null) {
+            manager = new PoolingClientConnectionManager(SchemeRegistryFactory.createSystemDefault());
+            manager.setMaxTotal(maxConnections);
+            manager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+            client = new DefaultHttpClient(manager);
+            HttpParams params = client.getParams();
+            HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+            HttpConnectionParams.setSoTimeout(params, readTimeout);
+            client.addRequestInterceptor(new RequestAcceptEncoding());
+            client.addResponseInterceptor(new ResponseContentEncoding());
+        }
+        return client;
+    }
+
+    /**
+     * Send an HTTP GET request using the shared client. The caller must
+     * consume (or close) the entity of the response, so that its connection
+     * returns to the pool.
+     *
+     * @param iri The IRI to get.
+     * @param accept The value of the Accept header.
+     * @param validators The caching metadata whose validators make the request
+     * conditional (or null).
+     * @return The HTTP response.
+     * @throws IOException If the request fails.
+     */
+    public static HttpResponse execGet(String iri, String accept, ResourceMetadata validators) throws IOException {
+        return execute(createGet(iri, accept, validators));
+    }
+
+    /**
+     * Create an HTTP GET request. A request whose response will not be read to
+     * its end can be aborted, instead of consuming the rest of the response.
+     *
+     * @param iri The IRI to get.
+     * @param accept The value of the Accept header.
+     * @param validators The caching metadata whose validators make the request
+     * conditional (or null).
+     * @return The HTTP request.
+     */
+    public static HttpGet createGet(String iri, String accept, ResourceMetadata validators) {
+        HttpGet request = new HttpGet(iri);
+        request.setHeader("Accept", accept);
+        if (validators != null) {
+            validators.applyValidators(request);
+        }
+        return request;
+    }
+
+    /**
+     * Send an HTTP request using the shared client. The caller must consume
+     * (or close) the entity of the response, or abort the request.
+     *
+     * @param request The HTTP request.
+     * @return The HTTP response.
+     * @throws IOException If the request fails.
+     */
+    public static HttpResponse execute(HttpUriRequest request) throws IOException {
+        try {
+            return getClient().execute(request);
+        } catch (IOException | RuntimeException ex) {
+            request.abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Set the limits and the timeouts of the shared client. The client is
+     * re-created on its next use.
+     *
+     * @param maxConnections The maximum number of open connections.
+     * @param maxConnectionsPerHost The maximum number of open connections per
+     * host.
+     * @param connectTimeout The connection timeout (in milliseconds).
+     * @param readTimeout The read timeout (in milliseconds).
+     */
+    public static synchronized void configure(int maxConnections, int maxConnectionsPerHost, int connectTimeout, int readTimeout) {
+        HttpClientPool.maxConnections = Math.max(1, maxConnections);
+        HttpClientPool.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        HttpClientPool.connectTimeout = connectTimeout;
+        HttpClientPool.readTimeout = readTimeout;
+        shutdown();
+    }
+
+    /**
+     * Close all the connections of the shared client. The client is re-created
+     * on its next use.
+     *
+     */
+    public static synchronized void shutdown() {
+        if (client != null) {
+            manager.shutdown();
+            client = null;
+            manager = null;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.resultset.ResultSetException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Streaming reader of SPARQL 1.1 Query Results JSON. Jena's JSON reader
+ * builds the whole JSON document in memory; this reader parses the bindings
+ * one by one while the result set is consumed (if the "head" member comes
+ * before the "results" member, as usual).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class JSONResultsReader {
+
+    private static final JsonFactory FACTORY = new JsonFactory(); // Thread-safe once configured
+
+    private JSONResultsReader() {
+    }
+
+    /**
+     * Read a SELECT result set.
+     *
+     * @param in The JSON document.
+     * @return The result set, whose bindings are parsed while it is consumed.
+     * @throws ResultSetException If the document is not a SELECT result set.
+     */
+    public static ResultSet read(InputStream in) {
+        try {
+            JsonParser parser = FACTORY.createParser(in);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new ResultSetException("SPARQL JSON results: expected an object");
+            }
+            Map<String, Node> bnodes = new HashMap<>();
+            List<String> vars = null;
+            List<Binding> buffered = null; // the bindings read before the "head" member
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (field.equals("head") && token == JsonToken.START_OBJECT) {
+                    vars = readHead(parser);
+                } else if (field.equals("results") && token == JsonToken.START_OBJECT) {
+                    if (!moveToBindings(parser)) {
+                        buffered = new ArrayList<>();
+                        continue;
+                    }
+                    BindingIterator bindings = new BindingIterator(parser, bnodes);
+                    if (vars != null) {
+                        return new ResultSetStream(vars, null, bindings);
+                    }
+                    buffered = new ArrayList<>();
+                    while (bindings.hasNext()) {
+                        buffered.add(bindings.next());
+                    }
+                    skipFields(parser); // the rest of the "results" member
+                } else if (field.equals("boolean")) {
+                    throw new ResultSetException("SPARQL JSON results: not a SELECT result set");
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            parser.close();
+            if (buffered == null) {
+                throw new ResultSetException("SPARQL JSON results: no \"results\" member");
+            }
+            if (vars == null) {
+                Set<String> found = new LinkedHashSet<>();
+                for (Binding binding : buffered) {
+                    Iterator<Var> it = binding.vars();
+                    while (it.hasNext()) {
+                        found.add(it.next().getVarName());
+                    }
+                }
+                vars = new ArrayList<>(found);
+            }
+            return new ResultSetStream(vars, null, buffered.iterator());
+        } catch (IOException ex) {
+            throw new ResultSetException("SPARQL JSON results: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static List<String> readHead(JsonParser parser) throws IOException {
+        List<String> vars = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (field.equals("vars") && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                    vars.add(parser.getText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return vars;
+    }
+
+    /**
+     * Move the parser inside the "bindings" array of the "results" member.
+     *
+     * @return True if the array was found, false if the end of the "results"
+     * member has been reached.
+     */
+    private static boolean moveToBindings(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (field.equals("bindings") && token == JsonToken.START_ARRAY) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    private static void skipFields(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * The bindings of the "bindings" array, parsed on demand.
+     */
+    private static class BindingIterator implements Iterator<Binding> {
+
+        private final JsonParser parser; // The parser, positioned inside the array
+        private final Map<String, Node> bnodes; // The blank nodes of the document, by label
+        private Binding next; // The next binding (or null)
+        private boolean done; // Set when the end of the array has been reached
+
+        BindingIterator(JsonParser parser, Map<String, Node> bnodes) {
+            this.parser = parser;
+            this.bnodes = bnodes;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (done) {
+                return false;
+            }
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    done = true;
+                    return false;
+                }
+                next = readBinding();
+                return true;
+            } catch (IOException ex) {
+                throw new ResultSetException("SPARQL JSON results: " + ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public Binding next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Binding binding = next;
+            next = null;
+            return binding;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Binding readBinding() throws IOException {
+            BindingMap binding = BindingFactory.create();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                Var var = Var.alloc(parser.getCurrentName());
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new ResultSetException("SPARQL JSON results: expected an RDF term for ?" + var.getVarName());
+                }
+                binding.add(var, readTerm());
+            }
+            return binding;
+        }
+
+        private Node readTerm() throws IOException {
+            String type = null;
+            String value = null;
+            String lang = null;
+            String datatype = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "type":
+                        type = parser.getText();
+                        break;
+                    case "value":
+                        value = parser.getText();
+                        break;
+                    case "xml:lang":
+                        lang = parser.getText();
+                        break;
+                    case "datatype":
+                        datatype = parser.getText();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (type == null || value == null) {
+                throw new ResultSetException("SPARQL JSON results: RDF term without type or value");
+            }
+            switch (type) {
+                case "uri":
+                    return NodeFactory.createURI(value);
+                case "bnode":
+                    Node bnode = bnodes.get(value);
+                    if (bnode == null) {
+                        bnode = NodeFactory.createAnon();
+                        bnodes.put(value, bnode);
+                    }
+                    return bnode;
+                case "literal":
+                case "typed-literal":
+                    if (lang != null && !lang.isEmpty()) {
+                        return NodeFactory.createLiteral(value, lang, false);
+                    }
+                    if (datatype != null) {
+                        return NodeFactory.createLiteral(value, TypeMapper.getInstance().getSafeTypeByName(datatype));
+                    }
+                    return NodeFactory.createLiteral(value);
+                default:
+                    throw new ResultSetException("SPARQL JSON results: unknown RDF term type: " + type);
+            }
+        }
+    }
+}
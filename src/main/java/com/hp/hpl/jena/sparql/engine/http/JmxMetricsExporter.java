@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes the metrics of the evaluation of SERVICE operators as the
+ * attributes of an MBean of the platform MBean server (by default
+ * "com.hp.hpl.jena.sparql.engine.http:type=ServiceMetrics"), with the
+ * operations "reset" and "dump".
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class JmxMetricsExporter implements MetricsExporter, DynamicMBean {
+
+    /**
+     * The default name of the MBean.
+     */
+    public static final String DEFAULT_NAME = "com.hp.hpl.jena.sparql.engine.http:type=ServiceMetrics";
+    private final String name; // The name of the MBean
+    private ServiceMetrics metrics; // The published metrics (null if not started)
+    private ObjectName objectName; // The name of the registered MBean (null if not registered)
+
+    /**
+     * Create a new exporter with the default MBean name.
+     *
+     */
+    public JmxMetricsExporter() {
+        this(DEFAULT_NAME);
+    }
+
+    /**
+     * Create a new exporter.
+     *
+     * @param name The name of the MBean.
+     */
+    public JmxMetricsExporter(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public synchronized void start(ServiceMetrics metrics) {
+        this.metrics = metrics;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(name);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(this, on);
+            objectName = on;
+        } catch (JMException ex) {
+            Logger.getLogger(JmxMetricsExporter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            Logger.getLogger(JmxMetricsExporter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        objectName = null;
+    }
+
+    private synchronized ServiceMetrics metrics() {
+        return metrics == null ? new ServiceMetrics() : metrics;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = metrics().snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = metrics().snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("reset".equals(actionName)) {
+            metrics().reset();
+            return null;
+        } else if ("dump".equals(actionName)) {
+            return metrics().dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> values = metrics().snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false);
+        }
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("reset", "Set all the counters and histograms to zero", null, "void", MBeanOperationInfo.ACTION),
+            new MBeanOperationInfo("dump", "Return the metrics as text", null, String.class.getName(), MBeanOperationInfo.INFO)
+        };
+        return new MBeanInfo(JmxMetricsExporter.class.getName(), "Metrics of the evaluation of SERVICE operators", attributes, null, operations, null);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file of lines, persisted as a snapshot plus a write-behind log. The
+ * appended lines are written to the log (the snapshot file followed by
+ * ".log") by a single background thread, which writes all the lines waiting
+ * at the time in one batch (group commit), so the callers never wait for the
+ * disk. At startup the snapshot and the log are read, and the owner can
+ * compact them into a new snapshot, which replaces the old one atomically
+ * (write to a temporary file and rename).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class LineJournal {
+
+    private static final String END = new String("END"); // Stops the writer thread (compared by identity)
+    private final File snapshot; // The snapshot file
+    private final File log; // The log file
+    private final BlockingQueue<String> queue; // The lines waiting to be written
+    private final Object lock = new Object(); // Guards pending, writer and the queue
+    private final Object fileLock = new Object(); // Guards the files
+    private long pending; // The number of lines appended but not yet written
+    private Thread writer; // The writer thread (null until the first append, or after close)
+    private boolean hookAdded; // Set when the shutdown hook has been added
+
+    /**
+     * Create a journal. Nothing is read or written until load or append is
+     * called.
+     *
+     * @param file The snapshot file path.
+     */
+    public LineJournal(String file) {
+        this.snapshot = new File(file);
+        this.log = new File(file + ".log");
+        this.queue = new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * Read the lines of the snapshot followed by the lines of the log.
+     *
+     * @return The lines (in order).
+     */
+    public List<String> load() {
+        List<String> lines = new ArrayList<>();
+        synchronized (fileLock) {
+            read(snapshot, lines);
+            read(log, lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Read the lines of the snapshot.
+     *
+     * @return The lines (in order).
+     */
+    public List<String> loadSnapshot() {
+        List<String> lines = new ArrayList<>();
+        synchronized (fileLock) {
+            read(snapshot, lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Read the lines of the log (that have not been compacted into the
+     * snapshot).
+     *
+     * @return The lines (in order).
+     */
+    public List<String> loadLog() {
+        List<String> lines = new ArrayList<>();
+        synchronized (fileLock) {
+            read(log, lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Check if the log contains lines that have not been compacted into the
+     * snapshot.
+     *
+     * @return True if the log is not empty.
+     */
+    public boolean hasLog() {
+        synchronized (fileLock) {
+            return log.length() > 0;
+        }
+    }
+
+    /**
+     * Replace the snapshot with the given lines and clear the log. The pending
+     * appended lines are written first, so they must be included in the given
+     * lines.
+     *
+     * @param lines The lines of the new snapshot.
+     */
+    public void compact(List<String> lines) {
+        flush();
+        synchronized (fileLock) {
+            File tmp = new File(snapshot.getPath() + ".tmp");
+            try {
+                try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF8"))) {
+                    for (String line : lines) {
+                        out.write(line);
+                        out.newLine();
+                    }
+                }
+                try {
+                    Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                // A crash before this point replays the log again, which is harmless (compaction removes duplicates)
+                Files.deleteIfExists(log.toPath());
+            } catch (IOException ex) {
+                Logger.getLogger(LineJournal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Append a line to the log. The line is written by the writer thread.
+     *
+     * @param line The line (without line separators).
+     */
+    public void append(String line) {
+        synchronized (lock) {
+            if (writer == null) {
+                startWriter();
+            }
+            pending++;
+            queue.add(line);
+        }
+    }
+
+    /**
+     * Wait until all the appended lines have been written.
+     *
+     */
+    public void flush() {
+        synchronized (lock) {
+            while (pending > 0 && writer != null) {
+                try {
+                    lock.wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the pending lines and stop the writer thread. A later append
+     * starts a new writer thread.
+     *
+     */
+    public void close() {
+        Thread thread;
+        synchronized (lock) {
+            thread = writer;
+            if (thread == null) {
+                return;
+            }
+            writer = null;
+            queue.add(END);
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String getFilepath() {
+        return snapshot.getPath();
+    }
+
+    private void startWriter() {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SPARQL-LD journal " + snapshot.getName());
+        thread.setDaemon(true);
+        thread.start();
+        writer = thread;
+        if (!hookAdded) {
+            // Write the pending lines when the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            }));
+            hookAdded = true;
+        }
+    }
+
+    /**
+     * Write the queued lines, one batch at a time, until END is read (runs in
+     * the writer thread).
+     */
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        boolean end = false;
+        while (!end) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            queue.drainTo(batch);
+            for (Iterator<String> it = batch.iterator(); it.hasNext();) {
+                if (it.next() == END) {
+                    it.remove();
+                    end = true;
+                }
+            }
+            int lines = batch.size();
+            if (lines > 0) {
+                write(batch);
+            }
+            synchronized (lock) {
+                pending -= lines; // also on failure, so that flush does not wait forever
+                lock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Append a batch of lines to the log and force them to the disk.
+     *
+     * @param batch The lines.
+     */
+    private void write(List<String> batch) {
+        synchronized (fileLock) {
+            try (FileOutputStream fout = new FileOutputStream(log, true);
+                    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fout, "UTF8"))) {
+                for (String line : batch) {
+                    out.write(line);
+                    out.newLine();
+                }
+                out.flush();
+                fout.getChannel().force(false);
+            } catch (IOException ex) {
+                Logger.getLogger(LineJournal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static void read(File file, List<String> lines) {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"))) {
+            String str;
+            while ((str = in.readLine()) != null) {
+                lines.add(str);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(LineJournal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
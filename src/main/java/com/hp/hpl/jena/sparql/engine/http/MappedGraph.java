@@ -0,0 +1,910 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Capabilities;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.query.QueryExecException;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.shared.ClosedException;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.jena.riot.system.StreamRDF;
+
+/**
+ * A read-only RDF graph that is queried in place in a memory-mapped index
+ * file, so a large RDF dump is converted once (see Builder) and then queried
+ * without being loaded into the heap. The index is similar to HDT:
+ * <ul>
+ * <li>A dictionary of the terms, sorted by their encoding and front-coded in
+ * blocks of 16 terms (each term stores only the suffix it does not share with
+ * the previous term of its block), so a term is found by a binary search over
+ * the blocks.</li>
+ * <li>The triples as term IDs sorted in the SPO order, and the positions of
+ * the triples sorted in the POS and OSP orders, all bit-packed with the
+ * minimum number of bits, so every triple pattern is answered by a binary
+ * search.</li>
+ * </ul>
+ * Literals are matched by term (as in SPARQL), and not by value.
+ *
+ * The index is built in the heap and each section of the file is mapped as a
+ * single buffer, so a section must be smaller than 2 GB (MAX_SECTION). This
+ * bounds an index to roughly 200 million triples (more if there are few
+ * distinct terms); the Builder stops as soon as a resource exceeds a limit
+ * (see Builder.isTooLarge), and MappedIndexes then reports the resource as
+ * too large (it is not loaded in the heap).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class MappedGraph extends GraphBase {
+
+    /**
+     * The maximum size (in bytes) of a section of an index file.
+     */
+    public static final long MAX_SECTION = Integer.MAX_VALUE - 8;
+    private static final long MAGIC = 0x3150414d444c5053L; // "SPLDMAP1" (little-endian)
+    private static final int HEADER_SIZE = 128; // The size of the header of the file
+    private static final int BLOCK_SIZE = 16; // The number of terms of a dictionary block
+    private static final int CACHE_SIZE = 4096; // The number of slots of the cache of decoded terms
+    private static final byte URI = 0; // The kind of a URI term
+    private static final byte BLANK = 1; // The kind of a blank node term
+    private static final byte LITERAL = 2; // The kind of a literal term
+    private static final Capabilities CAPABILITIES = new Capabilities() {
+        @Override
+        public boolean sizeAccurate() {
+            return true;
+        }
+
+        @Override
+        public boolean addAllowed() {
+            return false;
+        }
+
+        @Override
+        public boolean addAllowed(boolean every) {
+            return false;
+        }
+
+        @Override
+        public boolean deleteAllowed() {
+            return false;
+        }
+
+        @Override
+        public boolean deleteAllowed(boolean every) {
+            return false;
+        }
+
+        @Override
+        public boolean iteratorRemoveAllowed() {
+            return false;
+        }
+
+        @Override
+        public boolean canBeEmpty() {
+            return true;
+        }
+
+        @Override
+        public boolean findContractSafe() {
+            return true;
+        }
+
+        @Override
+        public boolean handlesLiteralTyping() {
+            return false;
+        }
+    };
+    private final File file; // The index file
+    private final int terms; // The number of terms
+    private final long size; // The number of triples
+    private final ByteBuffer blocks; // The offsets (longs) of the dictionary blocks
+    private final ByteBuffer dictionary; // The front-coded dictionary blocks
+    private final Packed spo; // The triples, sorted by subject, predicate and object
+    private final Packed pos; // The positions of the triples, sorted by predicate, object and subject
+    private final Packed osp; // The positions of the triples, sorted by object, subject and predicate
+    private final CachedTerm[] decoded; // A cache of decoded terms (by ID modulo its size)
+    private int users; // The number of running finds and open iterators
+    private boolean closing; // True if the graph has been closed (it is unmapped when not in use)
+    private boolean unmapped; // True if the buffers have been unmapped
+
+    private MappedGraph(File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException("Not an index file: " + file);
+            }
+            this.terms = header.getInt(12);
+            this.size = header.getLong(16);
+            int termBits = header.getInt(24);
+            int tripleBits = header.getInt(28);
+            ByteBuffer prefixes = map(channel, header.getLong(32), header.getLong(40));
+            this.blocks = map(channel, header.getLong(48), header.getLong(56));
+            this.dictionary = map(channel, header.getLong(64), header.getLong(72));
+            this.spo = new Packed(map(channel, header.getLong(80), header.getLong(88)), termBits);
+            this.pos = new Packed(map(channel, header.getLong(96), header.getLong(104)), tripleBits);
+            this.osp = new Packed(map(channel, header.getLong(112), header.getLong(120)), tripleBits);
+            for (int i = prefixes.getInt(0), at = 4; i > 0; i--) {
+                byte[] prefix = new byte[prefixes.getInt(at)];
+                at = read(prefixes, at + 4, prefix);
+                byte[] uri = new byte[prefixes.getInt(at)];
+                at = read(prefixes, at + 4, uri);
+                getPrefixMapping().setNsPrefix(new String(prefix, StandardCharsets.UTF_8), new String(uri, StandardCharsets.UTF_8));
+            }
+            unmap(header);
+            unmap(prefixes);
+        }
+        this.decoded = new CachedTerm[CACHE_SIZE];
+    }
+
+    /**
+     * Open an index file.
+     *
+     * @param file The index file (see Builder).
+     * @return The graph.
+     * @throws IOException If the file cannot be mapped or is not an index.
+     */
+    public static MappedGraph open(File file) throws IOException {
+        return new MappedGraph(file);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        if (length > MAX_SECTION) {
+            throw new IOException("Index section too large: " + length + " bytes");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int read(ByteBuffer buffer, int at, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(at + i);
+        }
+        return at + bytes.length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Return the number of terms of the dictionary.
+     *
+     * @return The number of terms.
+     */
+    public int getTerms() {
+        return terms;
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * Close the graph. The file is unmapped as soon as the running finds and
+     * the open iterators of the graph have finished, so a file that is
+     * replaced or deleted does not stay mapped until the buffers are garbage
+     * collected.
+     */
+    @Override
+    public void close() {
+        super.close();
+        synchronized (this) {
+            closing = true;
+            if (users == 0) {
+                unmapAll();
+            }
+        }
+    }
+
+    /**
+     * Start a use of the buffers (a find, until its iterator is closed or
+     * exhausted).
+     */
+    private synchronized void acquire() {
+        if (closing) {
+            throw new ClosedException("The index has been closed", this);
+        }
+        users++;
+    }
+
+    /**
+     * End a use of the buffers, unmapping them if the graph has been closed.
+     */
+    private synchronized void release() {
+        users--;
+        if (users == 0 && closing) {
+            unmapAll();
+        }
+    }
+
+    private void unmapAll() {
+        if (!unmapped) {
+            unmapped = true;
+            for (ByteBuffer buffer : new ByteBuffer[]{blocks, dictionary, spo.buffer, pos.buffer, osp.buffer}) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Unmap a buffer of a file, if the JVM allows it (else the file is
+     * unmapped when the buffer is garbage collected). The buffer must not be
+     * used again.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            try { // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException ex) { // Java 7 and 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(MappedGraph.class.getName()).log(Level.FINE, "Cannot unmap an index buffer", ex);
+        }
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+        acquire();
+        ExtendedIterator<Triple> triples = null;
+        try {
+            triples = search(pattern);
+        } finally {
+            if (triples == null) {
+                release();
+            }
+        }
+        return triples;
+    }
+
+    /**
+     * Return the triples that match a pattern. The iterator releases the use
+     * of the buffers when it is closed or exhausted.
+     */
+    private ExtendedIterator<Triple> search(Triple pattern) {
+        long s = id(pattern.getSubject());
+        long p = id(pattern.getPredicate());
+        long o = id(pattern.getObject());
+        if (s == -1 || p == -1 || o == -1) {
+            return find(null, 0, 0);
+        }
+        if (s >= 0) {
+            if (p < 0 && o >= 0) {
+                return find(osp, CompactGraph.OSP, new long[]{o, s});
+            }
+            return find(null, CompactGraph.SPO, p < 0 ? new long[]{s} : o < 0 ? new long[]{s, p} : new long[]{s, p, o});
+        } else if (p >= 0) {
+            return find(pos, CompactGraph.POS, o < 0 ? new long[]{p} : new long[]{p, o});
+        } else if (o >= 0) {
+            return find(osp, CompactGraph.OSP, new long[]{o});
+        }
+        return find(null, CompactGraph.SPO, new long[0]);
+    }
+
+    /**
+     * Return the ID of a node of a triple pattern.
+     *
+     * @return The ID, -2 for a wildcard (or a variable), or -1 for a term that
+     * is not in the dictionary (and so has no match).
+     */
+    private long id(Node node) {
+        return node == null || !node.isConcrete() ? -2 : lookup(encode(node));
+    }
+
+    /**
+     * Return the triples of an index whose first IDs are equal to a prefix.
+     *
+     * @param positions The positions of the triples in the order of the index,
+     * or null for the SPO order.
+     * @param order The positions of the subject, predicate and object in the
+     * order of the index.
+     * @param prefix The prefix (in the order of the index).
+     * @return The triples.
+     */
+    private ExtendedIterator<Triple> find(Packed positions, int[] order, long[] prefix) {
+        return find(positions, bound(positions, order, prefix, false), bound(positions, order, prefix, true));
+    }
+
+    /**
+     * Return the triples of an index between two positions.
+     */
+    private ExtendedIterator<Triple> find(final Packed positions, final long from, final long to) {
+        return new NiceIterator<Triple>() {
+            private long next = from; // The next triple of the index
+            private boolean released; // True if the use of the buffers has been released
+
+            @Override
+            public boolean hasNext() {
+                if (next < to) {
+                    return true;
+                }
+                close();
+                return false;
+            }
+
+            @Override
+            public Triple next() {
+                if (next >= to || released) {
+                    throw new NoSuchElementException();
+                }
+                long t = positions == null ? next : positions.get(next);
+                next++;
+                return Triple.create(decode(spo.get(t * 3)), decode(spo.get(t * 3 + 1)), decode(spo.get(t * 3 + 2)));
+            }
+
+            @Override
+            public void close() {
+                if (!released) {
+                    released = true;
+                    release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Binary search for the first triple of an index that is greater than
+     * (or, if upper is false, not less than) a prefix.
+     */
+    private long bound(Packed positions, int[] order, long[] prefix, boolean upper) {
+        long low = 0;
+        long high = size;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long t = positions == null ? middle : positions.get(middle);
+            int cmp = 0;
+            for (int i = 0; i < prefix.length && cmp == 0; i++) {
+                // The component of the triple at position i of the order of the index
+                int component = order[0] == i ? 0 : order[1] == i ? 1 : 2;
+                cmp = Long.compare(spo.get(t * 3 + component), prefix[i]);
+            }
+            if (cmp < 0 || (upper && cmp == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the ID of a term.
+     *
+     * @param term The encoding of the term.
+     * @return The ID, or -1 if the term is not in the dictionary.
+     */
+    private long lookup(byte[] term) {
+        if (terms == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = (terms + BLOCK_SIZE - 1) / BLOCK_SIZE - 1;
+        // Find the last block whose first term is not greater than the term
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            int at = (int) blocks.getLong(middle * 8);
+            int length = varint(dictionary, at);
+            if (compare(dictionary, at + varintSize(length), length, term) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int first = low * BLOCK_SIZE;
+        int last = Math.min(terms, first + BLOCK_SIZE);
+        byte[] current = new byte[0];
+        int at = (int) blocks.getLong(low * 8);
+        for (int id = first; id < last; id++) {
+            int shared = 0;
+            if (id > first) {
+                shared = varint(dictionary, at);
+                at += varintSize(shared);
+            }
+            int suffix = varint(dictionary, at);
+            at += varintSize(suffix);
+            byte[] next = Arrays.copyOf(current, shared + suffix);
+            at = read(dictionary, at, suffix, next, shared);
+            current = next;
+            int cmp = compare(current, term);
+            if (cmp == 0) {
+                return id;
+            } else if (cmp > 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the term of an ID.
+     *
+     * @param id The ID.
+     * @return The term.
+     */
+    private Node decode(long id) {
+        int slot = (int) (id % CACHE_SIZE);
+        CachedTerm cached = decoded[slot];
+        if (cached != null && cached.id == id) {
+            return cached.node;
+        }
+        int block = (int) (id / BLOCK_SIZE);
+        int at = (int) blocks.getLong(block * 8);
+        byte[] current = new byte[0];
+        for (long i = (long) block * BLOCK_SIZE; i <= id; i++) {
+            int shared = 0;
+            if (i > (long) block * BLOCK_SIZE) {
+                shared = varint(dictionary, at);
+                at += varintSize(shared);
+            }
+            int suffix = varint(dictionary, at);
+            at += varintSize(suffix);
+            byte[] next = Arrays.copyOf(current, shared + suffix);
+            at = read(dictionary, at, suffix, next, shared);
+            current = next;
+        }
+        Node node = toNode(current);
+        decoded[slot] = new CachedTerm(id, node);
+        return node;
+    }
+
+    private static int read(ByteBuffer buffer, int at, int length, byte[] bytes, int offset) {
+        for (int i = 0; i < length; i++) {
+            bytes[offset + i] = buffer.get(at + i);
+        }
+        return at + length;
+    }
+
+    /**
+     * Compare the bytes of a term in a buffer with a term.
+     */
+    private static int compare(ByteBuffer buffer, int at, int length, byte[] term) {
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(at + i) & 0xff) - (term[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - term.length;
+    }
+
+    /**
+     * Compare two terms by their unsigned bytes.
+     */
+    static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Return the encoding of a term: its kind, followed by the IRI or the
+     * blank node label, or by the lengths and bytes of the lexical form and
+     * the language, and the datatype IRI of a literal.
+     */
+    static byte[] encode(Node node) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (node.isURI()) {
+            out.write(URI);
+            write(out, node.getURI().getBytes(StandardCharsets.UTF_8));
+        } else if (node.isBlank()) {
+            out.write(BLANK);
+            write(out, node.getBlankNodeLabel().getBytes(StandardCharsets.UTF_8));
+        } else {
+            out.write(LITERAL);
+            byte[] lexical = node.getLiteralLexicalForm().getBytes(StandardCharsets.UTF_8);
+            byte[] lang = node.getLiteralLanguage().getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, lexical.length);
+            write(out, lexical);
+            writeVarint(out, lang.length);
+            write(out, lang);
+            if (node.getLiteralDatatypeURI() != null) {
+                write(out, node.getLiteralDatatypeURI().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the term of an encoding (see encode).
+     */
+    private static Node toNode(byte[] term) {
+        if (term[0] == URI) {
+            return NodeFactory.createURI(new String(term, 1, term.length - 1, StandardCharsets.UTF_8));
+        } else if (term[0] == BLANK) {
+            return NodeFactory.createAnon(AnonId.create(new String(term, 1, term.length - 1, StandardCharsets.UTF_8)));
+        }
+        ByteBuffer in = ByteBuffer.wrap(term);
+        int at = 1;
+        int length = varint(in, at);
+        at += varintSize(length);
+        String lexical = new String(term, at, length, StandardCharsets.UTF_8);
+        at += length;
+        length = varint(in, at);
+        at += varintSize(length);
+        String lang = new String(term, at, length, StandardCharsets.UTF_8);
+        at += length;
+        String datatype = new String(term, at, term.length - at, StandardCharsets.UTF_8);
+        RDFDatatype type = datatype.isEmpty() ? null : TypeMapper.getInstance().getSafeTypeByName(datatype);
+        return NodeFactory.createLiteral(lexical, lang, type);
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int varint(ByteBuffer buffer, int at) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = buffer.get(at++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Return the number of bits needed by the values below a bound.
+     */
+    private static int bits(long bound) {
+        return Math.max(1, 64 - Long.numberOfLeadingZeros(Math.max(1, bound - 1)));
+    }
+
+    /**
+     * An array of unsigned integers of a fixed number of bits, packed in a
+     * (little-endian) buffer. The buffer is padded with 8 bytes, so each value
+     * is read with a single getLong.
+     */
+    private static final class Packed {
+
+        private final ByteBuffer buffer; // The packed values
+        private final int bits; // The number of bits of a value
+        private final long mask; // The mask of the bits of a value
+
+        Packed(ByteBuffer buffer, int bits) {
+            this.buffer = buffer;
+            this.bits = bits;
+            this.mask = (1L << bits) - 1;
+        }
+
+        long get(long index) {
+            long bit = index * bits;
+            return (buffer.getLong((int) (bit >>> 3)) >>> (bit & 7)) & mask;
+        }
+
+        /**
+         * Pack values.
+         *
+         * @param values The values (the first count).
+         * @param count The number of values.
+         * @param bits The number of bits of a value (at most 56).
+         * @return The packed values, padded with 8 bytes.
+         */
+        static byte[] pack(int[] values, long count, int bits) {
+            byte[] packed = new byte[(int) ((count * bits + 7) / 8) + 8];
+            for (long i = 0; i < count; i++) {
+                long bit = i * bits;
+                int at = (int) (bit >>> 3);
+                int shift = (int) (bit & 7);
+                long value = (values[(int) i] & 0xffffffffL) << shift;
+                for (int k = 0; k * 8 < bits + shift; k++) {
+                    packed[at + k] |= (byte) (value >>> (k * 8));
+                }
+            }
+            return packed;
+        }
+    }
+
+    /**
+     * A decoded term.
+     */
+    private static final class CachedTerm {
+
+        final long id; // The ID of the term
+        final Node node; // The term
+
+        CachedTerm(long id, Node node) {
+            this.id = id;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Builds an index file from a stream of triples (e.g. the triples of a Web
+     * resource parsed by ReadRDFFromIRI). The distinct terms and the triples
+     * (as integer IDs) are kept in memory until the index is written, which
+     * takes much less heap than an RDF model. If a section of the index would
+     * exceed MAX_SECTION, the builder throws a QueryExecException while
+     * receiving the triples and isTooLarge returns true.
+     */
+    public static class Builder implements StreamRDF {
+
+        private final HashMap<Node, Integer> node2id; // The IDs of the terms, in order of appearance
+        private final List<byte[]> encoded; // The encodings of the terms, by ID
+        private final Map<String, String> prefixes; // The prefixes
+        private int[] triples; // The triples (three IDs each)
+        private int count; // The number of triples
+        private long dictionaryBytes; // An upper bound of the size of the dictionary
+        private boolean tooLarge; // True if the index would exceed the limits
+
+        public Builder() {
+            this.node2id = new HashMap<>();
+            this.encoded = new ArrayList<>();
+            this.prefixes = new LinkedHashMap<>();
+            this.triples = new int[3 * 1024];
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            int s = id(triple.getSubject());
+            int p = id(triple.getPredicate());
+            int o = id(triple.getObject());
+            checkLimits(count + 1L);
+            if (count * 3 == triples.length) {
+                triples = Arrays.copyOf(triples, (int) Math.min(triples.length * 2L, MAX_SECTION / 3 * 3));
+            }
+            triples[count * 3] = s;
+            triples[count * 3 + 1] = p;
+            triples[count * 3 + 2] = o;
+            count++;
+        }
+
+        /**
+         * Check that the index of a number of triples (and of the terms
+         * received so far) does not exceed the size of a section.
+         */
+        private void checkLimits(long size) {
+            if (size * 3 > MAX_SECTION
+                    || packedSize(size * 3, bits(encoded.size())) > MAX_SECTION
+                    || packedSize(size, bits(size)) > MAX_SECTION
+                    || dictionaryBytes > MAX_SECTION) {
+                tooLarge = true;
+                throw new QueryExecException("The index would exceed " + MAX_SECTION + " bytes per section (" + size
+                        + " triples, " + encoded.size() + " terms)");
+            }
+        }
+
+        private static long packedSize(long count, int bits) {
+            return (count * bits + 7) / 8 + 8;
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            triple(quad.asTriple());
+        }
+
+        @Override
+        public void base(String base) {
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+            prefixes.put(prefix, iri);
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        private static boolean same(int[] a, int i, int[] b, int j) {
+            return a[i * 3] == b[j * 3] && a[i * 3 + 1] == b[j * 3 + 1] && a[i * 3 + 2] == b[j * 3 + 2];
+        }
+
+        private int id(Node node) {
+            Integer id = node2id.get(node);
+            if (id == null) {
+                byte[] term = encode(node);
+                id = encoded.size();
+                node2id.put(node, id);
+                encoded.add(term);
+                dictionaryBytes += term.length + 10; // at most two varints per term
+            }
+            return id;
+        }
+
+        /**
+         * Check if the resource has been rejected because its index would
+         * exceed the size of a section.
+         *
+         * @return True if the index is too large.
+         */
+        public boolean isTooLarge() {
+            return tooLarge;
+        }
+
+        /**
+         * Return the number of triples received.
+         *
+         * @return The number of triples.
+         */
+        public int getTriples() {
+            return count;
+        }
+
+        /**
+         * Write the index file.
+         *
+         * @param file The index file.
+         * @throws IOException If the file cannot be written.
+         */
+        public void write(File file) throws IOException {
+            // Sort the terms by their encoding, and renumber the triples
+            final byte[][] encoded = this.encoded.toArray(new byte[this.encoded.size()][]);
+            List<Integer> order = new ArrayList<>(encoded.length);
+            for (int i = 0; i < encoded.length; i++) {
+                order.add(i);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return MappedGraph.compare(encoded[a], encoded[b]);
+                }
+            });
+            int[] newId = new int[encoded.length];
+            for (int i = 0; i < newId.length; i++) {
+                newId[order.get(i)] = i;
+            }
+            int[] renumbered = new int[count * 3];
+            for (int i = 0; i < renumbered.length; i++) {
+                renumbered[i] = newId[triples[i]];
+            }
+
+            // Sort the triples (without duplicates) and their positions in the POS and OSP orders
+            int[] sorted = CompactGraph.permute(renumbered, count, CompactGraph.SPO);
+            int[] positions = CompactGraph.sortPositions(sorted, count);
+            int[] spo = new int[count * 3];
+            int size = 0;
+            for (int t = 0; t < count; t++) {
+                if (size == 0 || !same(spo, size - 1, sorted, positions[t])) {
+                    System.arraycopy(sorted, positions[t] * 3, spo, size * 3, 3);
+                    size++;
+                }
+            }
+            int[] pos = CompactGraph.sortPositions(CompactGraph.permute(spo, size, CompactGraph.POS), size);
+            int[] osp = CompactGraph.sortPositions(CompactGraph.permute(spo, size, CompactGraph.OSP), size);
+
+            // The front-coded dictionary
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            ByteBuffer blocks = ByteBuffer.allocate(((encoded.length + BLOCK_SIZE - 1) / BLOCK_SIZE) * 8).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] previous = null;
+            for (int i = 0; i < encoded.length; i++) {
+                byte[] term = encoded[order.get(i)];
+                if (i % BLOCK_SIZE == 0) {
+                    blocks.putLong(dictionary.size());
+                    writeVarint(dictionary, term.length);
+                    MappedGraph.write(dictionary, term);
+                } else {
+                    int shared = 0;
+                    while (shared < term.length && shared < previous.length && term[shared] == previous[shared]) {
+                        shared++;
+                    }
+                    writeVarint(dictionary, shared);
+                    writeVarint(dictionary, term.length - shared);
+                    dictionary.write(term, shared, term.length - shared);
+                }
+                previous = term;
+            }
+
+            ByteArrayOutputStream prefixBytes = new ByteArrayOutputStream();
+            ByteBuffer number = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            prefixBytes.write(number.putInt(0, prefixes.size()).array(), 0, 4);
+            for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+                for (String string : new String[]{prefix.getKey(), prefix.getValue()}) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    prefixBytes.write(number.putInt(0, bytes.length).array(), 0, 4);
+                    MappedGraph.write(prefixBytes, bytes);
+                }
+            }
+
+            int termBits = bits(encoded.length);
+            int tripleBits = bits(size);
+            byte[][] sections = {prefixBytes.toByteArray(), blocks.array(), dictionary.toByteArray(),
+                Packed.pack(spo, size * 3L, termBits), Packed.pack(pos, size, tripleBits), Packed.pack(osp, size, tripleBits)};
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(0, MAGIC);
+            header.putInt(8, 1);
+            header.putInt(12, encoded.length);
+            header.putLong(16, size);
+            header.putInt(24, termBits);
+            header.putInt(28, tripleBits);
+            long offset = HEADER_SIZE;
+            for (int i = 0; i < sections.length; i++) {
+                header.putLong(32 + i * 16, offset);
+                header.putLong(40 + i * 16, sections[i].length);
+                offset += sections[i].length;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                channel.truncate(0);
+                channel.write(header);
+                for (byte[] section : sections) {
+                    channel.write(ByteBuffer.wrap(section));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.query.QueryExecException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The memory-mapped indexes (see MappedGraph) of Web resources, stored in a
+ * directory and keyed by IRI. A resource is fetched and converted into an
+ * index once; the index is then queried in place by the later queries (also
+ * after a restart), with almost no heap, until it expires. Concurrent
+ * conversions of the same resource are performed only once. A resource whose
+ * index would exceed the size limits of MappedGraph is not indexed (and is
+ * never loaded in the heap): getOrBuild fails for it without fetching it
+ * again until the time-to-live of an index has passed (see isTooLarge).
+ *
+ * An index is opened once and shared by all queries. An index that expires,
+ * is rebuilt or is removed is closed, so its file is unmapped as soon as the
+ * queries that are reading it have finished (see MappedGraph.close).
+ *
+ * Used for the SERVICE operators when Service.serviceMappedIndex is set.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class MappedIndexes {
+
+    /**
+     * The default time-to-live (in milliseconds) of an index.
+     */
+    public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000;
+    private final File directory; // The directory of the index files
+    private final ConcurrentHashMap<String, Model> open; // The open indexes, by IRI
+    private final ConcurrentHashMap<String, FutureTask<Model>> building; // The indexes being built
+    private final ConcurrentHashMap<String, Long> tooLarge; // The resources too large for an index, and when to retry them
+    private volatile long ttl; // The time-to-live of an index
+
+    /**
+     * Initialize the indexes of a directory.
+     *
+     * @param directory The directory of the index files (created when the
+     * first index is built).
+     * @param ttl The time-to-live (in milliseconds) of an index.
+     */
+    public MappedIndexes(File directory, long ttl) {
+        this.directory = directory;
+        this.open = new ConcurrentHashMap<>();
+        this.building = new ConcurrentHashMap<>();
+        this.tooLarge = new ConcurrentHashMap<>();
+        this.ttl = ttl;
+    }
+
+    /**
+     * Initialize the indexes of a directory, using the default time-to-live.
+     *
+     * @param directory The directory of the index files.
+     */
+    public MappedIndexes(File directory) {
+        this(directory, DEFAULT_TTL);
+    }
+
+    /**
+     * Get the (read-only) RDF model of the index of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The RDF model, or null if there is no index (or it has expired).
+     */
+    public Model get(String iri) {
+        File file = indexFile(iri);
+        if (file.lastModified() + ttl < System.currentTimeMillis()) {
+            close(iri);
+            return null;
+        }
+        Model model = open.get(iri);
+        if (model != null) {
+            return model;
+        }
+        synchronized (this) { // do not open a file that is being replaced
+            model = open.get(iri);
+            if (model != null) {
+                return model;
+            }
+            try {
+                model = ModelFactory.createModelForGraph(MappedGraph.open(file));
+            } catch (IOException ex) {
+                Logger.getLogger(MappedIndexes.class.getName()).log(Level.WARNING, "Cannot open the index of " + iri, ex);
+                file.delete();
+                return null;
+            }
+            open.put(iri, model);
+            return model;
+        }
+    }
+
+    /**
+     * Get the RDF model of the index of a Web resource, fetching the resource
+     * and building its index if there is no index.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The (read-only) RDF model.
+     * @throws QueryExecException If the resource cannot be read, or it is too
+     * large for an index (see isTooLarge).
+     */
+    public Model getOrBuild(final String iri) {
+        Model model = get(iri);
+        if (model != null) {
+            return model;
+        }
+        Long retry = tooLarge.get(iri);
+        if (retry != null && retry > System.currentTimeMillis()) {
+            throw tooLarge(iri, null);
+        }
+        FutureTask<Model> task = new FutureTask<>(new Callable<Model>() {
+            @Override
+            public Model call() throws IOException {
+                return build(iri);
+            }
+        });
+        FutureTask<Model> running = building.putIfAbsent(iri, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                building.remove(iri, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new QueryExecException("Cannot index the IRI " + iri, cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new QueryExecException("Interrupted while indexing the IRI " + iri, ex);
+        }
+    }
+
+    /**
+     * Fetch a Web resource, convert it into an index and open the index.
+     */
+    private Model build(String iri) throws IOException {
+        ServiceMetrics.trace("Building the index of the IRI \"%s\"...", iri);
+        MappedGraph.Builder builder = new MappedGraph.Builder();
+        try {
+            new ReadRDFFromIRI(iri, builder);
+        } catch (RuntimeException ex) {
+            if (!builder.isTooLarge()) {
+                throw ex;
+            }
+            ServiceMetrics.trace("The IRI \"%s\" is too large for an index (%s triples)", iri, builder.getTriples());
+            tooLarge.put(iri, System.currentTimeMillis() + ttl);
+            throw tooLarge(iri, ex);
+        }
+        tooLarge.remove(iri);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the index directory " + directory);
+        }
+        File file = indexFile(iri);
+        File tmp = new File(directory, file.getName() + ".tmp" + Thread.currentThread().getId());
+        Model model;
+        try {
+            builder.write(tmp);
+            synchronized (this) {
+                close(iri); // the previous index (if any) must not stay mapped
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                model = ModelFactory.createModelForGraph(MappedGraph.open(file));
+                open.put(iri, model);
+            }
+        } finally {
+            tmp.delete();
+        }
+        ServiceMetrics.trace("The index of the IRI \"%s\" has %s triples (%s bytes)", iri, builder.getTriples(), file.length());
+        return model;
+    }
+
+    /**
+     * Close the open index of a Web resource (if any).
+     */
+    private void close(String iri) {
+        Model model = open.remove(iri);
+        if (model != null) {
+            model.close();
+        }
+    }
+
+    private static QueryExecException tooLarge(String iri, Throwable cause) {
+        return new QueryExecException("The IRI " + iri + " is too large for a memory-mapped index (a section would exceed "
+                + MappedGraph.MAX_SECTION + " bytes)", cause);
+    }
+
+    /**
+     * Check if a Web resource has been found too large for an index (within
+     * the time-to-live of an index).
+     *
+     * @param iri The IRI of the Web resource.
+     * @return True if the resource is too large for an index.
+     */
+    public boolean isTooLarge(String iri) {
+        Long retry = tooLarge.get(iri);
+        return retry != null && retry > System.currentTimeMillis();
+    }
+
+    /**
+     * Check if a Web resource has an index (that has not expired).
+     *
+     * @param iri The IRI of the Web resource.
+     * @return True if the resource has an index.
+     */
+    public boolean contains(String iri) {
+        return indexFile(iri).lastModified() + ttl >= System.currentTimeMillis();
+    }
+
+    /**
+     * Remove the index of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     */
+    public synchronized void remove(String iri) {
+        close(iri);
+        tooLarge.remove(iri);
+        indexFile(iri).delete();
+    }
+
+    /**
+     * Remove all the indexes.
+     *
+     */
+    public synchronized void clear() {
+        for (String iri : open.keySet()) {
+            close(iri);
+        }
+        tooLarge.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".idx")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the time-to-live of an index.
+     *
+     * @param ttl The time-to-live (in milliseconds).
+     */
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Return the directory of the index files.
+     *
+     * @return The directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File indexFile(String iri) {
+        return new File(directory, DiskResourcesCache.key(iri) + ".idx");
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of IRIs known NOT to correspond to a SPARQL endpoint (their data has
+ * been fetched successfully after a failed ASK probe). For these IRIs the ASK
+ * probe is skipped until their entry expires.
+ *
+ * The index is persisted as a snapshot plus a write-behind log (see
+ * LineJournal) of lines "IRI [TAB] expiration time"; a removed IRI is written
+ * with expiration time 0. At startup the expired, removed and repeated entries
+ * are dropped by compacting the log into the snapshot.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class NonEndpointsIndex {
+
+    /**
+     * The default time-to-live (in milliseconds) of an entry of the index.
+     */
+    public static final long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+    /*
+     * The IRIs of the index, and the expiration time of each IRI.
+     */
+    private HashMap<String, Long> iris;
+    /*
+     * The file containing the index.
+     */
+    private String filepath;
+    /*
+     * The journal of the index.
+     */
+    private LineJournal journal;
+    /*
+     * The time-to-live of a new entry.
+     */
+    private long ttl;
+
+    /**
+     * Initialize a new index by reading it from a given file (if it exists).
+     *
+     * @param file The file path.
+     * @param ttl The time-to-live (in milliseconds) of a new entry.
+     */
+    public NonEndpointsIndex(String file, long ttl) {
+
+        this.iris = new HashMap<>();
+        this.filepath = file;
+        this.journal = new LineJournal(filepath);
+        this.ttl = ttl;
+
+        // The entries (the snapshot followed by the log, the last line of an IRI wins).
+        int lines = 0;
+        long now = System.currentTimeMillis();
+        for (String str : journal.load()) {
+            String[] parts = str.trim().split("\t");
+            if (parts.length != 2 || parts[0].startsWith("#")) {
+                continue;
+            }
+            lines++;
+            try {
+                long expires = Long.parseLong(parts[1]);
+                if (expires > now) {
+                    iris.put(parts[0].toLowerCase(), expires);
+                } else {
+                    iris.remove(parts[0].toLowerCase());
+                }
+            } catch (NumberFormatException ex) {
+                // skip a malformed line
+            }
+        }
+
+        // Drop the expired, removed and repeated entries from the file.
+        if (lines > iris.size() || journal.hasLog()) {
+            List<String> compacted = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : iris.entrySet()) {
+                compacted.add(entry.getKey() + "\t" + entry.getValue());
+            }
+            journal.compact(compacted);
+        }
+    }
+
+    /**
+     * Initialize a new index by reading it from the default file.
+     *
+     */
+    public NonEndpointsIndex() {
+        this("non-endpoints.lst", DEFAULT_TTL);
+    }
+
+    /**
+     * Add to the index an IRI that does not correspond to a SPARQL endpoint.
+     * The entry is written to the file in the background.
+     *
+     * @param iri The IRI.
+     */
+    public void add(String iri) {
+        long expires = System.currentTimeMillis() + ttl;
+        synchronized (this) {
+            iris.put(iri.trim().toLowerCase(), expires);
+        }
+        journal.append(iri.trim() + "\t" + expires);
+    }
+
+    /**
+     * Check if an IRI exists (and has not expired) in the index.
+     *
+     * @param iri The IRI.
+     * @return True if the IRI is known not to correspond to a SPARQL endpoint
+     */
+    public synchronized boolean inIndex(String iri) {
+        String key = iri.trim().toLowerCase();
+        Long expires = iris.get(key);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            iris.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove an IRI from the index (e.g. because it has been found to
+     * correspond to a SPARQL endpoint). The removal is written to the file in
+     * the background.
+     *
+     * @param iri The IRI.
+     */
+    public void remove(String iri) {
+        boolean removed;
+        synchronized (this) {
+            removed = iris.remove(iri.trim().toLowerCase()) != null;
+        }
+        if (removed) {
+            journal.append(iri.trim() + "\t0");
+        }
+    }
+
+    /**
+     * Return the number of IRIs in the index.
+     *
+     * @return The number of IRIs.
+     */
+    public synchronized int size() {
+        return iris.size();
+    }
+
+    /**
+     * Wait until the new entries have been written to the file.
+     *
+     */
+    public void flush() {
+        journal.flush();
+    }
+
+    /**
+     * Return the file containing the index.
+     *
+     * @return The file path.
+     */
+    public String getFilepath() {
+        return filepath;
+    }
+
+    /**
+     * Set the time-to-live of a new entry.
+     *
+     * @param ttl The time-to-live (in milliseconds).
+     */
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+}
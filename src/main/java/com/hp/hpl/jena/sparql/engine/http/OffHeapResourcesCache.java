@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.graph.GraphFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Off-heap tier of the cache of the already-retrieved resources. The resources
+ * evicted from the (heap) cache are stored outside the Java heap, in direct
+ * ByteBuffer segments, in a binary encoding (a table of the terms followed by
+ * the triples as indexes of the table), so they are not traced by the garbage
+ * collector. A resource is decoded into a queryable graph when it is accessed
+ * again (and moved back to the heap cache, see ResourcesCache.setOffHeapTier).
+ *
+ * The segments are filled in order. The tier has its own memory budget: when
+ * a new segment would exceed it, the oldest segment is evicted (with all its
+ * resources) and reused, so the direct memory is allocated once. The heap
+ * holds only the index of the stored resources. The budget must fit in the
+ * direct memory of the JVM (see -XX:MaxDirectMemorySize).
+ *
+ * The tier is thread-safe.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class OffHeapResourcesCache {
+
+    /**
+     * The default size (in bytes) of a segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    /**
+     * The default memory budget (in bytes) of the tier.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final byte URI = 0; // The kind of a URI term
+    private static final byte BLANK = 1; // The kind of a blank node term
+    private static final byte LITERAL = 2; // The kind of a literal term
+    private final int segmentSize; // The size of a segment
+    private final int maxSegments; // The maximum number of segments
+    private final HashMap<String, Entry> entries; // The stored resources
+    private final ArrayDeque<Segment> segments; // The segments, oldest first
+    private long hits; // The number of loads that found the resource
+    private long misses; // The number of loads that did not find the resource
+
+    /**
+     * Initialize a new off-heap tier with the default budget and segment
+     * size.
+     *
+     */
+    public OffHeapResourcesCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Initialize a new off-heap tier.
+     *
+     * @param maxBytes The memory budget (in bytes); at least one segment is
+     * allocated.
+     * @param segmentSize The size (in bytes) of a segment, which bounds the
+     * encoded size of a resource.
+     */
+    public OffHeapResourcesCache(long maxBytes, int segmentSize) {
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+        this.entries = new HashMap<>();
+        this.segments = new ArrayDeque<>();
+    }
+
+    /**
+     * Store the RDF model of a Web resource. A resource whose encoding is
+     * larger than a segment is not stored.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param model The RDF model of the Web resource.
+     * @param expires The expiration time of the Web resource.
+     * @return True if the resource was stored.
+     */
+    public boolean store(String iri, Model model, long expires) {
+        byte[] bytes;
+        try {
+            bytes = encode(model);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // not thrown by a ByteArrayOutputStream
+        }
+        if (bytes.length > segmentSize) {
+            remove(iri);
+            return false;
+        }
+        synchronized (this) {
+            remove(iri);
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.position + bytes.length > segmentSize) {
+                segment = allocate();
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(segment.position);
+            buffer.put(bytes);
+            entries.put(iri, new Entry(segment, segment.position, bytes.length, expires));
+            segment.iris.add(iri);
+            segment.position += bytes.length;
+        }
+        return true;
+    }
+
+    /**
+     * Get the RDF model of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param dictionary The dictionary of the terms, to decode the resource
+     * into a (read-only) compact graph, or null to decode it into an
+     * in-memory model.
+     * @return The RDF model of the Web resource, or null if it is not stored
+     * (or it has expired).
+     */
+    public Model load(String iri, TermDictionary dictionary) {
+        byte[] bytes;
+        long expires;
+        synchronized (this) {
+            Entry entry = entries.get(iri);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(iri);
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            bytes = new byte[entry.length];
+            ByteBuffer buffer = entry.segment.buffer.duplicate();
+            buffer.position(entry.offset);
+            buffer.get(bytes);
+        }
+        return decode(ByteBuffer.wrap(bytes), dictionary);
+    }
+
+    /**
+     * Return the expiration time of a stored Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The expiration time, or -1 if the resource is not stored.
+     */
+    public synchronized long getExpires(String iri) {
+        Entry entry = entries.get(iri);
+        return entry != null ? entry.expires : -1;
+    }
+
+    /**
+     * Check if a Web resource is stored (and has not expired).
+     *
+     * @param iri The IRI of the Web resource.
+     * @return True if the Web resource is stored.
+     */
+    public synchronized boolean contains(String iri) {
+        Entry entry = entries.get(iri);
+        return entry != null && entry.expires >= System.currentTimeMillis();
+    }
+
+    /**
+     * Remove a Web resource (its space is reclaimed when its segment is
+     * evicted).
+     *
+     * @param iri The IRI of the Web resource.
+     */
+    public synchronized void remove(String iri) {
+        Entry entry = entries.remove(iri);
+        if (entry != null) {
+            entry.segment.iris.remove(iri);
+        }
+    }
+
+    /**
+     * Remove all the resources. The segments are kept for reuse.
+     *
+     */
+    public synchronized void clear() {
+        entries.clear();
+        for (Segment segment : segments) {
+            segment.iris.clear();
+            segment.position = 0;
+        }
+    }
+
+    /**
+     * Return the number of stored resources.
+     *
+     * @return The number of stored resources.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the allocated direct memory (in bytes).
+     *
+     * @return The allocated direct memory.
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * Return the bytes of the allocated segments that are in use (by stored
+     * or removed resources).
+     *
+     * @return The used bytes.
+     */
+    public synchronized long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            used += segment.position;
+        }
+        return used;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Return a new segment: an empty segment that was cleared, a newly
+     * allocated one, or the oldest one (whose resources are evicted).
+     */
+    private Segment allocate() {
+        Segment segment = segments.peekFirst();
+        if (segment != null && (segment.position == 0 || segments.size() >= maxSegments)) {
+            segments.removeFirst();
+            for (String iri : segment.iris) {
+                entries.remove(iri);
+            }
+            segment.iris.clear();
+            segment.position = 0;
+        } else {
+            segment = new Segment(ByteBuffer.allocateDirect(segmentSize));
+        }
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Encode an RDF model: its prefixes, the table of its terms, and its
+     * triples as indexes of the table.
+     */
+    static byte[] encode(Model model) throws IOException {
+        Graph graph = model.getGraph();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, String> prefixes = model.getNsPrefixMap();
+        out.writeInt(prefixes.size());
+        for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+            writeString(out, prefix.getKey());
+            writeString(out, prefix.getValue());
+        }
+        HashMap<Node, Integer> node2index = new HashMap<>();
+        ByteArrayOutputStream tripleBytes = new ByteArrayOutputStream(graph.size() * 12);
+        DataOutputStream triples = new DataOutputStream(tripleBytes);
+        ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+        DataOutputStream terms = new DataOutputStream(termBytes);
+        int count = 0;
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (it.hasNext()) {
+                Triple triple = it.next();
+                triples.writeInt(index(triple.getSubject(), node2index, terms));
+                triples.writeInt(index(triple.getPredicate(), node2index, terms));
+                triples.writeInt(index(triple.getObject(), node2index, terms));
+                count++;
+            }
+        } finally {
+            it.close();
+        }
+        out.writeInt(node2index.size());
+        termBytes.writeTo(out);
+        out.writeInt(count);
+        tripleBytes.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Return the index of a term in the table of the terms, writing the term
+     * if it is new.
+     */
+    private static int index(Node node, HashMap<Node, Integer> node2index, DataOutputStream terms) throws IOException {
+        Integer index = node2index.get(node);
+        if (index != null) {
+            return index;
+        }
+        if (node.isURI()) {
+            terms.writeByte(URI);
+            writeString(terms, node.getURI());
+        } else if (node.isBlank()) {
+            terms.writeByte(BLANK);
+            writeString(terms, node.getBlankNodeLabel());
+        } else {
+            terms.writeByte(LITERAL);
+            writeString(terms, node.getLiteralLexicalForm());
+            writeString(terms, node.getLiteralLanguage());
+            writeString(terms, node.getLiteralDatatypeURI() == null ? "" : node.getLiteralDatatypeURI());
+        }
+        index = node2index.size();
+        node2index.put(node, index);
+        return index;
+    }
+
+    /**
+     * Decode an RDF model.
+     *
+     * @param in The encoding.
+     * @param dictionary The dictionary of the terms for a compact graph, or
+     * null for an in-memory model.
+     * @return The RDF model.
+     */
+    static Model decode(ByteBuffer in, TermDictionary dictionary) {
+        HashMap<String, String> prefixes = new HashMap<>();
+        for (int i = in.getInt(); i > 0; i--) {
+            prefixes.put(readString(in), readString(in));
+        }
+        Node[] terms = new Node[in.getInt()];
+        TypeMapper types = TypeMapper.getInstance();
+        for (int i = 0; i < terms.length; i++) {
+            byte kind = in.get();
+            if (kind == URI) {
+                terms[i] = NodeFactory.createURI(readString(in));
+            } else if (kind == BLANK) {
+                terms[i] = NodeFactory.createAnon(AnonId.create(readString(in)));
+            } else {
+                String lexical = readString(in);
+                String lang = readString(in);
+                String datatype = readString(in);
+                RDFDatatype type = datatype.isEmpty() ? null : types.getSafeTypeByName(datatype);
+                terms[i] = NodeFactory.createLiteral(lexical, lang, type);
+            }
+        }
+        int count = in.getInt();
+        Model model;
+        if (dictionary != null) {
+            int before = dictionary.size();
+            int[] ids = new int[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                ids[i] = dictionary.encode(terms[i]);
+            }
+            int[] triples = new int[count * 3];
+            for (int i = 0; i < triples.length; i++) {
+                triples[i] = ids[in.getInt()];
+            }
+            model = ModelFactory.createModelForGraph(new CompactGraph(dictionary, before, triples));
+        } else {
+            Graph graph = GraphFactory.createDefaultGraph();
+            for (int i = 0; i < count; i++) {
+                graph.add(Triple.create(terms[in.getInt()], terms[in.getInt()], terms[in.getInt()]));
+            }
+            model = ModelFactory.createModelForGraph(graph);
+        }
+        model.setNsPrefixes(prefixes);
+        return model;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A segment of direct memory.
+     */
+    private static final class Segment {
+
+        final ByteBuffer buffer; // The direct memory
+        final Set<String> iris; // The IRIs of the resources stored in the segment
+        int position; // The end of the stored resources
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.iris = new HashSet<>();
+        }
+    }
+
+    /**
+     * The location of a stored resource.
+     */
+    private static final class Entry {
+
+        final Segment segment; // The segment
+        final int offset; // The offset of the encoding in the segment
+        final int length; // The length of the encoding
+        final long expires; // The expiration time
+
+        Entry(Segment segment, int offset, int length, long expires) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.expires = expires;
+        }
+    }
+}
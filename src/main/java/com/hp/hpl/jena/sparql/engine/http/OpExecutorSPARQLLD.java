@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVars;
+import com.hp.hpl.jena.sparql.algebra.op.OpJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpSequence;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRoot;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.sparql.engine.main.iterator.QueryIterJoin;
+import com.hp.hpl.jena.sparql.engine.main.iterator.QueryIterService;
+import com.hp.hpl.jena.sparql.util.Context;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Operator executor of SPARQL-LD. It extends the standard ARQ executor with
+ * execution strategies for the SERVICE operator that need to see all the
+ * upstream bindings (and not only one binding at a time, as Service.exec does).
+ *
+ * It also evaluates at the same time the independent SERVICE operators of a
+ * join (see QueryIterParallelServices).
+ *
+ * The strategies are enabled through the context symbols of Service. The
+ * executor is installed in the context of each query execution, unless the
+ * context already has another operator executor (e.g. of TDB); in that case
+ * the strategies are not used, and QueryExecutionBase logs a warning if they
+ * are enabled (see isRequired).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class OpExecutorSPARQLLD extends OpExecutor {
+
+    /**
+     * The factory of SPARQL-LD operator executors.
+     */
+    public static final OpExecutorFactory factory = new OpExecutorFactory() {
+        @Override
+        public OpExecutor create(ExecutionContext execCxt) {
+            return new OpExecutorSPARQLLD(execCxt);
+        }
+    };
+
+    protected OpExecutorSPARQLLD(ExecutionContext execCxt) {
+        super(execCxt);
+    }
+
+    /**
+     * Check if a context enables a strategy that needs this executor
+     * (Service.servicePrefetch, Service.serviceBindJoin or
+     * Service.serviceParallel).
+     *
+     * @param context The context of the query execution.
+     * @return True if the executor is needed.
+     */
+    public static boolean isRequired(Context context) {
+        return context.isTrue(Service.servicePrefetch)
+                || context.isTrue(Service.serviceBindJoin)
+                || context.isTrue(Service.serviceParallel);
+    }
+
+    @Override
+    protected QueryIterator execute(OpService opService, QueryIterator input) {
+        if (opService.getService().isVariable() && execCxt.getContext().isTrue(Service.servicePrefetch)) {
+            input = new QueryIterServicePrefetch(input, opService, execCxt);
+            return new QueryIterService(input, opService, execCxt);
+        }
+        if (execCxt.getContext().isTrue(Service.serviceBindJoin) && QueryIterBindJoin.applies(opService)) {
+            return new QueryIterBindJoin(input, opService, execCxt);
+        }
+        return super.execute(opService, input);
+    }
+
+    @Override
+    protected QueryIterator execute(OpSequence opSequence, QueryIterator input) {
+        if (!execCxt.getContext().isTrue(Service.serviceParallel)) {
+            return super.execute(opSequence, input);
+        }
+        // A SERVICE with a constant IRI that shares no variable with the
+        // preceding (non-grouped) elements does not use their bindings, so it
+        // can be evaluated before them.
+        List<OpService> services = new ArrayList<>();
+        List<Op> rest = new ArrayList<>();
+        Set<Var> restVars = new HashSet<>();
+        for (Op op : opSequence.getElements()) {
+            if (isConstantService(op) && Collections.disjoint(OpVars.visibleVars(op), restVars)) {
+                services.add((OpService) op);
+            } else {
+                rest.add(op);
+                restVars.addAll(OpVars.visibleVars(op));
+            }
+        }
+        if (services.size() < 2) {
+            return super.execute(opSequence, input);
+        }
+        QueryIterator qIter = new QueryIterParallelServices(input, services, execCxt);
+        for (Op op : rest) {
+            qIter = executeOp(op, qIter);
+        }
+        return qIter;
+    }
+
+    @Override
+    protected QueryIterator execute(OpJoin opJoin, QueryIterator input) {
+        if (!execCxt.getContext().isTrue(Service.serviceParallel)) {
+            return super.execute(opJoin, input);
+        }
+        List<Op> elements = new ArrayList<>();
+        flatten(opJoin, elements);
+        List<OpService> services = new ArrayList<>();
+        Op rest = null;
+        for (Op op : elements) {
+            if (isConstantService(op)) {
+                services.add((OpService) op);
+            } else {
+                rest = rest == null ? op : OpJoin.create(rest, op);
+            }
+        }
+        if (services.size() < 2) {
+            return super.execute(opJoin, input);
+        }
+        QueryIterator qIter = new QueryIterParallelServices(input, services, execCxt);
+        if (rest == null) {
+            return qIter;
+        }
+        // As in OpExecutor, the right side of the join is evaluated on its own
+        QueryIterator right = executeOp(rest, QueryIterRoot.create(execCxt));
+        return new QueryIterJoin(qIter, right, execCxt);
+    }
+
+    private static boolean isConstantService(Op op) {
+        return op instanceof OpService && ((OpService) op).getService().isURI();
+    }
+
+    private static void flatten(Op op, List<Op> elements) {
+        if (op instanceof OpJoin) {
+            flatten(((OpJoin) op).getLeft(), elements);
+            flatten(((OpJoin) op).getRight(), elements);
+        } else {
+            elements.add(op);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.Quad;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.lang.LangNQuads;
+import org.apache.jena.riot.lang.LangNTriples;
+import org.apache.jena.riot.system.MapWithScope;
+import org.apache.jena.riot.system.ParserProfile;
+import org.apache.jena.riot.system.RiotLib;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.tokens.TokenizerFactory;
+
+/**
+ * Parses N-Triples and N-Quads documents in parallel. The document is read in
+ * chunks of about the chunk size, each cut at a line boundary (a triple or quad
+ * of these syntaxes never spans lines), and the chunks are parsed at the same
+ * time on a shared fork-join pool while the next chunks are being read. The
+ * parsed chunks are sent to the sink in the order of the document by the
+ * calling thread, so the sink does not need to be thread-safe, and at most two
+ * chunks per thread are kept in memory.
+ *
+ * The blank node labels of all the chunks of a document are mapped to the same
+ * blank nodes (a label and a random seed of the document give the blank node),
+ * as if the document was parsed by a single parser. A document smaller than the
+ * chunk size is parsed by the calling thread.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class ParallelNTriplesParser {
+
+    /**
+     * The default number of parser threads.
+     */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    /**
+     * The default size (in bytes) of a chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static int parallelism = DEFAULT_PARALLELISM;
+    private static int chunkSize = DEFAULT_CHUNK_SIZE;
+    private static ForkJoinPool pool; // The parser threads (null if not yet created)
+
+    private ParallelNTriplesParser() {
+    }
+
+    /**
+     * Check if a document of an RDF syntax is parsed in parallel.
+     *
+     * @param lang The RDF syntax.
+     * @return True for N-Triples and N-Quads, unless the parallelism is 1.
+     */
+    public static synchronized boolean supports(Lang lang) {
+        return parallelism > 1 && (RDFLanguages.sameLang(RDFLanguages.NTRIPLES, lang) || RDFLanguages.sameLang(RDFLanguages.NQUADS, lang));
+    }
+
+    /**
+     * Parse an N-Triples or N-Quads document.
+     *
+     * @param in The document.
+     * @param base The base IRI of the document.
+     * @param lang The RDF syntax (N-Triples or N-Quads).
+     * @param sink The destination of the triples (or quads).
+     * @throws IOException If the document cannot be read.
+     * @throws RiotException If the document has a syntax error.
+     */
+    public static void parse(InputStream in, String base, Lang lang, StreamRDF sink) throws IOException {
+        ForkJoinPool threads;
+        int size;
+        synchronized (ParallelNTriplesParser.class) {
+            size = chunkSize;
+            threads = getPool();
+        }
+        LabelToNode labels = createLabelToNode();
+        ArrayDeque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+        int maxPending = 2 * threads.getParallelism();
+        byte[] rest = new byte[0]; // The bytes after the last line boundary of the previous chunk
+        long offset = 0; // The offset of the next chunk in the document
+        sink.start();
+        try {
+            while (true) {
+                byte[] buffer = Arrays.copyOf(rest, Math.max(size, 2 * rest.length));
+                int length = fill(in, buffer, rest.length);
+                boolean eof = length < buffer.length;
+                int end = eof ? length : lastLine(buffer, length);
+                if (end < 0) { // a line longer than the chunk: read more of it
+                    rest = buffer;
+                    continue;
+                }
+                rest = Arrays.copyOfRange(buffer, end, length);
+                ChunkParser parser = new ChunkParser(buffer, end, offset, base, lang, labels);
+                offset += end;
+                if (eof && pending.isEmpty()) { // a small document (or its last chunk)
+                    parser.call().send(sink);
+                    break;
+                }
+                pending.add(threads.submit(parser));
+                while (pending.size() >= maxPending || (eof && !pending.isEmpty())) {
+                    pending.poll().join().send(sink);
+                }
+                if (eof) {
+                    break;
+                }
+            }
+        } catch (RuntimeException | IOException ex) {
+            for (ForkJoinTask<Chunk> task : pending) {
+                task.cancel(false);
+            }
+            throw ex;
+        }
+        sink.finish();
+    }
+
+    /**
+     * Read bytes until a buffer is full or the stream ends.
+     *
+     * @return The number of bytes of the buffer.
+     */
+    private static int fill(InputStream in, byte[] buffer, int start) throws IOException {
+        int length = start;
+        int count;
+        while (length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) > 0) {
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Return the end of the last complete line of a buffer (after its line
+     * feed), or -1 if the buffer has no line feed.
+     */
+    private static int lastLine(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the blank node labels of a document, shared by the parsers of its
+     * chunks. The blank node of a label is computed from the label and a random
+     * seed of the document, so the mapping has no state and needs no locking.
+     */
+    private static LabelToNode createLabelToNode() {
+        final String seed = UUID.randomUUID().toString() + "_";
+        return new LabelToNode(new MapWithScope.ScopePolicy<String, Node, Node>() {
+            @Override
+            public Map<String, Node> getScope(Node scope) {
+                return null; // no map: the allocator is called for every label
+            }
+
+            @Override
+            public void clear() {
+            }
+        }, new MapWithScope.Allocator<String, Node, Node>() {
+            @Override
+            public Node alloc(Node scope, String label) {
+                return NodeFactory.createAnon(AnonId.create(seed + label));
+            }
+
+            @Override
+            public Node create() {
+                return NodeFactory.createAnon();
+            }
+
+            @Override
+            public void reset() {
+            }
+        });
+    }
+
+    /**
+     * Return the parser threads, creating them on first use. They also
+     * decompress blocked gzip documents (see BlockedGzipInputStream).
+     *
+     * @return The parser threads.
+     */
+    static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Set the number of parser threads and the size of a chunk. The parser
+     * threads are re-created on their next use.
+     *
+     * @param parallelism The number of parser threads (1 disables parallel
+     * parsing).
+     * @param chunkSize The size (in bytes) of a chunk.
+     */
+    public static synchronized void configure(int parallelism, int chunkSize) {
+        ParallelNTriplesParser.parallelism = Math.max(1, parallelism);
+        ParallelNTriplesParser.chunkSize = Math.max(1024, chunkSize);
+        shutdown();
+    }
+
+    /**
+     * Stop the parser threads once the running chunks are parsed. The threads
+     * are re-created on their next use.
+     *
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Parses a chunk of a document.
+     */
+    private static class ChunkParser implements Callable<Chunk> {
+
+        private final byte[] buffer; // The bytes of the chunk (and of the beginning of the next one)
+        private final int length; // The length of the chunk
+        private final long offset; // The offset of the chunk in the document
+        private final String base; // The base IRI of the document
+        private final Lang lang; // The RDF syntax of the document
+        private final LabelToNode labels; // The blank node labels of the document
+
+        ChunkParser(byte[] buffer, int length, long offset, String base, Lang lang, LabelToNode labels) {
+            this.buffer = buffer;
+            this.length = length;
+            this.offset = offset;
+            this.base = base;
+            this.lang = lang;
+            this.labels = labels;
+        }
+
+        @Override
+        public Chunk call() {
+            Chunk chunk = new Chunk();
+            ParserProfile profile = RiotLib.profile(lang, base);
+            profile.setLabelToNode(labels);
+            InputStream in = new ByteArrayInputStream(buffer, 0, length);
+            try {
+                if (RDFLanguages.sameLang(RDFLanguages.NQUADS, lang)) {
+                    new LangNQuads(TokenizerFactory.makeTokenizerUTF8(in), profile, chunk).parse();
+                } else {
+                    new LangNTriples(TokenizerFactory.makeTokenizerUTF8(in), profile, chunk).parse();
+                }
+            } catch (RiotException ex) {
+                chunk.error = new RiotException(ex.getMessage() + " (in the chunk at byte " + offset + ")", ex);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * The triples (or quads) of a parsed chunk.
+     */
+    private static class Chunk extends StreamRDFBase {
+
+        private final List<Triple> triples = new ArrayList<>(); // The triples of the chunk
+        private final List<Quad> quads = new ArrayList<>(); // The quads of the chunk
+        private RiotException error; // The syntax error of the chunk (null if none), thrown by the calling thread
+
+        @Override
+        public void triple(Triple triple) {
+            triples.add(triple);
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            quads.add(quad);
+        }
+
+        /**
+         * Send the triples (or quads) of the chunk to a sink.
+         *
+         * @throws RiotException If the chunk has a syntax error.
+         */
+        void send(StreamRDF sink) {
+            if (error != null) {
+                throw error;
+            }
+            for (Triple triple : triples) {
+                sink.triple(triple);
+            }
+            for (Quad quad : quads) {
+                sink.quad(quad);
+            }
+        }
+    }
+}
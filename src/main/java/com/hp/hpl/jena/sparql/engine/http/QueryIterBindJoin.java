@@ -0,0 +1,494 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpAsQuery;
+import com.hp.hpl.jena.sparql.algebra.OpVars;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpGroup;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.algebra.op.OpTopN;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.Rename;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.util.Context;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.apache.http.HttpStatus;
+
+/**
+ * Bind join of the upstream bindings with a SERVICE operator whose IRI is a
+ * known SPARQL endpoint. Instead of sending one query per upstream binding,
+ * the upstream bindings are read in batches and each batch is sent to the
+ * endpoint as a single query, with the values of the join variables in a
+ * VALUES block. The results are joined back with the bindings of the batch
+ * locally.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class QueryIterBindJoin extends QueryIter1 {
+
+    private final OpService opService; // The SERVICE operator
+    private final Op opRemote; // The sub-query sent to the endpoint (with the scope renaming reversed)
+    private final Var rowVar; // The variable of the row number of the VALUES block
+    private final String uri; // The IRI of the SPARQL endpoint
+    private final List<Var> serviceVars; // The variables visible in the sub-query of the SERVICE operator
+    private final int batchSize; // The maximum number of upstream bindings of a batch
+    private final int maxQueryLength; // The maximum length of a query sent to the endpoint
+    private final ArrayDeque<Binding> output; // The joined bindings of the current batch
+
+    /**
+     * Create a new bind join iterator.
+     *
+     * @param input The upstream bindings.
+     * @param opService The SERVICE operator.
+     * @param execCxt The execution context.
+     */
+    public QueryIterBindJoin(QueryIterator input, OpService opService, ExecutionContext execCxt) {
+        super(input, execCxt);
+        Context context = execCxt.getContext();
+        this.opService = opService;
+        this.uri = opService.getService().getURI();
+        this.opRemote = Rename.reverseVarRename(opService.getSubOp(), true); // as in Service.exec
+        this.serviceVars = new ArrayList<>(OpVars.visibleVars(opRemote));
+        this.rowVar = rowVar(opRemote);
+        this.batchSize = Math.max(1, Service.getAsInt(context, Service.bindJoinBatchSize, 100));
+        this.maxQueryLength = Math.max(1, Service.getAsInt(context, Service.bindJoinMaxQueryLength, 20000));
+        this.output = new ArrayDeque<>();
+    }
+
+    /**
+     * Return a variable that does not appear in a sub-query.
+     */
+    private static Var rowVar(Op op) {
+        Collection<Var> vars = OpVars.mentionedVars(op);
+        Var var = Var.alloc("sparqlld_row");
+        for (int i = 1; vars.contains(var); i++) {
+            var = Var.alloc("sparqlld_row" + i);
+        }
+        return var;
+    }
+
+    /**
+     * Check if a SERVICE operator can be evaluated with a bind join: its IRI
+     * must be a known SPARQL endpoint, and the results of its sub-query for a
+     * batch of bindings must be the union of the results for each binding
+     * (e.g. no LIMIT or aggregation).
+     *
+     * @param opService The SERVICE operator.
+     * @return True if the bind join can be used.
+     */
+    public static boolean applies(OpService opService) {
+        if (!opService.getService().isURI() || !QueryExecutionBase.endpointIndex.inIndex(opService.getService().getURI())) {
+            return false;
+        }
+        if (Boolean.FALSE.equals(QueryExecutionBase.endpointIndex.getProfile(opService.getService().getURI()).getValuesSupported())) {
+            return false; // the endpoint does not accept VALUES
+        }
+        for (Var var : OpVars.visibleVars(opService.getSubOp())) {
+            if (var.getName().contains("/")) {
+                return false; // scope-renamed variables (see Service.exec)
+            }
+        }
+        final boolean[] perBinding = {false};
+        OpWalker.walk(opService.getSubOp(), new OpVisitorBase() {
+            @Override
+            public void visit(OpSlice opSlice) {
+                perBinding[0] = true;
+            }
+
+            @Override
+            public void visit(OpTopN opTop) {
+                perBinding[0] = true;
+            }
+
+            @Override
+            public void visit(OpGroup opGroup) {
+                perBinding[0] = true;
+            }
+        });
+        return !perBinding[0];
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        while (output.isEmpty()) {
+            QueryIterator input = getInput();
+            if (input == null || !input.hasNext()) {
+                return false;
+            }
+            List<Binding> batch = new ArrayList<>();
+            while (batch.size() < batchSize && input.hasNext()) {
+                batch.add(input.nextBinding());
+            }
+            join(batch);
+        }
+        return true;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!hasNextBinding()) {
+            throw new NoSuchElementException("QueryIterBindJoin.next()/finished");
+        }
+        return output.poll();
+    }
+
+    /**
+     * Send a batch of upstream bindings to the endpoint and join the results
+     * with the batch. A batch whose query is too long is split in two.
+     *
+     * Each distinct row of the VALUES block also binds a row number, which
+     * the results carry back, so a result is joined only with the bindings of
+     * its own row (also when a row leaves a join variable UNDEF, or a result
+     * leaves it unbound).
+     *
+     * @param batch The upstream bindings.
+     */
+    private void join(List<Binding> batch) {
+        EndpointProfile profile = QueryExecutionBase.endpointIndex.getProfile(uri);
+        if (Boolean.FALSE.equals(profile.getValuesSupported())) {
+            joinPerBinding(batch);
+            return;
+        }
+
+        // The join variables: the variables of the sub-query bound by the batch
+        List<Var> joinVars = new ArrayList<>();
+        for (Var var : serviceVars) {
+            for (Binding binding : batch) {
+                if (binding.contains(var)) {
+                    joinVars.add(var);
+                    break;
+                }
+            }
+        }
+        if (joinVars.isEmpty()) {
+            joinUnbound(batch);
+            return;
+        }
+
+        // The distinct rows of the VALUES block, and the bindings of each row
+        Map<Binding, List<Binding>> rows = new LinkedHashMap<>();
+        for (Binding binding : batch) {
+            BindingMap row = BindingFactory.create();
+            for (Var var : joinVars) {
+                Node value = binding.get(var);
+                if (value != null) {
+                    row.add(var, value);
+                }
+            }
+            List<Binding> bindings = rows.get(row);
+            if (bindings == null) {
+                bindings = new ArrayList<>();
+                rows.put(row, bindings);
+            }
+            bindings.add(binding);
+        }
+        List<Var> valuesVars = new ArrayList<>(joinVars);
+        valuesVars.add(rowVar);
+        List<Binding> valuesRows = new ArrayList<>();
+        List<List<Binding>> rowBindings = new ArrayList<>();
+        for (Map.Entry<Binding, List<Binding>> row : rows.entrySet()) {
+            valuesRows.add(BindingFactory.binding(row.getKey(), rowVar,
+                    NodeFactory.createLiteral(Integer.toString(valuesRows.size()), XSDDatatype.XSDinteger)));
+            rowBindings.add(row.getValue());
+        }
+
+        Query query = OpAsQuery.asQuery(opRemote);
+        if (!query.isQueryResultStar()) {
+            query.addResultVar(rowVar);
+        }
+        query.setValuesDataBlock(valuesVars, valuesRows);
+        String queryString = query.toString();
+        int maxLength = maxQueryLength;
+        if (profile.getMaxQueryLength() > 0) {
+            maxLength = Math.min(maxLength, profile.getMaxQueryLength());
+        }
+        if (queryString.length() > maxLength && batch.size() > 1) {
+            int half = batch.size() / 2;
+            join(batch.subList(0, half));
+            join(batch.subList(half, batch.size()));
+            return;
+        }
+
+        List<Binding> results;
+        try {
+            results = execRemote(query, batch.size());
+        } catch (QueryExceptionHTTP ex) {
+            if (ex.getResponseCode() == HttpStatus.SC_BAD_REQUEST && !Boolean.TRUE.equals(profile.getValuesSupported())
+                    && probeWithoutValues(batch.get(0))) {
+                // The endpoint rejects VALUES: send a query per binding from now on
+                ServiceMetrics.trace("The SPARQL endpoint \"%s\" does not accept VALUES. Sending a query per binding...", uri);
+                if (profile.setValuesSupported(false)) {
+                    QueryExecutionBase.endpointIndex.saveProfile(profile);
+                }
+                joinPerBinding(batch);
+                return;
+            }
+            if (!opService.getSilent()) {
+                throw ex;
+            }
+            output.addAll(batch); // SILENT: the upstream bindings are passed on unchanged
+            return;
+        } catch (RuntimeException ex) {
+            if (!opService.getSilent()) {
+                throw ex;
+            }
+            output.addAll(batch); // SILENT: the upstream bindings are passed on unchanged
+            return;
+        }
+        if (profile.setValuesSupported(true)) {
+            QueryExecutionBase.endpointIndex.saveProfile(profile);
+        }
+        ServiceMetrics.trace("Bind join: %s bindings, %s results from \"%s\"", batch.size(), results.size(), uri);
+
+        // Group the results by their row of the VALUES block
+        List<List<Binding>> rowResults = new ArrayList<>();
+        for (int i = 0; i < rowBindings.size(); i++) {
+            rowResults.add(new ArrayList<Binding>());
+        }
+        List<Binding> unnumbered = new ArrayList<>(); // results without a (valid) row number
+        for (Binding result : results) {
+            int row = rowNumber(result.get(rowVar), rowResults.size());
+            if (row < 0) {
+                unnumbered.add(result);
+            } else {
+                rowResults.get(row).add(withoutRowVar(result));
+            }
+        }
+
+        Map<Binding, Integer> rowOf = new HashMap<>();
+        for (int i = 0; i < rowBindings.size(); i++) {
+            for (Binding binding : rowBindings.get(i)) {
+                rowOf.put(binding, i);
+            }
+        }
+        for (Binding binding : batch) {
+            addCompatible(binding, rowResults.get(rowOf.get(binding)));
+            addCompatible(binding, unnumbered);
+        }
+    }
+
+    /**
+     * Join a batch whose bindings bind no variable of the sub-query: the
+     * sub-query is sent once, and each result is joined with every binding.
+     *
+     * @param batch The upstream bindings.
+     */
+    private void joinUnbound(List<Binding> batch) {
+        List<Binding> results;
+        try {
+            results = execRemote(OpAsQuery.asQuery(opRemote), batch.size());
+        } catch (RuntimeException ex) {
+            if (!opService.getSilent()) {
+                throw ex;
+            }
+            output.addAll(batch); // SILENT: the upstream bindings are passed on unchanged
+            return;
+        }
+        for (Binding binding : batch) {
+            addCompatible(binding, results);
+        }
+    }
+
+    /**
+     * Return the row of the VALUES block of a result.
+     *
+     * @return The row, or -1 if the row number is missing or invalid.
+     */
+    private static int rowNumber(Node node, int rows) {
+        if (node == null || !node.isLiteral()) {
+            return -1;
+        }
+        try {
+            int row = Integer.parseInt(node.getLiteralLexicalForm());
+            return row >= 0 && row < rows ? row : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private Binding withoutRowVar(Binding result) {
+        BindingMap binding = BindingFactory.create();
+        Iterator<Var> vars = result.vars();
+        while (vars.hasNext()) {
+            Var var = vars.next();
+            if (!var.equals(rowVar)) {
+                binding.add(var, result.get(var));
+            }
+        }
+        return binding;
+    }
+
+    private void addCompatible(Binding binding, List<Binding> results) {
+        for (Binding result : results) {
+            if (Algebra.compatible(binding, result)) {
+                output.add(Algebra.merge(binding, result));
+            }
+        }
+    }
+
+    /**
+     * Check if the endpoint answers the sub-query without a VALUES block (for
+     * one binding of the batch), i.e. if it was the VALUES block that it
+     * rejected.
+     *
+     * @param binding A binding of the batch.
+     * @return True if the endpoint answers the query of the binding.
+     */
+    private boolean probeWithoutValues(Binding binding) {
+        Query probe = OpAsQuery.asQuery(QC.substitute(opRemote, binding));
+        if (!probe.hasLimit()) {
+            probe.setLimit(1);
+        }
+        try {
+            QueryIterator qIter = Service.execRemote(uri, getExecContext().getContext(), probe);
+            try {
+                while (qIter.hasNext()) {
+                    qIter.nextBinding();
+                }
+            } finally {
+                qIter.close();
+            }
+            return true;
+        } catch (RuntimeException ex) {
+            ServiceMetrics.trace("The SPARQL endpoint \"%s\" also rejects the query without VALUES: %s", uri, ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Evaluate the SERVICE operator for each binding of a batch (for endpoints
+     * that do not accept VALUES).
+     *
+     * @param batch The upstream bindings.
+     */
+    private void joinPerBinding(List<Binding> batch) {
+        for (Binding binding : batch) {
+            OpService op = (OpService) QC.substitute(opService, binding);
+            QueryIterator results;
+            try {
+                results = Service.exec(op, getExecContext().getContext());
+            } catch (RuntimeException ex) {
+                if (!opService.getSilent()) {
+                    throw ex;
+                }
+                output.add(binding); // SILENT: the upstream binding is passed on unchanged
+                continue;
+            }
+            try {
+                while (results.hasNext()) {
+                    Binding result = results.nextBinding();
+                    if (Algebra.compatible(binding, result)) {
+                        output.add(Algebra.merge(binding, result));
+                    }
+                }
+            } finally {
+                results.close();
+            }
+        }
+    }
+
+    /**
+     * Send a query to the endpoint and read all its results. The request is
+     * recorded in the execution profile (if enabled).
+     *
+     * @param query The query.
+     * @param bindings The number of upstream bindings of the query.
+     * @return The results.
+     */
+    private List<Binding> execRemote(Query query, int bindings) {
+        Context context = getExecContext().getContext();
+        ServiceProfile serviceProfile = ServiceProfile.get(context);
+        ServiceProfile.Node call = serviceProfile == null ? null : serviceProfile.getRoot().start("SERVICE (bind join)", uri);
+        if (call != null) {
+            call.set("bindings", bindings);
+        }
+        String key = context.isTrue(Service.serviceResultsCache) ? ServiceResultsCache.key(uri, query, context) : null;
+        if (key != null) {
+            List<Binding> cached = QueryExecutionBase.resultsCache.get(key);
+            if (cached != null) {
+                ServiceMetrics.trace("Bind join: the results of the query EXIST in the results cache!");
+                if (call != null) {
+                    call.set("cache", "results");
+                    call.set("rows", (long) cached.size());
+                    call.stop();
+                }
+                return cached;
+            }
+        }
+        try {
+            QueryIterator qIter = Service.execRemote(uri, context, query);
+            try {
+                List<Binding> results = new ArrayList<>();
+                while (qIter.hasNext()) {
+                    results.add(qIter.nextBinding());
+                }
+                if (key != null) {
+                    QueryExecutionBase.resultsCache.put(key, results);
+                }
+                if (call != null) {
+                    call.set("rows", (long) results.size());
+                }
+                return results;
+            } finally {
+                qIter.close();
+            }
+        } catch (RuntimeException ex) {
+            if (call != null) {
+                call.set("error", ex.getMessage());
+            }
+            throw ex;
+        } finally {
+            if (call != null) {
+                call.stop();
+            }
+        }
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        output.clear();
+    }
+
+    @Override
+    protected void requestSubCancel() {
+    }
+}
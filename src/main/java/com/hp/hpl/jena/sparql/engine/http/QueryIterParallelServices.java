@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.sparql.algebra.OpVars;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterCommonParent;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRepeatApply;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterSingleton;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.util.Context;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Evaluates a group of SERVICE operators with constant IRIs, which do not
+ * depend on each other, at the same time, and joins their results. For each
+ * upstream binding, all the SERVICE operators of the group are started
+ * concurrently and their results are joined by a left-deep tree of symmetric
+ * hash joins (see QueryIterSymmetricHashJoin), so the first joined bindings are
+ * returned while the results are still arriving, and the latency of the group
+ * is the latency of its slowest SERVICE (and not the sum of the latencies).
+ *
+ * The groups are found by OpExecutorSPARQLLD (see Service.serviceParallel).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class QueryIterParallelServices extends QueryIterRepeatApply {
+
+    private final List<OpService> services; // The SERVICE operators of the group
+    private final Semaphore permits; // Bounds the number of SERVICE operators evaluated concurrently
+    private final int maxRows; // The maximum number of rows kept in memory by each join
+
+    /**
+     * Create a new parallel evaluation of SERVICE operators.
+     *
+     * @param input The upstream bindings.
+     * @param services The SERVICE operators (with constant IRIs).
+     * @param execCxt The execution context.
+     */
+    public QueryIterParallelServices(QueryIterator input, List<OpService> services, ExecutionContext execCxt) {
+        super(input, execCxt);
+        Context context = execCxt.getContext();
+        this.services = new ArrayList<>(services);
+        this.permits = new Semaphore(Math.max(1, Service.getAsInt(context, Service.parallelMaxThreads, 8)));
+        this.maxRows = Service.getAsInt(context, Service.hashJoinMaxRows, 100000);
+    }
+
+    @Override
+    protected QueryIterator nextStage(Binding binding) {
+        ServiceMetrics.trace("Evaluating %s SERVICE operators in parallel...", services.size());
+        OpService first = (OpService) QC.substitute(services.get(0), binding);
+        Callable<QueryIterator> joined = source(first);
+        Set<Var> joinedVars = OpVars.fixedVars(first);
+        for (int i = 1; i < services.size(); i++) {
+            OpService op = (OpService) QC.substitute(services.get(i), binding);
+            final Callable<QueryIterator> left = joined;
+            final Set<Var> leftVars = joinedVars;
+            final Callable<QueryIterator> right = source(op);
+            final Set<Var> rightVars = OpVars.fixedVars(op);
+            joined = new Callable<QueryIterator>() {
+                @Override
+                public QueryIterator call() {
+                    return new QueryIterSymmetricHashJoin(left, leftVars, right, rightVars, maxRows);
+                }
+            };
+            joinedVars = new HashSet<>(joinedVars);
+            joinedVars.addAll(rightVars);
+        }
+        QueryIterator qIter;
+        try {
+            qIter = joined.call();
+        } catch (Exception ex) {
+            throw ex instanceof RuntimeException ? (RuntimeException) ex : new QueryExceptionHTTP(ex);
+        }
+        return new QueryIterCommonParent(qIter, binding, getExecContext());
+    }
+
+    /**
+     * Return the evaluation of a SERVICE operator, to be called by a join
+     * thread. A failed SILENT operator returns a single empty binding, which
+     * leaves the join unchanged.
+     */
+    private Callable<QueryIterator> source(final OpService op) {
+        final Context context = getExecContext().getContext();
+        return new Callable<QueryIterator>() {
+            @Override
+            public QueryIterator call() throws InterruptedException {
+                permits.acquire();
+                try {
+                    return Service.exec(op, context);
+                } catch (RuntimeException ex) {
+                    if (!op.getSilent()) {
+                        throw ex;
+                    }
+                    ServiceMetrics.trace("SERVICE <%s> failed (SILENT): %s", op.getService(), ex.getMessage());
+                    return QueryIterSingleton.create(BindingFactory.binding(), getExecContext());
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorBase;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.NoSuchElementException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.riot.WebContent;
+
+/**
+ * The results of a query sent to a SPARQL endpoint, returned while the
+ * response is being read (in any of the formats of EndpointResults), instead
+ * of materializing the whole result set before the first binding is returned.
+ *
+ * The HTTP connection stays open while the iterator is consumed. Closing the
+ * iterator before the end of the results (e.g. because of a LIMIT), or
+ * cancelling it (QueryExecutionBase.abort()), aborts the request, so the rest
+ * of the response is not read.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class QueryIterRemoteResults extends QueryIteratorBase {
+
+    private final String uri; // The IRI of the SPARQL endpoint
+    private volatile HttpRequestBase request; // The HTTP request of the query (of the retry, if the first request failed)
+    private final HttpEntity entity; // The body of the response
+    private final ResultSet results; // The results, parsed while they are read
+    private volatile boolean aborted; // Set when the request has been aborted
+    private boolean finished; // Set when all the results have been read
+
+    /**
+     * Send a query to a SPARQL endpoint. The method returns when the headers
+     * of the response have been received. The transport (GET or POST) and the
+     * read timeout (unless set in the context) are chosen from the profile of
+     * the endpoint, which is updated with the outcome of the request.
+     *
+     * @param uri The IRI of the SPARQL endpoint.
+     * @param httpQuery The query, configured as per the context (see
+     * Service.configureQuery).
+     * @throws QueryExceptionHTTP If the request fails.
+     */
+    public QueryIterRemoteResults(String uri, HttpQuery httpQuery) {
+        this(uri, httpQuery, null, null);
+    }
+
+    /**
+     * Send a query to a SPARQL endpoint with basic authentication (see
+     * QueryIterRemoteResults(String, HttpQuery)).
+     *
+     * @param uri The IRI of the SPARQL endpoint.
+     * @param httpQuery The query, configured as per the context.
+     * @param user The user name (or null for no authentication).
+     * @param password The password (or null).
+     * @throws QueryExceptionHTTP If the request fails.
+     */
+    public QueryIterRemoteResults(String uri, HttpQuery httpQuery, String user, String password) {
+        this.uri = uri;
+        Header authorization = user == null && password == null ? null
+                : BasicScheme.authenticate(new UsernamePasswordCredentials(user == null ? "" : user, password == null ? "" : password), "UTF-8", false);
+        EndpointProfile profile = QueryExecutionBase.endpointIndex.getProfile(uri);
+        String params = httpQuery.httpString();
+        String getURL = uri + (uri.contains("?") ? "&" : "?") + params;
+        boolean post = usePOST(httpQuery, profile, getURL.length());
+
+        long start = System.currentTimeMillis();
+        long timer = QueryExecutionBase.metrics.startTimer();
+        try {
+            this.request = createRequest(uri, httpQuery, profile, params, getURL, post, authorization);
+            HttpResponse response = HttpClientPool.execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                request.abort();
+                learnFromError(profile, status, post, post ? params.length() : getURL.length());
+                if (!canRetry(profile, status, post)) {
+                    throw new QueryExceptionHTTP(status, response.getStatusLine().getReasonPhrase());
+                }
+                // The other transport may succeed (like HttpQuery, which retries a too long GET with POST)
+                post = !post;
+                ServiceMetrics.trace("Retrying the query to the SPARQL endpoint \"%s\" with %s (HTTP %s)...", uri, post ? "POST" : "GET", status);
+                this.request = createRequest(uri, httpQuery, profile, params, getURL, post, authorization);
+                response = HttpClientPool.execute(request);
+                status = response.getStatusLine().getStatusCode();
+                if (status < 200 || status >= 300) {
+                    request.abort();
+                    learnFromError(profile, status, post, post ? params.length() : getURL.length());
+                    throw new QueryExceptionHTTP(status, response.getStatusLine().getReasonPhrase());
+                }
+            }
+            this.entity = response.getEntity();
+            if (entity == null) {
+                throw new QueryExceptionHTTP(status, "Empty response from the SPARQL endpoint " + uri);
+            }
+            String contentType = entity.getContentType() == null ? null : entity.getContentType().getValue();
+            this.results = EndpointResults.read(uri, entity.getContent(), contentType);
+        } catch (IOException ex) {
+            if (request != null) {
+                request.abort();
+            }
+            profile.recordError();
+            QueryExecutionBase.metrics.recordRemote(timer, false);
+            throw new QueryExceptionHTTP(ex);
+        } catch (RuntimeException ex) {
+            if (request != null) {
+                request.abort();
+            }
+            if (!(ex instanceof QueryExceptionHTTP)) {
+                profile.recordError();
+            }
+            QueryExecutionBase.metrics.recordRemote(timer, false);
+            throw ex;
+        }
+        profile.recordSuccess(System.currentTimeMillis() - start);
+        QueryExecutionBase.metrics.recordRemote(timer, true);
+        if (post && profile.setPostSupported(true)) {
+            QueryExecutionBase.endpointIndex.saveProfile(profile);
+        }
+    }
+
+    /**
+     * Create the HTTP request of a query, with per-request timeouts and
+     * credentials (the parameters of the shared client are not changed).
+     */
+    private static HttpRequestBase createRequest(String uri, HttpQuery httpQuery, EndpointProfile profile, String params, String getURL, boolean post, Header authorization) {
+        HttpRequestBase request;
+        if (post) {
+            HttpPost postRequest = new HttpPost(uri);
+            try {
+                StringEntity form = new StringEntity(params);
+                form.setContentType(WebContent.contentTypeHTMLForm);
+                postRequest.setEntity(form);
+            } catch (UnsupportedEncodingException ex) {
+                throw new QueryExceptionHTTP(ex);
+            }
+            request = postRequest;
+        } else {
+            request = new HttpGet(getURL);
+        }
+        request.setHeader("Accept", EndpointResults.acceptFor(uri));
+        if (authorization != null) {
+            request.setHeader(authorization);
+        }
+        if (httpQuery.getConnectTimeout() > 0) {
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), httpQuery.getConnectTimeout());
+        }
+        int readTimeout = httpQuery.getReadTimeout() > 0 ? httpQuery.getReadTimeout() : profile.getReadTimeout();
+        if (readTimeout > 0) {
+            HttpConnectionParams.setSoTimeout(request.getParams(), readTimeout);
+        }
+        return request;
+    }
+
+    /**
+     * Check if a failed request is retried once with the other transport: a
+     * too long GET (413 or 414) with POST, unless the endpoint is known not to
+     * support POST, and a POST that is not supported (405 or 501) with GET.
+     */
+    private static boolean canRetry(EndpointProfile profile, int status, boolean post) {
+        if (post) {
+            return status == HttpStatus.SC_METHOD_NOT_ALLOWED || status == HttpStatus.SC_NOT_IMPLEMENTED;
+        }
+        return (status == HttpStatus.SC_REQUEST_URI_TOO_LONG || status == HttpStatus.SC_REQUEST_TOO_LONG)
+                && !Boolean.FALSE.equals(profile.getPostSupported());
+    }
+
+    /**
+     * Choose between GET and POST: POST is not used if the endpoint is known
+     * not to support it, and is used if the GET request would be longer than
+     * the maximum query length of the endpoint or of HttpQuery.
+     */
+    private static boolean usePOST(HttpQuery httpQuery, EndpointProfile profile, int getLength) {
+        if (Boolean.FALSE.equals(profile.getPostSupported())) {
+            return false;
+        }
+        if (profile.getMaxQueryLength() > 0 && getLength > profile.getMaxQueryLength()) {
+            return true;
+        }
+        return httpQuery.usesPOST();
+    }
+
+    /**
+     * Update the profile of the endpoint after an HTTP error.
+     *
+     * @param profile The profile.
+     * @param status The HTTP status code.
+     * @param post True if the request was a POST.
+     * @param length The length of the URL of a GET, or of the body of a POST.
+     */
+    private static void learnFromError(EndpointProfile profile, int status, boolean post, int length) {
+        profile.recordError();
+        boolean changed = false;
+        if (post && (status == HttpStatus.SC_METHOD_NOT_ALLOWED || status == HttpStatus.SC_NOT_IMPLEMENTED)) {
+            changed = profile.setPostSupported(false);
+        } else if (status == HttpStatus.SC_REQUEST_URI_TOO_LONG || status == HttpStatus.SC_REQUEST_TOO_LONG) {
+            changed = profile.recordTooLong(length);
+        }
+        if (changed) {
+            QueryExecutionBase.endpointIndex.saveProfile(profile);
+        }
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        if (finished) {
+            return false;
+        }
+        try {
+            if (results.hasNext()) {
+                return true;
+            }
+        } catch (RuntimeException ex) {
+            if (aborted) {
+                throw new QueryCancelledException();
+            }
+            throw ex;
+        }
+        finished = true;
+        try {
+            EntityUtils.consume(entity); // returns the connection to the pool
+        } catch (IOException ex) {
+            request.abort();
+        }
+        return false;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!hasNextBinding()) {
+            throw new NoSuchElementException("QueryIterRemoteResults.next()/finished");
+        }
+        return results.nextBinding();
+    }
+
+    @Override
+    protected void closeIterator() {
+        if (!finished) {
+            abort();
+        }
+    }
+
+    @Override
+    protected void requestCancel() {
+        abort();
+    }
+
+    /**
+     * Abort the request, closing its connection without reading the rest of
+     * the response (it may be called from another thread).
+     */
+    private void abort() {
+        if (!aborted) {
+            aborted = true;
+            request.abort();
+        }
+    }
+
+    @Override
+    public void output(IndentedWriter out, SerializationContext sCxt) {
+        out.print("QueryIterRemoteResults " + uri);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.util.Context;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Passes on the upstream bindings of a SERVICE ?var operator unchanged and in
+ * the same order, after prefetching in parallel the IRIs that they bind to the
+ * service variable. The bindings are read in windows; the IRIs of each window
+ * are fetched before any binding of the window is passed on.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class QueryIterServicePrefetch extends QueryIter1 {
+
+    private final OpService opService; // The SERVICE operator
+    private final Var serviceVar; // The variable of the SERVICE operator
+    private final boolean sourceSelection; // True if the IRIs that cannot match the sub-query are not prefetched
+    private final int window; // The maximum number of bindings read before prefetching
+    private final ArrayDeque<Binding> buffer; // The bindings of the current window
+    private ServicePrefetcher prefetcher; // The prefetcher of the IRIs
+
+    /**
+     * Create a new prefetching iterator. The resources are read as the
+     * evaluation of the SERVICE operator would read them (see
+     * ServicePrefetcher); if source selection is enabled, the IRIs that cannot
+     * match the sub-query are not prefetched (see SourceSelection).
+     *
+     * @param input The upstream bindings.
+     * @param opService The SERVICE ?var operator.
+     * @param execCxt The execution context.
+     */
+    public QueryIterServicePrefetch(QueryIterator input, OpService opService, ExecutionContext execCxt) {
+        super(input, execCxt);
+        Context context = execCxt.getContext();
+        this.opService = opService;
+        this.serviceVar = Var.alloc(opService.getService());
+        this.sourceSelection = context.isTrue(Service.serviceSourceSelection);
+        this.window = Math.max(1, Service.getAsInt(context, Service.prefetchWindow, 1000));
+        this.buffer = new ArrayDeque<>();
+        this.prefetcher = new ServicePrefetcher(
+                Service.getAsInt(context, Service.prefetchMaxThreads, 8),
+                Service.getAsInt(context, Service.prefetchMaxPerHost, 2),
+                context);
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        if (buffer.isEmpty()) {
+            fill();
+        }
+        return !buffer.isEmpty();
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!hasNextBinding()) {
+            throw new NoSuchElementException("QueryIterServicePrefetch.next()/finished");
+        }
+        return buffer.poll();
+    }
+
+    /**
+     * Read the next window of upstream bindings and prefetch the IRIs bound to
+     * the service variable, with the sub-query of each binding (as
+     * QueryIterService substitutes it).
+     */
+    private void fill() {
+        QueryIterator input = getInput();
+        if (input == null) {
+            return;
+        }
+        Set<String> iris = new HashSet<>();
+        List<OpService> services = new ArrayList<>();
+        while (buffer.size() < window && input.hasNext()) {
+            Binding binding = input.nextBinding();
+            buffer.add(binding);
+            Node node = binding.get(serviceVar);
+            if (node != null && node.isURI() && (!sourceSelection || QueryExecutionBase.sourceSelection.canMatch(node.getURI(), opService.getSubOp()))) {
+                iris.add(node.getURI());
+                services.add((OpService) QC.substitute(opService, binding));
+            }
+        }
+        if (!services.isEmpty()) {
+            ServiceMetrics.trace("Prefetching %s IRIs of the variable %s...", iris.size(), serviceVar);
+            ServiceProfile profile = ServiceProfile.get(getExecContext().getContext());
+            ServiceProfile.Node node = profile == null ? null : profile.getRoot().start("prefetch", null);
+            prefetcher.prefetch(services);
+            if (node != null) {
+                node.set("iris", (long) iris.size());
+                node.stop();
+            }
+        }
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        buffer.clear();
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
+    @Override
+    protected void requestSubCancel() {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+    }
+}
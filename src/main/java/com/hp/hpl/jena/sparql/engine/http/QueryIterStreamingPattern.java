@@ -0,0 +1,362 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryExecException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpTriple;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorBase;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprEvalException;
+import com.hp.hpl.jena.sparql.expr.ExprList;
+import com.hp.hpl.jena.sparql.function.FunctionEnv;
+import com.hp.hpl.jena.sparql.function.FunctionEnvBase;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+/**
+ * Evaluates a SERVICE sub-query of a single triple pattern (with optional
+ * FILTERs) over the triples of a Web resource while they are downloaded and
+ * parsed, without loading the resource in an RDF model. The bindings are
+ * returned as soon as their triples have been parsed, so the memory usage does
+ * not depend on the size of the resource.
+ *
+ * The resource is read by a background thread, which passes the matching
+ * bindings through a bounded queue. Closing (or cancelling) the iterator stops
+ * the download.
+ *
+ * As over an RDF model (which is a set of triples), a triple that appears
+ * more than once in the resource gives one binding: the matching triples are
+ * remembered to remove the duplicates. If the resource has more distinct
+ * matching triples than the limit (Service.streamingDistinctLimit), the
+ * download is stopped and the resource is loaded in the cache instead; only
+ * the matches that have not been returned yet are then returned. A resource
+ * that is too large for a memory-mapped index (see MappedIndexes.isTooLarge)
+ * is never loaded in the cache: the iterator fails instead.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class QueryIterStreamingPattern extends QueryIteratorBase {
+
+    private static final int POLL_TIMEOUT = 100; // The time (in milliseconds) between checks for cancellation
+    private static final Binding END = BindingFactory.create(); // Marks the end of the stream
+    private final String iri; // The IRI of the Web resource
+    private final Triple pattern; // The triple pattern
+    private final ExprList filters; // The FILTER expressions (may be empty)
+    private final FunctionEnv env; // The environment of the FILTER evaluation
+    private final BlockingQueue<Binding> queue; // The bindings that have been parsed but not yet returned
+    private final Set<Triple> seen; // The matching triples passed to the queue (used by the background thread only)
+    private final int seenLimit; // The maximum number of matching triples remembered
+    private boolean overflow; // Set when the resource has more matching triples than the limit
+    private volatile boolean stopped; // Set when the iterator is closed or cancelled
+    private volatile Throwable error; // The failure of the background read (or null)
+    private Binding next; // The next binding (or null)
+    private boolean finished; // Set when the end of the stream has been reached
+
+    /**
+     * Create a new streaming iterator and start reading the Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param pattern The triple pattern.
+     * @param filters The FILTER expressions.
+     * @param context The query context.
+     * @param bufferSize The maximum number of bindings waiting to be returned.
+     * @param seenLimit The maximum number of distinct matching triples
+     * streamed before the resource is loaded instead.
+     */
+    public QueryIterStreamingPattern(String iri, Triple pattern, ExprList filters, Context context, int bufferSize, int seenLimit) {
+        this.iri = iri;
+        this.pattern = pattern;
+        this.filters = filters;
+        this.env = new FunctionEnvBase(context);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+        this.seen = new HashSet<>();
+        this.seenLimit = Math.max(1, seenLimit);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "SPARQL-LD stream " + iri);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Check if the sub-query of a SERVICE operator can be streamed: it must be
+     * a single triple pattern with optional FILTERs.
+     *
+     * @param op The sub-query of the SERVICE operator.
+     * @return True if the sub-query can be streamed.
+     */
+    public static boolean applies(Op op) {
+        while (op instanceof OpFilter) {
+            op = ((OpFilter) op).getSubOp();
+        }
+        return op instanceof OpTriple || (op instanceof OpBGP && ((OpBGP) op).getPattern().size() == 1);
+    }
+
+    /**
+     * Create a streaming iterator for the sub-query of a SERVICE operator, if
+     * the sub-query is a single triple pattern with optional FILTERs.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param op The sub-query of the SERVICE operator.
+     * @param context The query context.
+     * @return The streaming iterator, or null if the sub-query cannot be
+     * streamed (it needs joins over the whole resource).
+     */
+    public static QueryIterStreamingPattern create(String iri, Op op, Context context) {
+        ExprList filters = new ExprList();
+        while (op instanceof OpFilter) {
+            filters.addAll(((OpFilter) op).getExprs());
+            op = ((OpFilter) op).getSubOp();
+        }
+        Triple triple;
+        if (op instanceof OpTriple) {
+            triple = ((OpTriple) op).getTriple();
+        } else if (op instanceof OpBGP && ((OpBGP) op).getPattern().size() == 1) {
+            triple = ((OpBGP) op).getPattern().get(0);
+        } else {
+            return null;
+        }
+        return new QueryIterStreamingPattern(iri, triple, filters, context,
+                Service.getAsInt(context, Service.streamingBuffer, 10000),
+                Service.getAsInt(context, Service.streamingDistinctLimit, 100000));
+    }
+
+    /**
+     * Read the Web resource, passing the matching bindings to the queue (runs
+     * in the background thread).
+     */
+    private void read() {
+        try {
+            try {
+                new ReadRDFFromIRI(iri, new StreamRDFBase() {
+                    @Override
+                    public void triple(Triple triple) {
+                        Binding binding = match(triple);
+                        if (binding != null && !seen.contains(triple)) {
+                            if (seen.size() == seenLimit) {
+                                overflow = true;
+                                throw new QueryCancelledException(); // stops the download
+                            }
+                            seen.add(triple);
+                            put(binding);
+                        }
+                    }
+                });
+            } catch (RuntimeException ex) {
+                if (!overflow || stopped) {
+                    throw ex;
+                }
+                readModel();
+            }
+            QueryExecutionBase.failureMemo.recordSuccess(iri);
+            if (!QueryExecutionBase.nonEndpointIndex.inIndex(iri)) {
+                QueryExecutionBase.nonEndpointIndex.add(iri);
+            }
+        } catch (Throwable ex) {
+            if (!stopped) {
+                error = ex;
+                if (FailureMemo.isUnreachable(ex)) {
+                    QueryExecutionBase.failureMemo.recordFailure(iri, ex);
+                }
+            }
+        } finally {
+            try {
+                put(END);
+            } catch (QueryCancelledException ex) {
+                // nobody is waiting for the end of the stream
+            }
+        }
+    }
+
+    /**
+     * Load the RDF model of the Web resource in the cache, passing to the queue
+     * the matching bindings that have not been streamed yet (runs in the
+     * background thread).
+     */
+    private void readModel() {
+        if (QueryExecutionBase.mappedIndexes.isTooLarge(iri)) {
+            throw new QueryExecException("The IRI " + iri + " has more than " + seenLimit
+                    + " matching triples and is too large to be loaded in the cache");
+        }
+        ServiceMetrics.trace("The IRI \"%s\" has more than %s matching triples. Loading it in the cache...", iri, seenLimit);
+        Model model = QueryExecutionBase.cache.getOrLoad(iri);
+        ExtendedIterator<Triple> triples = model.getGraph().find(any(pattern.getSubject()), any(pattern.getPredicate()), any(pattern.getObject()));
+        try {
+            while (triples.hasNext()) {
+                Triple triple = triples.next();
+                Binding binding = match(triple);
+                if (binding != null && !seen.contains(triple)) {
+                    put(binding);
+                }
+            }
+        } finally {
+            triples.close();
+        }
+    }
+
+    private static Node any(Node node) {
+        return Var.isVar(node) ? Node.ANY : node;
+    }
+
+    /**
+     * Add a binding to the queue, waiting while the queue is full.
+     *
+     * @param binding The binding.
+     */
+    private void put(Binding binding) {
+        try {
+            while (!queue.offer(binding, POLL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    throw new QueryCancelledException();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException();
+        }
+        if (stopped) {
+            throw new QueryCancelledException();
+        }
+    }
+
+    /**
+     * Match a triple against the triple pattern and the FILTER expressions.
+     *
+     * @param triple The triple.
+     * @return The binding of the pattern variables, or null if the triple does
+     * not match.
+     */
+    private Binding match(Triple triple) {
+        BindingMap binding = BindingFactory.create();
+        if (!match(pattern.getSubject(), triple.getSubject(), binding)
+                || !match(pattern.getPredicate(), triple.getPredicate(), binding)
+                || !match(pattern.getObject(), triple.getObject(), binding)) {
+            return null;
+        }
+        for (Expr filter : filters) {
+            try {
+                if (!filter.isSatisfied(binding, env)) {
+                    return null;
+                }
+            } catch (ExprEvalException ex) {
+                return null;
+            }
+        }
+        return binding;
+    }
+
+    private static boolean match(Node patternNode, Node node, BindingMap binding) {
+        if (Var.isVar(patternNode)) {
+            Var var = Var.alloc(patternNode);
+            Node bound = binding.get(var);
+            if (bound == null) {
+                binding.add(var, node);
+                return true;
+            }
+            return bound.equals(node);
+        }
+        return patternNode.matches(node);
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        try {
+            Binding binding = null;
+            while (binding == null) {
+                if (stopped) {
+                    throw new QueryCancelledException();
+                }
+                binding = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            if (binding != END) {
+                next = binding;
+                return true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException();
+        }
+
+        finished = true;
+        Throwable failure = error;
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new QueryExecException("Cannot stream the IRI " + iri, failure);
+        }
+        return false;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!hasNextBinding()) {
+            throw new NoSuchElementException("QueryIterStreamingPattern.next()/finished");
+        }
+        Binding binding = next;
+        next = null;
+        return binding;
+    }
+
+    @Override
+    protected void closeIterator() {
+        stopped = true;
+        queue.clear();
+    }
+
+    @Override
+    protected void requestCancel() {
+        stopped = true;
+    }
+
+    @Override
+    public void output(IndentedWriter out, SerializationContext sCxt) {
+        out.print("QueryIterStreamingPattern " + iri + " " + pattern);
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryExecException;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorBase;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.jena.atlas.data.BagFactory;
+import org.apache.jena.atlas.data.DataBag;
+import org.apache.jena.atlas.data.ThresholdPolicyFactory;
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.riot.system.SerializationFactoryFinder;
+
+/**
+ * Pipelined symmetric hash join of two inputs (e.g. the results of two SERVICE
+ * operators). Both inputs are read at the same time, each by its own thread.
+ * Every row that arrives is added in the hash table of its side and probed
+ * against the hash table of the other side, so the joined bindings are
+ * returned as soon as both of their rows have arrived, without waiting for
+ * either input to finish.
+ *
+ * The hash tables are split in partitions. When the rows in memory exceed a
+ * budget, the largest partition of both sides is spilled to disk (as in the
+ * external sort of ARQ), and the rows of that partition that arrive later are
+ * written to disk without being probed. The spilled partitions are joined,
+ * one at a time, after both inputs have finished.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class QueryIterSymmetricHashJoin extends QueryIteratorBase {
+
+    private static final int PARTITIONS = 16; // The number of partitions of each hash table
+    private static final int SPILL_BUFFER = 1000; // The rows of a spilled partition buffered before being written
+    private static final int QUEUE_SIZE = 1024; // The maximum number of rows read but not yet joined
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService producers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SPARQL-LD-join-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final List<Var> joinVars; // The variables bound by every row of both sides (the hash key)
+    private final Side left; // The left input
+    private final Side right; // The right input
+    private final int maxRows; // The maximum number of rows kept in the hash tables
+    private final int[] partitionRows; // The number of rows of each partition in memory (both sides)
+    private final boolean[] spilled; // Whether each partition has been spilled
+    private final BlockingQueue<Row> arrivals; // The rows read by the producers, waiting to be joined
+    private final ArrayDeque<Binding> output; // The joined bindings waiting to be returned
+    private int inMemory; // The number of rows in the hash tables
+    private int running; // The number of inputs not yet finished
+    private int nextSpilled; // The next partition to check after the inputs have finished
+    private volatile boolean stopped; // Set when the iterator is closed or cancelled
+
+    /**
+     * Create a join and start reading both inputs.
+     *
+     * @param left The left input (called in a producer thread).
+     * @param leftVars The variables bound by every row of the left input.
+     * @param right The right input (called in a producer thread).
+     * @param rightVars The variables bound by every row of the right input.
+     * @param maxRows The maximum number of rows kept in memory.
+     */
+    public QueryIterSymmetricHashJoin(Callable<QueryIterator> left, Set<Var> leftVars,
+            Callable<QueryIterator> right, Set<Var> rightVars, int maxRows) {
+        Set<Var> common = new HashSet<>(leftVars);
+        common.retainAll(rightVars);
+        this.joinVars = new ArrayList<>(common);
+        this.left = new Side(left);
+        this.right = new Side(right);
+        this.maxRows = Math.max(1, maxRows);
+        this.partitionRows = new int[PARTITIONS];
+        this.spilled = new boolean[PARTITIONS];
+        this.arrivals = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        this.output = new ArrayDeque<>();
+        this.running = 2;
+        start(this.left);
+        start(this.right);
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        while (output.isEmpty()) {
+            if (running > 0) {
+                join(take());
+            } else if (nextSpilled < PARTITIONS) {
+                if (spilled[nextSpilled]) {
+                    joinSpilled(nextSpilled);
+                }
+                nextSpilled++;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!hasNextBinding()) {
+            throw new NoSuchElementException("QueryIterSymmetricHashJoin.next()/finished");
+        }
+        return output.poll();
+    }
+
+    /**
+     * Wait for the next row of either input.
+     */
+    private Row take() {
+        try {
+            Row row = null;
+            while (row == null) {
+                if (stopped) {
+                    throw new QueryCancelledException();
+                }
+                row = arrivals.poll(100, TimeUnit.MILLISECONDS);
+            }
+            return row;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException();
+        }
+    }
+
+    /**
+     * Join a row with the rows of the other side that have arrived so far.
+     */
+    private void join(Row row) {
+        if (row.error != null) {
+            stop();
+            if (row.error instanceof RuntimeException) {
+                throw (RuntimeException) row.error;
+            }
+            if (row.error instanceof Error) {
+                throw (Error) row.error;
+            }
+            throw new QueryExecException(row.error);
+        }
+        if (row.binding == null) {
+            running--;
+            return;
+        }
+        Side side = row.side;
+        Side other = side == left ? right : left;
+        List<Node> key = key(row.binding);
+        if (key == null) {
+            // The row does not bind the join variables: probe every row of the other side
+            side.partial.add(row.binding);
+            for (Map<List<Node>, List<Binding>> table : other.tables) {
+                for (List<Binding> rows : table.values()) {
+                    probe(side, row.binding, rows);
+                }
+            }
+            probe(side, row.binding, other.partial);
+            return;
+        }
+        int p = partition(key);
+        if (spilled[p]) {
+            side.newRows(p).add(row.binding); // joined after the inputs have finished
+            return;
+        }
+        List<Binding> rows = side.tables.get(p).get(key);
+        if (rows == null) {
+            rows = new ArrayList<>();
+            side.tables.get(p).put(key, rows);
+        }
+        rows.add(row.binding);
+        partitionRows[p]++;
+        inMemory++;
+        List<Binding> matches = other.tables.get(p).get(key);
+        if (matches != null) {
+            probe(side, row.binding, matches);
+        }
+        probe(side, row.binding, other.partial);
+        if (inMemory > maxRows) {
+            spillLargest();
+        }
+    }
+
+    /**
+     * Add the joins of a row with the compatible rows of the other side.
+     */
+    private void probe(Side side, Binding binding, Iterable<Binding> rows) {
+        for (Binding other : rows) {
+            if (Algebra.compatible(binding, other)) {
+                output.add(side == left ? Algebra.merge(binding, other) : Algebra.merge(other, binding));
+            }
+        }
+    }
+
+    /**
+     * Move the largest partition of both sides from memory to disk. The rows
+     * moved have already been joined with each other.
+     */
+    private void spillLargest() {
+        int largest = -1;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (!spilled[p] && (largest < 0 || partitionRows[p] > partitionRows[largest])) {
+                largest = p;
+            }
+        }
+        if (largest < 0 || partitionRows[largest] == 0) {
+            return;
+        }
+        ServiceMetrics.trace("Symmetric hash join: spilling %s rows to disk...", partitionRows[largest]);
+        left.spill(largest);
+        right.spill(largest);
+        spilled[largest] = true;
+        inMemory -= partitionRows[largest];
+        partitionRows[largest] = 0;
+    }
+
+    /**
+     * Join the rows of a spilled partition that have not been joined yet: the
+     * rows that arrived after the spill with all the rows of the other side,
+     * and the rows without the join variables that arrived after the spill
+     * with the spilled rows of the other side.
+     *
+     * @param p The partition.
+     */
+    private void joinSpilled(int p) {
+        Map<List<Node>, List<Binding>> rightOld = load(right.oldRows.get(p));
+        Map<List<Node>, List<Binding>> rightNew = load(right.newRows(p));
+        List<Binding> rightLate = right.partial.subList(right.partialAtSpill[p], right.partial.size());
+        for (Binding binding : left.oldRows.get(p)) {
+            probe(left, binding, rightNew, key(binding));
+            probe(left, binding, rightLate);
+        }
+        for (Binding binding : left.newRows(p)) {
+            List<Node> key = key(binding);
+            probe(left, binding, rightOld, key);
+            probe(left, binding, rightNew, key);
+            probe(left, binding, right.partial);
+        }
+        List<Binding> leftLate = left.partial.subList(left.partialAtSpill[p], left.partial.size());
+        for (Binding binding : left.partial) {
+            for (List<Binding> rows : rightNew.values()) {
+                probe(left, binding, rows);
+            }
+        }
+        for (Binding binding : leftLate) {
+            for (List<Binding> rows : rightOld.values()) {
+                probe(left, binding, rows);
+            }
+        }
+        left.close(p);
+        right.close(p);
+    }
+
+    private void probe(Side side, Binding binding, Map<List<Node>, List<Binding>> table, List<Node> key) {
+        List<Binding> matches = table.get(key);
+        if (matches != null) {
+            probe(side, binding, matches);
+        }
+    }
+
+    private Map<List<Node>, List<Binding>> load(DataBag<Binding> bag) {
+        Map<List<Node>, List<Binding>> table = new HashMap<>();
+        for (Binding binding : bag) {
+            List<Node> key = key(binding);
+            List<Binding> rows = table.get(key);
+            if (rows == null) {
+                rows = new ArrayList<>();
+                table.put(key, rows);
+            }
+            rows.add(binding);
+        }
+        return table;
+    }
+
+    /**
+     * Return the values of the join variables in a binding.
+     *
+     * @return The values, or null if a join variable is not bound.
+     */
+    private List<Node> key(Binding binding) {
+        Node[] values = new Node[joinVars.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = binding.get(joinVars.get(i));
+            if (values[i] == null) {
+                return null;
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    private static int partition(List<Node> key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % PARTITIONS;
+    }
+
+    /**
+     * Read an input in a producer thread, passing its rows to the consumer.
+     */
+    private void start(final Side side) {
+        producers.execute(new Runnable() {
+            @Override
+            public void run() {
+                QueryIterator qIter = null;
+                try {
+                    qIter = side.source.call();
+                    side.input = qIter;
+                    if (stopped) {
+                        return;
+                    }
+                    while (!stopped && qIter.hasNext()) {
+                        put(new Row(side, qIter.nextBinding(), null));
+                    }
+                    put(new Row(side, null, null));
+                } catch (Throwable ex) { // also an Error, else the consumer would wait for this input forever
+                    if (!stopped) {
+                        put(new Row(side, null, ex));
+                    }
+                } finally {
+                    if (qIter != null) {
+                        qIter.close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Pass a row to the consumer, waiting while the queue is full (unless the
+     * join is stopped).
+     */
+    private void put(Row row) {
+        try {
+            while (!stopped && !arrivals.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                // wait for the consumer
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop reading the inputs and release the hash tables and the spilled
+     * partitions.
+     */
+    private void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        left.cancel();
+        right.cancel();
+        for (int p = 0; p < PARTITIONS; p++) {
+            left.close(p);
+            right.close(p);
+        }
+        left.tables.clear();
+        right.tables.clear();
+        arrivals.clear();
+    }
+
+    @Override
+    protected void closeIterator() {
+        stop();
+        output.clear();
+    }
+
+    @Override
+    protected void requestCancel() {
+        stopped = true;
+        left.cancel();
+        right.cancel();
+    }
+
+    @Override
+    public void output(IndentedWriter out, SerializationContext sCxt) {
+        out.print("QueryIterSymmetricHashJoin " + joinVars);
+    }
+
+    /**
+     * A row read by a producer: a binding, the end of the input (null
+     * binding), or the error of the input.
+     */
+    private static final class Row {
+
+        private final Side side; // The input of the row
+        private final Binding binding; // The binding (null at the end of the input)
+        private final Throwable error; // The error of the input (or null)
+
+        private Row(Side side, Binding binding, Throwable error) {
+            this.side = side;
+            this.binding = binding;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The state of one input of the join: its hash table (in memory), its
+     * spilled partitions (on disk) and its rows without the join variables.
+     */
+    private static final class Side {
+
+        private final Callable<QueryIterator> source; // Opens the input
+        private final List<Map<List<Node>, List<Binding>>> tables; // The hash table of each partition
+        private final List<DataBag<Binding>> oldRows; // The spilled rows of each partition
+        private final List<DataBag<Binding>> newRows; // The rows of each partition that arrived after its spill
+        private final List<Binding> partial; // The rows that do not bind all the join variables
+        private final int[] partialAtSpill; // The number of partial rows when each partition was spilled
+        private volatile QueryIterator input; // The input (null until opened)
+
+        private Side(Callable<QueryIterator> source) {
+            this.source = source;
+            this.tables = new ArrayList<>();
+            this.oldRows = new ArrayList<>();
+            this.newRows = new ArrayList<>();
+            for (int p = 0; p < PARTITIONS; p++) {
+                tables.add(new HashMap<List<Node>, List<Binding>>());
+                oldRows.add(null);
+                newRows.add(null);
+            }
+            this.partial = new ArrayList<>();
+            this.partialAtSpill = new int[PARTITIONS];
+        }
+
+        private void spill(int p) {
+            DataBag<Binding> bag = newBag();
+            for (List<Binding> rows : tables.get(p).values()) {
+                bag.addAll(rows);
+            }
+            tables.get(p).clear();
+            oldRows.set(p, bag);
+            newRows.set(p, newBag());
+            partialAtSpill[p] = partial.size();
+        }
+
+        private DataBag<Binding> newRows(int p) {
+            return newRows.get(p);
+        }
+
+        private void close(int p) {
+            if (oldRows.get(p) != null) {
+                oldRows.get(p).close(); // deletes the spill files
+                newRows.get(p).close();
+                oldRows.set(p, null);
+                newRows.set(p, null);
+            }
+        }
+
+        private void cancel() {
+            QueryIterator qIter = input;
+            if (qIter != null) {
+                qIter.cancel();
+            }
+        }
+
+        private static DataBag<Binding> newBag() {
+            return BagFactory.newDefaultBag(ThresholdPolicyFactory.<Binding>count(SPILL_BUFFER),
+                    SerializationFactoryFinder.bindingSerializationFactory());
+        }
+    }
+}
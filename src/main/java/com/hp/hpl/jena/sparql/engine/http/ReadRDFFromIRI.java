@@ -18,23 +18,37 @@
 package com.hp.hpl.jena.sparql.engine.http;
 
 import com.hp.hpl.jena.query.Query;
-import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecException;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
-import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.resultset.JSONInput;
+import com.hp.hpl.jena.sparql.resultset.XMLInput;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
+import java.io.InputStream;
 import java.net.URL;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.jena.riot.web.HttpOp;
+import java.net.URLEncoder;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.atlas.web.ContentType;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.LangBuilder;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.StreamOps;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
 import org.semarglproject.jena.rdf.rdfa.JenaRdfaReader;
 
 /**
@@ -45,13 +59,19 @@ import org.semarglproject.jena.rdf.rdfa.JenaRdfaReader;
  */
 public class ReadRDFFromIRI {
 
+    private static final int SNIFF_LENGTH = 4096; // The number of bytes read for guessing the RDF syntax of a response
+    private static final Lang RDFA = LangBuilder.create("RDFa", "text/html").build(); // HTML pages, read for RDFa data (not registered in RIOT)
+    private static final Pattern NTRIPLES_START = Pattern.compile("<[^>\\s]*>\\s"); // The beginning of an N-Triples (or Turtle) triple
     private static final String askQuery = "ASK { ?x ?y ?z }"; // A SPARQL ASK query for checking if the IRI corresponds to a SPARQL endpoint
+    private static final String ASK_ACCEPT = "application/sparql-results+xml, application/sparql-results+json"; // The ACCEPT request property of the ASK query
+    static final String ACCEPT = "application/rdf+xml, text/n3, application/n-triples, text/rdf+n3, application/rdf+n3, application/rdf, text/turtle, application/ld+json"; // The ACCEPT request property for handling dereferenceable IRIs
     private String iri; // The IRI of the SERVICE operator
     private Query query; // The query to run at the RDF data that may exist in the IRI.
     private ResultSet resultSet; // A ResultSet object containing the results of running the query to the IRI.
     private QueryExecutionBase qe; // A QueryExecution object for running the query to the model that corresponds to the IRI.
     private String contentType; // The IRI content type
-    private Model model; // The RDF model of the IRI
+    private Model model; // The RDF model of the IRI (null if its triples have been streamed)
+    private ResourceMetadata metadata; // The HTTP caching metadata of the IRI (if the IRI content type has been read)
 
     /**
      * Create a new object for reading and querying the RDF data that may exist
@@ -65,109 +85,291 @@ public class ReadRDFFromIRI {
         this.query = query;
 
         read();
+        execute();
     }
 
     /**
-     * Read the RDF data that may exist in the IRI by checking both the IRI file
-     * extension and the IRI content type.
+     * Create a new object for streaming the RDF data that may exist in the
+     * given IRI, without keeping them in an RDF model. The triples are sent to
+     * the given sink while they are parsed.
+     *
+     * @param iri The IRI of the SERVICE operator.
+     * @param sink The destination of the triples.
+     */
+    public ReadRDFFromIRI(String iri, StreamRDF sink) {
+        this.iri = iri;
+
+        read(sink);
+    }
+
+    /**
+     * Create a new object for reading (without querying) the RDF data that may
+     * exist in the given IRI.
+     *
+     * @param iri The IRI of the SERVICE operator.
+     */
+    public ReadRDFFromIRI(String iri) {
+        this.iri = iri;
+
+        read();
+    }
+
+    /**
+     * Create a new object for reading (without querying) the RDF data of the
+     * given IRI from an HTTP response that has already been received (e.g. the
+     * 200 response of a revalidation, see DiskResourcesCache).
+     *
+     * @param iri The IRI of the SERVICE operator.
+     * @param response The (successful) HTTP response of a GET of the IRI.
+     */
+    public ReadRDFFromIRI(String iri, HttpResponse response) {
+        this.iri = iri;
+
+        model = ModelFactory.createDefaultModel();
+        read(response, StreamRDFLib.graph(model.getGraph()));
+    }
+
+    /**
+     * Read the RDF data that may exist in the IRI into the RDF model.
      *
      */
     private void read() {
         model = ModelFactory.createDefaultModel();
+        read(StreamRDFLib.graph(model.getGraph()));
+    }
 
-        /* First check the IRI file extension */
-        if (iri.toLowerCase().endsWith(".ntriples") || iri.toLowerCase().endsWith(".nt")) {
-            System.out.println("# Reading a N-Triples file...");
-            model.read(iri, "N-TRIPLE");
-            qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-            resultSet = qe.execSelect();
-        } else if (iri.toLowerCase().endsWith(".n3")) {
-            System.out.println("# Reading a Notation3 (N3) file...");
-            model.read(iri);
-            qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-            resultSet = qe.execSelect();
-        } else if (iri.toLowerCase().endsWith(".json") || iri.toLowerCase().endsWith(".jsod") || iri.toLowerCase().endsWith(".jsonld")) {
-            System.out.println("# Trying to read a 'json-ld' file...");
-            model.read(iri, "JSON-LD");
-            qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-            resultSet = qe.execSelect();
-        } else {
-            setContentType(); // get the IRI content type
-            System.out.println("# IRI Content Type: " + contentType);
-            if (contentType.contains("text/html") || contentType.contains("application/xhtml+xml")) {
-
-                try {
-                    System.out.println("# Checking if the URI can be resolved...");
-                    final HttpClient httpclient = new DefaultHttpClient();
-                    final org.apache.http.params.HttpParams params = httpclient.getParams();
-                    params.setParameter(HttpConnectionParams.CONNECTION_TIMEOUT, 1000);
-                    params.setParameter(HttpConnectionParams.SO_TIMEOUT, 5000);
-                    HttpOp.setDefaultHttpClient(httpclient);
-                    model.read(iri);
-                    qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-                    resultSet = qe.execSelect();
-                } catch (Exception e) {
-                    System.out.println("# Checking if the URI contains 'RDFa' data...");
-                    JenaRdfaReader.inject();
-                    model.read(iri, "RDFA");
-                    qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-                    resultSet = qe.execSelect();
-                }
+    /**
+     * Read the RDF data that may exist in the IRI using a single HTTP request
+     * (see read(HttpResponse, StreamRDF)).
+     *
+     * @param sink The destination of the triples.
+     */
+    private void read(StreamRDF sink) {
+        read(null, sink);
+    }
 
-            } else if (contentType.contains("application/ld+json") || contentType.contains("application/json") || contentType.contains("application/json+ld")) {
-                System.out.println("# Trying to read a 'json-ld' file...");
-                model.read(iri, "JSON-LD");
-                qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-                resultSet = qe.execSelect();
-            } else if (contentType.contains("application/n-triples")) {
-                System.out.println("# Reading a N-Triples file...");
-                model.read(iri, "N-TRIPLE");
-                qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-                resultSet = qe.execSelect();
-            } else if (contentType.contains("text/n3")) {
-                System.out.println("# Reading a Notation3 (N3) file...");
-                model.read(iri);
-                qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-                resultSet = qe.execSelect();
+    /**
+     * Read the RDF data that may exist in the IRI using a single HTTP request.
+     * Compressed content (gzip, bzip2 or xz) is decompressed while it is read
+     * (see Decompression). The RDF syntax is selected from the IRI file
+     * extension (ignoring a compression extension such as .gz), then from the
+     * response content type and, if both are missing or ambiguous, by sniffing
+     * the beginning of the (buffered) response body. HTML pages are buffered
+     * and read for RDFa data; N-Triples and N-Quads documents are parsed in
+     * parallel (see ParallelNTriplesParser).
+     *
+     * @param received The HTTP response of the IRI, if it has already been
+     * received (or null, to send the request).
+     * @param sink The destination of the triples.
+     */
+    private void read(HttpResponse received, StreamRDF sink) {
+        contentType = "";
+
+        HttpGet request = null;
+        HttpEntity entity = null;
+        boolean completed = false;
+        ServiceMetrics metrics = QueryExecutionBase.metrics;
+        long timer = metrics.startTimer();
+        ServiceProfile.Node node = ServiceProfile.current(); // The node of the read in the execution profile (if any)
+        long phase = node != null ? System.nanoTime() : 0;
+        CountingInputStream counter = null;
+        try {
+            InputStream body;
+            String scheme = iri.toLowerCase();
+            if (received != null || scheme.startsWith("http://") || scheme.startsWith("https://")) {
+                HttpResponse response = received;
+                if (response == null) {
+                    request = HttpClientPool.createGet(iri, ACCEPT, null);
+                    response = HttpClientPool.execute(request);
+                }
+                entity = response.getEntity();
+                int code = response.getStatusLine().getStatusCode();
+                if (code / 100 != 2 || entity == null) {
+                    throw new QueryExecException("Cannot read the IRI " + iri + ": HTTP " + response.getStatusLine());
+                }
+                if (entity.getContentType() != null) {
+                    contentType = entity.getContentType().getValue();
+                }
+                metadata = ResourceMetadata.fromResponse(response, QueryExecutionBase.cache.getTTL());
+                body = entity.getContent();
+            } else { // e.g. a file: IRI
+                URLConnection connection = new URL(iri).openConnection();
+                body = connection.getInputStream();
+                if (connection.getContentType() != null) {
+                    contentType = connection.getContentType();
+                }
+            }
+            if (timer != 0 || node != null) {
+                body = counter = new CountingInputStream(body);
+            }
+            if (node != null) {
+                node.phase("fetch", phase).set("contentType", contentType);
+                phase = System.nanoTime();
+            }
+            try (BufferedInputStream in = new BufferedInputStream(Decompression.decompress(body), SNIFF_LENGTH)) {
+                parse(in, sink);
+                completed = true;
+            }
+            if (node != null) {
+                node.phase("parse", phase).set("bytes", counter.count);
+            }
+        } catch (IOException ex) {
+            throw new QueryExecException("Cannot read the IRI " + iri, ex);
+        } finally {
+            if (completed && timer != 0) {
+                metrics.recordFetch(timer, counter.count);
+            } else if (!completed) {
+                metrics.recordFetchError();
+            }
+            if (completed || request == null) {
+                EntityUtils.consumeQuietly(entity);
             } else {
-                System.out.println("# Reading an RDF/XML file...");
-                model.read(iri);
-                qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
-                resultSet = qe.execSelect();
+                request.abort(); // do not download the rest of a failed (or stopped) read
             }
         }
     }
 
     /**
-     * Read the IRI content type by opening an HTTP connection. We set the value
-     * 'application/rdf+xml' to the ACCEPT request property for handling
-     * dereferenceable IRIs.
+     * Parse the (buffered) content of the IRI.
+     *
+     * @param in The content of the IRI.
+     * @param sink The destination of the triples.
      */
-    public void setContentType() {
-        contentType = "";
-        try {
-            URL url = new URL(iri);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("ACCEPT", "application/rdf+xml, text/n3, application/n-triples, text/rdf+n3, application/rdf+n3, application/rdf");
-            connection.connect();
-            //connection.setConnectTimeout(2000);
-            contentType = connection.getContentType();
-            if (contentType == null) {
-                contentType = "";
+    private void parse(BufferedInputStream in, StreamRDF sink) throws IOException {
+        ServiceMetrics.trace("IRI Content Type: %s", contentType);
+
+        Lang lang = extensionToLang(iri);
+        if (lang == null) {
+            lang = contentTypeToLang(contentType);
+        }
+        if (lang == null) {
+            ServiceMetrics.trace("Sniffing the IRI content...");
+            lang = sniff(in);
+        }
+
+        if (lang == RDFA) {
+            ServiceMetrics.trace("Checking if the URI contains 'RDFa' data...");
+            byte[] page = IO.readWholeFile(in);
+            Model rdfa = model != null ? model : ModelFactory.createDefaultModel();
+            new JenaRdfaReader().read(rdfa, new ByteArrayInputStream(page), iri);
+            if (rdfa != model) {
+                sink.start();
+                StreamOps.sendTriplesToStream(rdfa.getGraph(), sink);
+                sink.finish();
             }
-        } catch (MalformedURLException ex) {
-            Logger.getLogger(ReadRDFFromIRI.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(ReadRDFFromIRI.class.getName()).log(Level.SEVERE, null, ex);
+        } else if (ParallelNTriplesParser.supports(lang)) {
+            ServiceMetrics.trace("Reading a %s file in parallel...", lang.getLabel());
+            ParallelNTriplesParser.parse(in, iri, lang, sink);
+        } else {
+            ServiceMetrics.trace("Reading a %s file...", lang.getLabel());
+            RDFDataMgr.parse(sink, in, iri, lang);
+        }
+    }
+
+    /**
+     * Return the RDF syntax that corresponds to the file extension of an IRI.
+     *
+     * @param iri The IRI.
+     * @return The RDF syntax, or null if the IRI has no known file extension.
+     */
+    private static Lang extensionToLang(String iri) {
+        String path = Decompression.stripExtension(iri).toLowerCase();
+        if (path.endsWith(".ntriples") || path.endsWith(".nt")) {
+            return RDFLanguages.NTRIPLES;
+        } else if (path.endsWith(".nquads") || path.endsWith(".nq")) {
+            return RDFLanguages.NQUADS;
+        } else if (path.endsWith(".n3")) {
+            return RDFLanguages.N3;
+        } else if (path.endsWith(".json") || path.endsWith(".jsod") || path.endsWith(".jsonld")) {
+            return RDFLanguages.JSONLD;
+        }
+        return null;
+    }
+
+    /**
+     * Return the RDF syntax that corresponds to a response content type.
+     *
+     * @param contentType The content type (may be empty).
+     * @return The RDF syntax, or null if the content type is missing or
+     * ambiguous (e.g. text/plain or application/xml).
+     */
+    private static Lang contentTypeToLang(String contentType) {
+        String type = contentType.toLowerCase();
+        if (type.contains("text/html") || type.contains("application/xhtml+xml")) {
+            return RDFA;
+        } else if (type.contains("application/ld+json") || type.contains("application/json+ld")) {
+            return RDFLanguages.JSONLD;
+        } else if (type.isEmpty() || type.contains("text/plain") || type.contains("application/octet-stream")
+                || type.contains("application/json") || type.contains("/xml")) {
+            return null;
+        }
+        try {
+            Lang lang = RDFLanguages.contentTypeToLang(ContentType.create(contentType));
+            return lang != null && RDFLanguages.isTriples(lang) ? lang : null;
+        } catch (RuntimeException ex) {
+            return null; // malformed content type
         }
     }
 
+    /**
+     * Guess the RDF syntax of a response body from its first bytes. The stream
+     * is reset to its beginning.
+     *
+     * @param in The (buffered) response body.
+     * @return The RDF syntax (RDF/XML if it cannot be guessed).
+     */
+    private static Lang sniff(BufferedInputStream in) throws IOException {
+        byte[] head = new byte[SNIFF_LENGTH];
+        in.mark(SNIFF_LENGTH);
+        int length = 0;
+        int count;
+        while (length < head.length && (count = in.read(head, length, head.length - length)) > 0) {
+            length += count;
+        }
+        in.reset();
+
+        String text = new String(head, 0, length, StandardCharsets.UTF_8).replace("\uFEFF", "").trim();
+        String lower = text.toLowerCase();
+        if (lower.startsWith("{") || lower.startsWith("[")) {
+            return RDFLanguages.JSONLD;
+        } else if (lower.contains("<rdf:rdf")) {
+            return RDFLanguages.RDFXML;
+        } else if (lower.startsWith("<!doctype html") || lower.contains("<html")) {
+            return RDFA;
+        } else if (lower.startsWith("@prefix") || lower.startsWith("@base")
+                || lower.startsWith("prefix") || lower.startsWith("base")
+                || lower.startsWith("_:") || NTRIPLES_START.matcher(text).lookingAt()) {
+            return RDFLanguages.TURTLE; // Turtle, N3 or N-Triples
+        }
+        return RDFLanguages.RDFXML;
+    }
+
+    /**
+     * Run the query at the RDF model of the IRI.
+     *
+     */
+    private void execute() {
+        qe = (QueryExecutionBase) QueryExecutionFactory.create(query, model);
+        resultSet = qe.execSelect();
+    }
+
+    /**
+     * Return the IRI content type (as returned by the last read of the IRI).
+     *
+     * @return The content type, or an empty string if it is not known.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
     /**
      * Close the query execution and stop query evaluation.
      *
      */
     public void close() {
-        qe.close(false);
+        if (qe != null) {
+            qe.close(false);
+        }
     }
 
     /**
@@ -215,19 +417,87 @@ public class ReadRDFFromIRI {
         this.model = model;
     }
 
+    /**
+     * Return the HTTP caching metadata of the IRI.
+     *
+     * @return The metadata, or null if they are not known.
+     */
+    public ResourceMetadata getMetadata() {
+        return metadata;
+    }
+
     /**
      * Run an ASK query at the IRI for checking if it corresponds to a SPARQL
-     * endpoint.
+     * endpoint. The query is sent through the shared HTTP client.
      *
      */
     public static boolean isEndpoint(String uri) {
+        ServiceMetrics.trace("Checking if the IRI corresponds to a SPARQL endpoint...Sending an ASK query...");
+        HttpGet request = null;
+        HttpEntity entity = null;
         try {
-            System.out.println("# Checking if the IRI corresponds to a SPARQL endpoint...Sending an ASK query...");
-            QueryExecution qexecTest = QueryExecutionFactory.sparqlService(uri, QueryFactory.create(askQuery));
-            boolean resultsTest = qexecTest.execAsk();
+            String params = "query=" + URLEncoder.encode(askQuery, "UTF-8");
+            request = HttpClientPool.createGet(uri + (uri.contains("?") ? "&" : "?") + params, ASK_ACCEPT, null);
+            HttpResponse response = HttpClientPool.execute(request);
+            entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() / 100 != 2 || entity == null) {
+                throw new QueryExecException("HTTP " + response.getStatusLine());
+            }
+            String type = entity.getContentType() == null ? "" : entity.getContentType().getValue().toLowerCase();
+            try (InputStream in = entity.getContent()) {
+                if (type.contains("json")) {
+                    JSONInput.booleanFromJSON(in);
+                } else {
+                    XMLInput.booleanFromXML(in);
+                }
+            }
+            QueryExecutionBase.metrics.recordEndpointCheck(true);
             return true;
         } catch (Exception e) {
+            if (request != null) {
+                request.abort();
+            }
+            QueryExecutionBase.metrics.recordEndpointCheck(false);
             return false;
+        } finally {
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    /**
+     * Counts the bytes read from a stream (for ServiceMetrics).
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count; // The number of bytes read
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
         }
     }
 }
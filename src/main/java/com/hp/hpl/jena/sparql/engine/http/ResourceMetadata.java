@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import java.util.Properties;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * The HTTP caching metadata of a fetched Web resource: its validators
+ * (ETag, Last-Modified) and its expiration time (from Cache-Control or
+ * Expires).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class ResourceMetadata {
+
+    private final String etag; // The ETag of the resource (or null)
+    private final String lastModified; // The Last-Modified date of the resource (or null)
+    private final long expires; // The expiration time of the resource
+    private final boolean storable; // False if the resource must not be stored (Cache-Control: no-store)
+
+    /**
+     * Create a new metadata object.
+     *
+     * @param etag The ETag of the resource (or null).
+     * @param lastModified The Last-Modified date of the resource (or null).
+     * @param expires The expiration time of the resource.
+     * @param storable False if the resource must not be stored.
+     */
+    public ResourceMetadata(String etag, String lastModified, long expires, boolean storable) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+        this.storable = storable;
+    }
+
+    /**
+     * Create the metadata of a resource without validators.
+     *
+     * @param ttl The time-to-live (in milliseconds) of the resource.
+     * @return The metadata.
+     */
+    public static ResourceMetadata withoutValidators(long ttl) {
+        return new ResourceMetadata(null, null, System.currentTimeMillis() + ttl, true);
+    }
+
+    /**
+     * Read the metadata of a resource from the headers of an HTTP response.
+     *
+     * @param response The HTTP response.
+     * @param defaultTtl The time-to-live (in milliseconds) to use if the
+     * response does not define an expiration time.
+     * @return The metadata.
+     */
+    public static ResourceMetadata fromResponse(HttpResponse response, long defaultTtl) {
+        long expires = -1;
+        String expiresHeader = header(response, "Expires");
+        if (expiresHeader != null) {
+            try {
+                expires = DateUtils.parseDate(expiresHeader).getTime();
+            } catch (DateParseException ex) {
+                // ignore an invalid date
+            }
+        }
+        return fromHeaders(header(response, "ETag"),
+                header(response, "Last-Modified"),
+                header(response, "Cache-Control"),
+                expires,
+                defaultTtl);
+    }
+
+    private static String header(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Read the metadata of a resource from the values of the HTTP response
+     * headers.
+     *
+     * @param etag The ETag header (or null).
+     * @param lastModified The Last-Modified header (or null).
+     * @param cacheControl The Cache-Control header (or null).
+     * @param expiresHeader The date of the Expires header (or -1).
+     * @param defaultTtl The time-to-live (in milliseconds) to use if the
+     * response does not define an expiration time.
+     * @return The metadata.
+     */
+    public static ResourceMetadata fromHeaders(String etag, String lastModified, String cacheControl, long expiresHeader, long defaultTtl) {
+        long now = System.currentTimeMillis();
+        long expires = now + defaultTtl;
+        boolean storable = true;
+        boolean maxAge = false;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store")) {
+                    storable = false;
+                } else if (directive.equals("no-cache")) {
+                    expires = now;
+                    maxAge = true;
+                } else if (directive.startsWith("max-age=") && !maxAge) {
+                    try {
+                        expires = now + 1000 * Long.parseLong(directive.substring("max-age=".length()).trim());
+                        maxAge = true;
+                    } catch (NumberFormatException ex) {
+                        // ignore a malformed directive
+                    }
+                }
+            }
+        }
+        if (!maxAge && expiresHeader > 0) {
+            expires = expiresHeader;
+        }
+        return new ResourceMetadata(etag, lastModified, expires, storable);
+    }
+
+    /**
+     * Add to an HTTP request the headers of a conditional GET, using the
+     * validators of the resource.
+     *
+     * @param request The HTTP request.
+     */
+    public void applyValidators(HttpRequest request) {
+        if (etag != null) {
+            request.setHeader("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.setHeader("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Return the metadata of the resource after a successful revalidation
+     * (304 Not Modified). The validators are kept unless the response
+     * replaces them.
+     *
+     * @param response The HTTP response of the revalidation.
+     * @param defaultTtl The time-to-live (in milliseconds) to use if the
+     * response does not define an expiration time.
+     * @return The refreshed metadata.
+     */
+    public ResourceMetadata revalidated(HttpResponse response, long defaultTtl) {
+        ResourceMetadata fresh = fromResponse(response, defaultTtl);
+        return new ResourceMetadata(
+                fresh.etag != null ? fresh.etag : etag,
+                fresh.lastModified != null ? fresh.lastModified : lastModified,
+                fresh.expires,
+                fresh.storable);
+    }
+
+    /**
+     * Check if the resource has not expired.
+     *
+     * @return True if the resource has not expired.
+     */
+    public boolean isFresh() {
+        return expires > System.currentTimeMillis();
+    }
+
+    /**
+     * Write the metadata to a properties object.
+     *
+     * @param properties The properties object.
+     */
+    public void store(Properties properties) {
+        if (etag != null) {
+            properties.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("lastModified", lastModified);
+        }
+        properties.setProperty("expires", Long.toString(expires));
+    }
+
+    /**
+     * Read the metadata from a properties object.
+     *
+     * @param properties The properties object.
+     * @return The metadata.
+     */
+    public static ResourceMetadata load(Properties properties) {
+        long expires;
+        try {
+            expires = Long.parseLong(properties.getProperty("expires", "0"));
+        } catch (NumberFormatException ex) {
+            expires = 0;
+        }
+        return new ResourceMetadata(properties.getProperty("etag"), properties.getProperty("lastModified"), expires, true);
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public boolean isStorable() {
+        return storable;
+    }
+}
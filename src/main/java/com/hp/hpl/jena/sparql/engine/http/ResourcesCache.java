@@ -17,36 +17,191 @@
  */
 package com.hp.hpl.jena.sparql.engine.http;
 
+import com.hp.hpl.jena.query.QueryExecException;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.jena.riot.system.StreamRDFLib;
 
 /**
- * Request-scope cache (in the context of a submitted SPARQL query) of the
- * already-retrieved resources/datasets. The cache stores pairs of [IRI, Model]
- * in order to avoid re-fetching the same resource triples.
+ * Cache of the already-retrieved resources/datasets, shared across queries.
+ * The cache stores pairs of [IRI, Model] in order to avoid re-fetching the
+ * same resource triples.
+ *
+ * The cache is thread-safe. It is bounded by the total number of cached
+ * triples and (optionally) by their estimated heap size; when a bound is
+ * exceeded, the least recently used resources are evicted. Each resource
+ * expires after a time-to-live. Concurrent loads of the same missing resource
+ * are performed only once. Lookups, additions and removals do not share a
+ * lock: the resources are kept in a concurrent map, each resource records the
+ * time of its last access, and only the evictions (which order the resources
+ * by their last access) are serialized.
+ *
+ * The cached models may be stored as compact, read-only graphs (see
+ * CompactGraph and setCompact), whose terms are encoded by a dictionary shared
+ * by all the cached resources.
+ *
+ * The cache may have an off-heap tier (see OffHeapResourcesCache), which
+ * keeps the evicted resources outside the Java heap; a resource found there is
+ * moved back to the cache. The cache may also have a persistent tier on disk
+ * (see DiskResourcesCache), which is consulted before fetching a missing
+ * resource from the Web.
  *
  * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
  */
 public class ResourcesCache {
 
-    private HashMap<String, Model> iri2model;
+    /**
+     * The estimated heap size (in bytes) of a triple of an in-memory model.
+     */
+    public static final long ESTIMATED_BYTES_PER_TRIPLE = 250;
+    /**
+     * The default maximum number of cached triples.
+     */
+    public static final long DEFAULT_MAX_TRIPLES = 1000000;
+    /**
+     * The default time-to-live (in milliseconds) of a cached resource.
+     */
+    public static final long DEFAULT_TTL = 60 * 60 * 1000;
+    private static final int MIN_DICTIONARY_TERMS = 100000; // The number of terms below which the dictionary is never replaced
+    private final ConcurrentHashMap<String, CachedModel> iri2model; // The cached resources
+    private final ConcurrentHashMap<String, FutureTask<Model>> loading; // The resources being loaded
+    private final Object evictionLock; // Serializes the evictions and the replacement of the dictionary
+    private volatile long maxTriples; // The maximum number of cached triples
+    private volatile long maxBytes; // The maximum estimated heap size of the cached triples (-1 for no bound)
+    private volatile long ttl; // The default time-to-live of a cached resource
+    private final AtomicLong triples; // The number of cached triples
+    private final AtomicLong bytes; // The estimated heap size of the cached triples
+    private volatile boolean compact; // True if the cached models are stored as compact graphs
+    private volatile TermDictionary dictionary; // The dictionary of the terms of the compact graphs
+    private volatile OffHeapResourcesCache offHeap; // The off-heap tier (or null)
+    private volatile DiskResourcesCache disk; // The on-disk tier (or null)
 
     /**
-     * Initialize a new cache.
+     * Initialize a new cache with the default bounds.
      *
      */
     public ResourcesCache() {
-        this.iri2model = new HashMap<>();
+        this(DEFAULT_MAX_TRIPLES, -1, DEFAULT_TTL);
     }
 
     /**
-     * Add to the cache a pair (IRI, Model).
+     * Initialize a new cache.
+     *
+     * @param maxTriples The maximum number of cached triples.
+     * @param maxBytes The maximum estimated heap size (in bytes) of the cached
+     * triples, or -1 for no bound.
+     * @param ttl The default time-to-live (in milliseconds) of a cached
+     * resource.
+     */
+    public ResourcesCache(long maxTriples, long maxBytes, long ttl) {
+        this.iri2model = new ConcurrentHashMap<>();
+        this.loading = new ConcurrentHashMap<>();
+        this.evictionLock = new Object();
+        this.maxTriples = maxTriples;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.triples = new AtomicLong();
+        this.bytes = new AtomicLong();
+        this.dictionary = new TermDictionary();
+    }
+
+    /**
+     * Add to the cache a pair (IRI, Model), using the default time-to-live.
      *
      * @param iri The IRI of the Web resource.
      * @param model The RDF model of the Web resource
      */
     public void add(String iri, Model model) {
-        iri2model.put(iri, model);
+        add(iri, model, ttl);
+    }
+
+    /**
+     * Add to the cache a pair (IRI, Model).
+     *
+     * @param iri The IRI of the Web resource.
+     * @param model The RDF model of the Web resource
+     * @param ttl The time-to-live (in milliseconds) of the Web resource.
+     */
+    public void add(String iri, Model model, long ttl) {
+        put(iri, model, ttl);
+    }
+
+    /**
+     * Add to the cache a pair (IRI, Model), storing the model as a compact
+     * graph if enabled.
+     *
+     * @return The model to query (the compact graph, if the model was
+     * compacted).
+     */
+    private Model put(String iri, Model model, long ttl) {
+        TermDictionary terms = compact && !(model.getGraph() instanceof CompactGraph) ? dictionary(model.size()) : null;
+        if (terms != null) {
+            model = CompactGraph.compact(model, terms);
+        }
+        CachedModel entry = new CachedModel(model, System.currentTimeMillis() + ttl);
+        if (!fits(entry.triples, entry.bytes)) {
+            remove(iri);
+            return model;
+        }
+        CachedModel previous = iri2model.put(iri, entry);
+        if (previous != null) {
+            account(previous, -1);
+        }
+        account(entry, 1);
+        demote(evict());
+        return model;
+    }
+
+    /**
+     * Move evicted resources (that have not expired) to the off-heap tier, if
+     * any.
+     *
+     * @param evicted The evicted resources.
+     */
+    private void demote(Map<String, CachedModel> evicted) {
+        OffHeapResourcesCache offHeapTier = offHeap;
+        if (offHeapTier == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CachedModel> entry : evicted.entrySet()) {
+            if (entry.getValue().expires >= now) {
+                offHeapTier.store(entry.getKey(), entry.getValue().model, entry.getValue().expires);
+            }
+        }
+    }
+
+    /**
+     * Return the dictionary for the compact graph of a new resource, or null if
+     * the resource does not fit in the cache. The dictionary is replaced by a
+     * new one when most of its terms belong to evicted resources (the graphs
+     * that use the old dictionary keep it until they are evicted).
+     *
+     * @param count The number of triples of the resource.
+     * @return The dictionary, or null.
+     */
+    private TermDictionary dictionary(long count) {
+        if (!fits(count, 0)) {
+            return null;
+        }
+        synchronized (evictionLock) {
+            if (dictionary.size() > MIN_DICTIONARY_TERMS && dictionary.size() > 3 * (triples.get() + count)) {
+                dictionary = new TermDictionary();
+            }
+            return dictionary;
+        }
     }
 
     /**
@@ -56,37 +211,471 @@ public class ResourcesCache {
      * @return True if the given Web resource exists in the cache
      */
     public boolean inCache(String iri) {
-        if (iri2model.containsKey(iri)) {
-            return true;
-        } else {
-            return false;
+        OffHeapResourcesCache offHeapTier = offHeap;
+        return getHeapModel(iri) != null || (offHeapTier != null && offHeapTier.contains(iri));
+    }
+
+    /**
+     * Get the RDF model of a Web resource. A resource found in the off-heap
+     * tier is decoded and moved back to the (heap) cache.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The RDF model of the given Web resource, or null if it does not
+     * exist in the cache (or it has expired)
+     */
+    public Model getModel(String iri) {
+        Model model = getHeapModel(iri);
+        OffHeapResourcesCache offHeapTier = offHeap;
+        if (model != null || offHeapTier == null) {
+            return model;
+        }
+        long expires = offHeapTier.getExpires(iri);
+        model = offHeapTier.load(iri, compact ? dictionary : null);
+        if (model == null) {
+            return null;
         }
+        ServiceMetrics.trace("The IRI \"%s\" EXISTS in the off-heap cache!", iri);
+        offHeapTier.remove(iri);
+        return put(iri, model, expires - System.currentTimeMillis());
     }
 
     /**
-     * Get the RDF model of a Web resource.
+     * Get the RDF model of a Web resource from the (heap) cache.
+     */
+    private Model getHeapModel(String iri) {
+        CachedModel entry = iri2model.get(iri);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            if (iri2model.remove(iri, entry)) {
+                account(entry, -1);
+            }
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        return entry.model;
+    }
+
+    /**
+     * Get the RDF model of a Web resource, reading it from the on-disk tier
+     * (if any) or from the Web if it does not exist in the cache.
      *
      * @param iri The IRI of the Web resource.
      * @return The RDF model of the given Web resource
      */
-    public Model getModel(String iri) {
-        return iri2model.get(iri);
+    public Model getOrLoad(final String iri) {
+        return getOrLoad(iri, new Load(iri, null));
+    }
+
+    /**
+     * Get the RDF model of a Web resource, or its filtered RDF model.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param filter The filter of the triples.
+     * @return The (full or filtered) RDF model of the given Web resource, or
+     * null if neither exists in the cache (or they have expired)
+     */
+    public Model getModel(String iri, TripleFilter filter) {
+        Model model = getModel(iri);
+        return model != null ? model : getModel(filter.key(iri));
+    }
+
+    /**
+     * Get the filtered RDF model of a Web resource, reading it from the
+     * on-disk tier (if any) or from the Web if neither the resource nor its
+     * filtered model exist in the cache. Only the accepted triples are kept
+     * in memory; the filtered model is cached with the filter signature in its
+     * key.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param filter The filter of the triples.
+     * @return The (full or filtered) RDF model of the given Web resource
+     */
+    public Model getOrLoad(final String iri, final TripleFilter filter) {
+        Model model = getModel(iri);
+        if (model != null) {
+            return model;
+        }
+        return getOrLoad(filter.key(iri), new Load(iri, filter));
+    }
+
+    /**
+     * Get the RDF model of a Web resource, loading it and adding it to the
+     * cache if it does not exist in the cache. If the same resource is being
+     * loaded by another thread, wait for that load instead of loading it again.
+     * A resource read by the cache itself (from the on-disk tier or the Web)
+     * expires when its HTTP caching metadata say so; other resources expire
+     * after the default time-to-live.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param loader The loader of the RDF model of the Web resource.
+     * @return The RDF model of the given Web resource
+     */
+    public Model getOrLoad(String iri, Callable<Model> loader) {
+        Model model = getModel(iri);
+        if (model != null) {
+            return model;
+        }
+
+        FutureTask<Model> task = new FutureTask<>(loader);
+        FutureTask<Model> running = loading.putIfAbsent(iri, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+                model = get(iri, task);
+                return put(iri, model, loader instanceof Load ? ((Load) loader).getTTL(ttl) : ttl);
+            } finally {
+                loading.remove(iri, task);
+            }
+        }
+        return get(iri, running);
+    }
+
+    /**
+     * Wait for the load of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @param task The load of the Web resource.
+     * @return The RDF model of the Web resource.
+     */
+    private static Model get(String iri, FutureTask<Model> task) {
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new QueryExecException("Failed to load the IRI " + iri, cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new QueryExecException("Interrupted while loading the IRI " + iri, ex);
+        }
     }
 
     /**
-     * Get the IRI-Model map.
+     * Remove a Web resource from the cache.
+     *
+     * @param iri The IRI of the Web resource.
+     */
+    public void remove(String iri) {
+        CachedModel entry = iri2model.remove(iri);
+        if (entry != null) {
+            account(entry, -1);
+        }
+        OffHeapResourcesCache offHeapTier = offHeap;
+        if (offHeapTier != null) {
+            offHeapTier.remove(iri);
+        }
+    }
+
+    /**
+     * Get a snapshot of the IRI-Model map.
      *
      * @return The IRI-Model map.
      */
     public HashMap<String, Model> getIri2model() {
-        return iri2model;
+        HashMap<String, Model> snapshot = new HashMap<>();
+        for (Map.Entry<String, CachedModel> entry : iri2model.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().model);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Return the number of cached resources.
+     *
+     * @return The number of cached resources.
+     */
+    public int size() {
+        return iri2model.size();
+    }
+
+    /**
+     * Return the number of cached triples.
+     *
+     * @return The number of cached triples.
+     */
+    public long getTriples() {
+        return triples.get();
+    }
+
+    /**
+     * Return the estimated heap size (in bytes) of the cached triples.
+     *
+     * @return The estimated heap size of the cached triples.
+     */
+    public long getEstimatedBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Set the maximum number of cached triples.
+     *
+     * @param maxTriples The maximum number of cached triples.
+     */
+    public void setMaxTriples(long maxTriples) {
+        this.maxTriples = maxTriples;
+        demote(evict());
+    }
+
+    /**
+     * Set the maximum estimated heap size of the cached triples.
+     *
+     * @param maxBytes The maximum estimated heap size (in bytes), or -1 for no
+     * bound.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        demote(evict());
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * Set the default time-to-live of a cached resource.
+     *
+     * @param ttl The time-to-live (in milliseconds).
+     */
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Set if the models added to the cache are stored as compact, read-only
+     * graphs (see CompactGraph). Compact graphs take several times less heap,
+     * but the cached models cannot be modified.
+     *
+     * @param compact True for compact graphs.
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Set the off-heap tier of the cache.
+     *
+     * @param offHeap The off-heap tier, or null for no off-heap tier.
+     */
+    public void setOffHeapTier(OffHeapResourcesCache offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Return the off-heap tier of the cache.
+     *
+     * @return The off-heap tier, or null if there is no off-heap tier.
+     */
+    public OffHeapResourcesCache getOffHeapTier() {
+        return offHeap;
+    }
+
+    /**
+     * Set the on-disk tier of the cache.
+     *
+     * @param disk The on-disk tier, or null for no on-disk tier.
+     */
+    public void setDiskTier(DiskResourcesCache disk) {
+        this.disk = disk;
     }
 
     /**
-     * Clear the cache.
+     * Return the on-disk tier of the cache.
+     *
+     * @return The on-disk tier, or null if there is no on-disk tier.
+     */
+    public DiskResourcesCache getDiskTier() {
+        return disk;
+    }
+
+    /**
+     * Clear the (in-memory) cache, including the off-heap tier.
      *
      */
     public void clear() {
-        iri2model.clear();
+        for (Map.Entry<String, CachedModel> entry : iri2model.entrySet()) {
+            if (iri2model.remove(entry.getKey(), entry.getValue())) {
+                account(entry.getValue(), -1);
+            }
+        }
+        synchronized (evictionLock) {
+            dictionary = new TermDictionary();
+        }
+        OffHeapResourcesCache offHeapTier = offHeap;
+        if (offHeapTier != null) {
+            offHeapTier.clear();
+        }
+    }
+
+    /**
+     * Check if a number of triples fits in the bounds of the cache.
+     *
+     * @param count The number of triples.
+     * @param size The estimated heap size (in bytes) of the triples.
+     * @return True if the triples fit in the bounds of the cache.
+     */
+    private boolean fits(long count, long size) {
+        if (count > maxTriples) {
+            return false;
+        }
+        return maxBytes < 0 || size <= maxBytes;
+    }
+
+    /**
+     * Add (or subtract) a cached resource to the number and the estimated heap
+     * size of the cached triples.
+     *
+     * @param entry The cached resource.
+     * @param sign 1 to add the resource, -1 to subtract it.
+     */
+    private void account(CachedModel entry, int sign) {
+        triples.addAndGet(sign * entry.triples);
+        bytes.addAndGet(sign * entry.bytes);
+    }
+
+    /**
+     * Evict the least recently used resources until the cache is within its
+     * bounds. The resources are ordered by (a snapshot of) their last access;
+     * a resource replaced or removed meanwhile is skipped.
+     *
+     * @return The evicted resources.
+     */
+    private Map<String, CachedModel> evict() {
+        Map<String, CachedModel> evicted = new LinkedHashMap<>();
+        if (fits(triples.get(), bytes.get())) {
+            return evicted;
+        }
+        synchronized (evictionLock) {
+            List<Candidate> candidates = new ArrayList<>(iri2model.size());
+            for (Map.Entry<String, CachedModel> entry : iri2model.entrySet()) {
+                candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+            }
+            Collections.sort(candidates, new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate c1, Candidate c2) {
+                    return Long.compare(c1.lastAccess, c2.lastAccess);
+                }
+            });
+            for (int i = 0; i < candidates.size() && !fits(triples.get(), bytes.get()); i++) {
+                Candidate candidate = candidates.get(i);
+                if (iri2model.remove(candidate.iri, candidate.entry)) {
+                    account(candidate.entry, -1);
+                    evicted.put(candidate.iri, candidate.entry);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * The load of a Web resource from the on-disk tier (if any) or from the
+     * Web, which also finds the expiration time of the resource.
+     */
+    private class Load implements Callable<Model> {
+
+        private final String iri; // The IRI of the Web resource
+        private final TripleFilter filter; // The filter of the triples (null for the full RDF model)
+        private long expires; // The expiration time of the loaded resource (0 if not known)
+
+        Load(String iri, TripleFilter filter) {
+            this.iri = iri;
+            this.filter = filter;
+        }
+
+        /**
+         * Read the (full or filtered) RDF model of the Web resource. A full
+         * model read from the Web is also stored on disk; a filtered model is
+         * not.
+         */
+        @Override
+        public Model call() {
+            DiskResourcesCache diskTier = disk;
+            if (diskTier != null) {
+                Model model = diskTier.load(iri);
+                if (model != null) {
+                    ServiceMetrics.trace("The IRI \"%s\" EXISTS in the disk cache!", iri);
+                    expires = diskTier.getExpires(iri);
+                    return filter == null ? model : filter.filter(model);
+                }
+            }
+            ReadRDFFromIRI reader;
+            if (filter == null) {
+                reader = new ReadRDFFromIRI(iri);
+                if (diskTier != null) {
+                    diskTier.store(iri, reader.getModel(), reader.getMetadata());
+                }
+            } else {
+                Model model = ModelFactory.createDefaultModel();
+                reader = new ReadRDFFromIRI(iri, filter.wrap(StreamRDFLib.graph(model.getGraph())));
+                reader.setModel(model);
+            }
+            if (reader.getMetadata() != null) {
+                expires = reader.getMetadata().getExpires();
+            }
+            return reader.getModel();
+        }
+
+        /**
+         * Return the time-to-live of the loaded resource.
+         *
+         * @param defaultTtl The time-to-live if the expiration time is not
+         * known (or has passed, e.g. for an expired copy used because the Web
+         * resource cannot be reached).
+         * @return The time-to-live (in milliseconds).
+         */
+        long getTTL(long defaultTtl) {
+            long remaining = expires - System.currentTimeMillis();
+            return remaining > 0 ? remaining : defaultTtl;
+        }
+    }
+
+    /**
+     * A cached RDF model.
+     */
+    private static class CachedModel {
+
+        final Model model; // The RDF model
+        final long triples; // The number of triples of the model
+        final long bytes; // The estimated heap size of the model
+        final long expires; // The expiration time
+        volatile long lastAccess; // The time (System.nanoTime) of the last access
+
+        CachedModel(Model model, long expires) {
+            this.model = model;
+            this.triples = model.size();
+            this.bytes = model.getGraph() instanceof CompactGraph
+                    ? ((CompactGraph) model.getGraph()).getEstimatedBytes()
+                    : triples * ESTIMATED_BYTES_PER_TRIPLE;
+            this.expires = expires;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    /**
+     * A cached resource that may be evicted, with the time of its last access
+     * when the eviction started.
+     */
+    private static class Candidate {
+
+        final String iri; // The IRI of the Web resource
+        final CachedModel entry; // The cached resource
+        final long lastAccess; // The time of the last access
+
+        Candidate(String iri, CachedModel entry) {
+            this.iri = iri;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
     }
 }
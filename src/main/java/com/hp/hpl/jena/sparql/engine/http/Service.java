@@ -18,19 +18,20 @@
 package com.hp.hpl.jena.sparql.engine.http;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.jena.atlas.io.IO;
-import org.apache.jena.riot.WebContent;
 
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecException;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.sparql.ARQConstants;
 import com.hp.hpl.jena.sparql.algebra.Op;
@@ -41,7 +42,10 @@ import com.hp.hpl.jena.sparql.core.Var;
 import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
 import com.hp.hpl.jena.sparql.engine.QueryIterator;
 import com.hp.hpl.jena.sparql.engine.Rename;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
 import com.hp.hpl.jena.sparql.engine.iterator.QueryIter;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterProcessBinding;
 import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorResultSet;
 import com.hp.hpl.jena.sparql.mgt.Explain;
 import com.hp.hpl.jena.sparql.util.Context;
@@ -106,6 +110,162 @@ public class Service {
      * it exists, is passed to HttpQuery.setReadTimeout()
      */
     public static final Symbol queryTimeout = ARQConstants.allocSymbol(base, "queryTimeout");
+    /**
+     * [SPARQL-LD] Enable the concurrent prefetch of the IRIs bound to the
+     * variable of a SERVICE ?var operator. If the context contains this, and
+     * it is set to "true", the distinct IRIs produced by the upstream bindings
+     * are fetched in parallel before the SERVICE is evaluated for each binding.
+     * The bindings are returned in the same order.
+     */
+    public static final Symbol servicePrefetch = ARQConstants.allocSymbol(base, "servicePrefetch");
+    /**
+     * [SPARQL-LD] The maximum number of IRIs fetched concurrently by the
+     * prefetch of a SERVICE ?var operator (a Number, or a string parsed as a
+     * number). Default is 8.
+     */
+    public static final Symbol prefetchMaxThreads = ARQConstants.allocSymbol(base, "prefetchMaxThreads");
+    /**
+     * [SPARQL-LD] The maximum number of IRIs of the same host fetched
+     * concurrently by the prefetch of a SERVICE ?var operator (a Number, or a
+     * string parsed as a number). Default is 2.
+     */
+    public static final Symbol prefetchMaxPerHost = ARQConstants.allocSymbol(base, "prefetchMaxPerHost");
+    /**
+     * [SPARQL-LD] The maximum number of upstream bindings collected before
+     * their IRIs are prefetched (a Number, or a string parsed as a number).
+     * Default is 1000.
+     */
+    public static final Symbol prefetchWindow = ARQConstants.allocSymbol(base, "prefetchWindow");
+    /**
+     * [SPARQL-LD] Enable the streaming evaluation of simple SERVICE
+     * sub-queries. If the context contains this, and it is set to "true", a
+     * sub-query of a single triple pattern (with optional FILTERs) over a Web
+     * resource that is not in the cache is evaluated while the resource is
+     * downloaded and parsed, without loading (or caching) it. Other sub-queries
+     * are evaluated over the loaded RDF model. Repeated triples of the
+     * resource give one binding, as over the loaded RDF model.
+     */
+    public static final Symbol serviceStreaming = ARQConstants.allocSymbol(base, "serviceStreaming");
+    /**
+     * [SPARQL-LD] The maximum number of bindings of a streaming evaluation
+     * waiting to be consumed (a Number, or a string parsed as a number).
+     * Default is 10000.
+     */
+    public static final Symbol streamingBuffer = ARQConstants.allocSymbol(base, "streamingBuffer");
+    /**
+     * [SPARQL-LD] The maximum number of distinct matching triples that a
+     * streaming evaluation remembers to remove the repeated ones (a Number, or
+     * a string parsed as a number). A resource with more matching triples is
+     * loaded in the cache instead. Default is 100000.
+     */
+    public static final Symbol streamingDistinctLimit = ARQConstants.allocSymbol(base, "streamingDistinctLimit");
+    /**
+     * [SPARQL-LD] Enable the parse-time filtering of the triples of a Web
+     * resource. If the context contains this, and it is set to "true", the
+     * triples that cannot match any triple pattern of the SERVICE sub-query
+     * are dropped while the resource is parsed, and only the filtered RDF
+     * model is cached (keyed by the IRI and the triple patterns).
+     */
+    public static final Symbol serviceFilterTriples = ARQConstants.allocSymbol(base, "serviceFilterTriples");
+    /**
+     * [SPARQL-LD] Enable the memory-mapped indexes of Web resources. If the
+     * context contains this, and it is set to "true", a Web resource that is
+     * not a SPARQL endpoint is converted once into an on-disk index (see
+     * MappedIndexes), and the sub-queries are evaluated in place over the
+     * memory-mapped index instead of an RDF model in the cache. Meant for
+     * large RDF dumps. A resource whose index would exceed the size limits of
+     * MappedGraph (about 200 million triples) is streamed if the sub-query is
+     * a single triple pattern (see serviceStreaming); otherwise the SERVICE
+     * call fails.
+     */
+    public static final Symbol serviceMappedIndex = ARQConstants.allocSymbol(base, "serviceMappedIndex");
+    /**
+     * [SPARQL-LD] Enable the bind join of a SERVICE operator whose IRI is a
+     * known SPARQL endpoint. If the context contains this, and it is set to
+     * "true", the upstream bindings are sent to the endpoint in batches, each
+     * batch as a single query with a VALUES block, and the results are joined
+     * with the batch locally.
+     */
+    public static final Symbol serviceBindJoin = ARQConstants.allocSymbol(base, "serviceBindJoin");
+    /**
+     * [SPARQL-LD] The maximum number of upstream bindings sent in a single
+     * query by the bind join (a Number, or a string parsed as a number).
+     * Default is 100.
+     */
+    public static final Symbol bindJoinBatchSize = ARQConstants.allocSymbol(base, "bindJoinBatchSize");
+    /**
+     * [SPARQL-LD] The maximum length (in characters) of a query sent by the
+     * bind join; longer batches are split (a Number, or a string parsed as a
+     * number). Default is 20000.
+     */
+    public static final Symbol bindJoinMaxQueryLength = ARQConstants.allocSymbol(base, "bindJoinMaxQueryLength");
+    /**
+     * [SPARQL-LD] Enable the streaming of the results of a SPARQL endpoint. If
+     * the context contains this, and it is set to "true", the results are
+     * returned while the response is being read (instead of being
+     * materialized), and closing or cancelling the query aborts the response.
+     * Not used with basic authentication.
+     */
+    public static final Symbol serviceStreamResults = ARQConstants.allocSymbol(base, "serviceStreamResults");
+    /**
+     * [SPARQL-LD] Enable the parallel evaluation of independent SERVICE
+     * operators. If the context contains this, and it is set to "true", the
+     * SERVICE operators with constant IRIs of a join (or sequence) that do not
+     * depend on the other operators of the join are evaluated at the same
+     * time, and their results are joined while they arrive (symmetric hash
+     * join).
+     */
+    public static final Symbol serviceParallel = ARQConstants.allocSymbol(base, "serviceParallel");
+    /**
+     * [SPARQL-LD] The maximum number of SERVICE operators evaluated
+     * concurrently by the parallel evaluation (a Number, or a string parsed as
+     * a number). Default is 8.
+     */
+    public static final Symbol parallelMaxThreads = ARQConstants.allocSymbol(base, "parallelMaxThreads");
+    /**
+     * [SPARQL-LD] The maximum number of rows kept in memory by a symmetric
+     * hash join of the parallel evaluation; when exceeded, partitions of the
+     * hash tables are spilled to disk (a Number, or a string parsed as a
+     * number). Default is 100000.
+     */
+    public static final Symbol hashJoinMaxRows = ARQConstants.allocSymbol(base, "hashJoinMaxRows");
+    /**
+     * [SPARQL-LD] Enable source selection. If the context contains this, and
+     * it is set to "true", a Web resource whose summary (see SourceSelection)
+     * shows that it cannot match the sub-query of a SERVICE operator is
+     * skipped without being read, and the summaries of the resources read are
+     * recorded.
+     */
+    public static final Symbol serviceSourceSelection = ARQConstants.allocSymbol(base, "serviceSourceSelection");
+    /**
+     * [SPARQL-LD] Enable the probe queries of source selection. If the context
+     * contains this, and it is set to "true" (together with
+     * serviceSourceSelection), a SPARQL endpoint is asked once whether it
+     * contains each predicate and class required by a sub-query, and it is
+     * skipped if it does not.
+     */
+    public static final Symbol sourceSelectionProbe = ARQConstants.allocSymbol(base, "sourceSelectionProbe");
+    /**
+     * [SPARQL-LD] Enable the cache of the results of SERVICE sub-queries. If
+     * the context contains this, and it is set to "true", the results of a
+     * sub-query (after the substitution of the upstream bindings) are kept in
+     * a shared cache (see ServiceResultsCache), so a repeated sub-query is not
+     * evaluated again. The results are read completely before they are
+     * returned.
+     */
+    public static final Symbol serviceResultsCache = ARQConstants.allocSymbol(base, "serviceResultsCache");
+    /**
+     * [SPARQL-LD] Enable the execution profile. If the context contains this,
+     * and it is set to "true", the timings of every SERVICE call of the query
+     * are collected in a ServiceProfile (see serviceProfileResult and
+     * QueryExecutionBase.getServiceProfile).
+     */
+    public static final Symbol serviceProfile = ARQConstants.allocSymbol(base, "serviceProfile");
+    /**
+     * [SPARQL-LD] The execution profile (a ServiceProfile) of the query,
+     * added to the context by QueryExecutionBase if serviceProfile is set.
+     */
+    public static final Symbol serviceProfileResult = ARQConstants.allocSymbol(base, "serviceProfileResult");
 
     /**
      * Executes a service operator
@@ -115,6 +275,37 @@ public class Service {
      * @return Query iterator of service results
      */
     public static QueryIterator exec(OpService op, Context context) {
+        // [SPARQL-LD] Record the metrics and the execution profile (if enabled) of the call
+        ServiceMetrics metrics = QueryExecutionBase.metrics;
+        ServiceProfile profile = ServiceProfile.get(context);
+        if (profile == null) {
+            QueryIterator qIter = exec(op, context, null);
+            return metrics.isEnabled() ? countBindings(qIter, metrics, null) : qIter;
+        }
+        ServiceProfile.Node call = profile.getRoot().start("SERVICE", op.getService().isURI() ? op.getService().getURI() : op.getService().toString());
+        ServiceProfile.Node previous = ServiceProfile.enter(call);
+        try {
+            QueryIterator qIter = exec(op, context, call);
+            call.stop();
+            return countBindings(qIter, metrics.isEnabled() ? metrics : null, call);
+        } catch (RuntimeException ex) {
+            call.set("error", ex.getMessage());
+            call.stop();
+            throw ex;
+        } finally {
+            ServiceProfile.enter(previous);
+        }
+    }
+
+    /**
+     * Executes a service operator
+     *
+     * @param op Service
+     * @param context Context
+     * @param call The node of the call in the execution profile (or null)
+     * @return Query iterator of service results
+     */
+    private static QueryIterator exec(OpService op, Context context, ServiceProfile.Node call) {
         if (context != null && context.isFalse(serviceAllowed)) {
             throw new QueryExecException("SERVICE execution disabled");
         }
@@ -184,64 +375,182 @@ public class Service {
         //@formatter:on
         query = OpAsQuery.asQuery(opRemote);
         Explain.explain("HTTP", query, context);
-        String uri = op.getService().getURI();
+        final String uri = op.getService().getURI();
         QueryIterator qIter = null;
+        String resultsKey = null; // The key of the sub-query in the results cache (if it is enabled)
 
         // SPARQL-LD EXTENSION //
-        System.out.println("# IRI: " + uri);
+        ServiceMetrics metrics = QueryExecutionBase.metrics;
+        metrics.recordServiceCall();
+        long phase = call != null ? System.nanoTime() : 0; // The start time of the current phase (for the execution profile)
+        ServiceMetrics.trace("IRI: %s", uri);
 
         if (uri.toLowerCase().equals("http://example.com:40000")) { // case of junit tests
             HttpQuery httpQuery = configureQuery(uri, context, query);
             InputStream in = httpQuery.exec();
-            ResultSet rs = ResultSetFactory.fromXML(in);
+            ResultSet rs = EndpointResults.read(in, httpQuery.getContentType());
             qIter = QueryIter.materialize(new QueryIteratorResultSet(rs));
             IO.close(in);
         } else {
 
-            System.out.println("# Checking the CACHE of already-retrieved resources... Cache size: " + QueryExecutionBase.cache.getIri2model().size());
-            if (QueryExecutionBase.cache.inCache(uri)) {
-                System.out.println("# The IRI \"" + uri + "\" EXISTS in the cache! Getting its RDF model from the cache and running the query...");
-                Model model = QueryExecutionBase.cache.getModel(uri);
-                QueryExecution qe = QueryExecutionFactory.create(query, model);
-                ResultSet rs = qe.execSelect();
-                qIter = QueryIter.materialize(new QueryIteratorResultSet(rs));
-                System.out.println("# Finished!\n");
+            // Skip a source that cannot match the sub-query (if source selection is enabled) //
+            boolean sourceSelection = context != null && context.isTrue(serviceSourceSelection);
+            if (sourceSelection) {
+                boolean match = canMatch(uri, opRemote, context);
+                if (call != null) {
+                    call.phase("sourceSelection", phase).set("match", match);
+                }
+                if (!match) {
+                    ServiceMetrics.trace("The IRI \"%s\" cannot match the sub-query (source selection). Skipping it...", uri);
+                    metrics.recordSourceSkipped();
+                    return new QueryIterPlainWrapper(Collections.<Binding>emptyIterator());
+                }
+            }
+
+            // Return the cached results of the sub-query (if the results cache is enabled) //
+            if (context != null && context.isTrue(serviceResultsCache)) {
+                resultsKey = ServiceResultsCache.key(uri, opRemote, context);
+                List<Binding> cachedResults = QueryExecutionBase.resultsCache.get(resultsKey);
+                if (cachedResults != null) {
+                    ServiceMetrics.trace("The results of the sub-query EXIST in the results cache! (%s bindings)", cachedResults.size());
+                    if (call != null) {
+                        call.set("cache", "results");
+                    }
+                    qIter = new QueryIterPlainWrapper(cachedResults.iterator());
+                    if (requiresRemapping) {
+                        qIter = QueryIter.map(qIter, varMapping);
+                    }
+                    return qIter;
+                }
+            }
+
+            boolean mappedIndex = context != null && context.isTrue(serviceMappedIndex);
+            Model indexModel = mappedIndex ? QueryExecutionBase.mappedIndexes.get(uri) : null;
+            TripleFilter filter = !mappedIndex && context != null && context.isTrue(serviceFilterTriples) ? TripleFilter.create(opRemote) : null;
+            Model cachedModel = indexModel != null ? null : filter == null ? QueryExecutionBase.cache.getModel(uri) : QueryExecutionBase.cache.getModel(uri, filter);
+            metrics.recordCacheLookup(indexModel != null || cachedModel != null);
+            if (call != null) {
+                call.set("cache", indexModel != null ? "index" : cachedModel != null ? "resource" : "miss");
+            }
+            if (indexModel != null) {
+                ServiceMetrics.trace("The IRI \"%s\" has a memory-mapped index! Running the query over the index...", uri);
+                qIter = execLocal(query, indexModel, call);
+            } else if (cachedModel != null) {
+                ServiceMetrics.trace("The IRI \"%s\" EXISTS in the cache! Getting its RDF model from the cache and running the query...", uri);
+                if (sourceSelection && filter == null) {
+                    QueryExecutionBase.sourceSelection.record(uri, cachedModel);
+                }
+                qIter = execLocal(query, cachedModel, call);
             } else {
-                System.out.println("# The IRI \"" + uri + "\" does NOT exist in the cache! ");
+                ServiceMetrics.trace("The IRI \"%s\" does NOT exist in the cache! ", uri);
 
-                System.out.println("# Checking the INDEX of known endpoints...Index size: " + QueryExecutionBase.endpointIndex.getEndpoints().size());
                 if (QueryExecutionBase.endpointIndex.inIndex(uri)) {
-                    System.out.println("# The IRI \"" + uri + "\" EXISTS in the index! Sending the query...");
-                    HttpQuery httpQuery = configureQuery(uri, context, query);
-                    InputStream in = httpQuery.exec();
-                    ResultSet rs = ResultSetFactory.fromXML(in);
-                    qIter = QueryIter.materialize(new QueryIteratorResultSet(rs));
-                    IO.close(in);
-                    System.out.println("# Finished!\n");
+                    ServiceMetrics.trace("The IRI \"%s\" EXISTS in the index of known endpoints! Sending the query...", uri);
+                    metrics.recordEndpointIndexHit();
+                    try {
+                        qIter = execRemote(uri, context, query, call);
+                    } catch (RuntimeException ex) {
+                        metrics.recordServiceFailure();
+                        throw ex;
+                    }
                 } else {
-                    System.out.println("# The IRI \"" + uri + "\" does NOT exist in the index of known endpoints! ");
-
-                    // Check if the IRI corresponds to a SPARQL endpoint //
-                    if (ReadRDFFromIRI.isEndpoint(uri)) {
-                        System.out.println("# The IRI is a SPARQL endpoint. Sending the query...");
-                        HttpQuery httpQuery = configureQuery(uri, context, query);
-                        InputStream in = httpQuery.exec();
-                        ResultSet rs = ResultSetFactory.fromXML(in);
-                        qIter = QueryIter.materialize(new QueryIteratorResultSet(rs));
-                        IO.close(in);
-                        System.out.println("# The SPARQL endpoint is being added in the index of known endpoints...");
+                    ServiceMetrics.trace("The IRI \"%s\" does NOT exist in the index of known endpoints! ", uri);
+
+                    // Skip an IRI (or host) that failed recently //
+                    if (QueryExecutionBase.failureMemo.isBlocked(uri)) {
+                        metrics.recordServiceFailure();
+                        throw new QueryExecException("The IRI \"" + uri + "\" (or its host) failed recently. Skipping it.");
+                    }
+
+                    // Check if the IRI corresponds to a SPARQL endpoint (unless it is known not to) //
+                    boolean knownNonEndpoint = QueryExecutionBase.nonEndpointIndex.inIndex(uri);
+                    if (knownNonEndpoint) {
+                        ServiceMetrics.trace("The IRI EXISTS in the index of known non-endpoints. Skipping the endpoint check...");
+                    }
+                    if (call != null) {
+                        phase = System.nanoTime();
+                    }
+                    boolean endpoint = !knownNonEndpoint && ReadRDFFromIRI.isEndpoint(uri);
+                    if (call != null && !knownNonEndpoint) {
+                        call.phase("endpointCheck", phase).set("endpoint", endpoint);
+                    }
+                    if (endpoint) {
+                        ServiceMetrics.trace("The IRI is a SPARQL endpoint. Sending the query...");
+                        try {
+                            qIter = execRemote(uri, context, query, call);
+                        } catch (RuntimeException ex) {
+                            if (FailureMemo.isUnreachable(ex)) {
+                                QueryExecutionBase.failureMemo.recordFailure(uri, ex);
+                            }
+                            metrics.recordServiceFailure();
+                            throw ex;
+                        }
+                        ServiceMetrics.trace("The SPARQL endpoint is being added in the index of known endpoints...");
                         QueryExecutionBase.endpointIndex.add(uri);
-                        System.out.println("# Finished!\n");
                     } else { // the IRI is NOT a SPARQL endpoint
-                        System.out.println("# The IRI is NOT a SPARQL endpoint. ");
-
-                        ReadRDFFromIRI reader = new ReadRDFFromIRI(uri, query);
-                        ResultSet rs = reader.getResultSet();
-                        qIter = QueryIter.materialize(new QueryIteratorResultSet(rs));
-                        reader.close();
-                        System.out.println("# The IRI and its RDF model are being added in the cache...");
-                        QueryExecutionBase.cache.add(uri, reader.getModel()); // Add the RDF model to the temporary (request-score) cache
-                        System.out.println("# Finished!\n");
+                        ServiceMetrics.trace("The IRI is NOT a SPARQL endpoint. ");
+
+                        // Evaluate a single triple pattern while the resource is being parsed (if enabled).
+                        if (!mappedIndex && context != null && context.isTrue(serviceStreaming)) {
+                            qIter = QueryIterStreamingPattern.create(uri, opRemote, context);
+                            if (qIter != null) {
+                                ServiceMetrics.trace("Streaming the triples of the IRI and matching the triple pattern...");
+                                if (call != null) {
+                                    call.set("streaming", true);
+                                }
+                                if (requiresRemapping) {
+                                    qIter = QueryIter.map(qIter, varMapping);
+                                }
+                                return qIter;
+                            }
+                        }
+
+                        // Read the RDF model and add it in the (shared) cache. Concurrent reads of the same IRI are performed once.
+                        Model model;
+                        ServiceProfile.Node load = call != null ? call.start("load", null) : null;
+                        ServiceProfile.Node previous = load != null ? ServiceProfile.enter(load) : null;
+                        try {
+                            if (mappedIndex) {
+                                try {
+                                    model = QueryExecutionBase.mappedIndexes.getOrBuild(uri);
+                                } catch (RuntimeException ex) {
+                                    // Stream a resource that is too large for an index (if the sub-query allows it).
+                                    qIter = QueryExecutionBase.mappedIndexes.isTooLarge(uri) ? QueryIterStreamingPattern.create(uri, opRemote, context) : null;
+                                    if (qIter == null) {
+                                        throw ex;
+                                    }
+                                    ServiceMetrics.trace("The IRI is too large for an index. Streaming its triples and matching the triple pattern...");
+                                    if (call != null) {
+                                        call.set("streaming", true);
+                                    }
+                                    return requiresRemapping ? QueryIter.map(qIter, varMapping) : qIter;
+                                }
+                            } else if (filter != null) {
+                                ServiceMetrics.trace("Keeping only the triples that match: %s", filter.getSignature());
+                                model = QueryExecutionBase.cache.getOrLoad(uri, filter);
+                            } else {
+                                model = QueryExecutionBase.cache.getOrLoad(uri);
+                            }
+                        } catch (RuntimeException ex) {
+                            if (FailureMemo.isUnreachable(ex)) { // not e.g. a syntax error of the document
+                                QueryExecutionBase.failureMemo.recordFailure(uri, ex);
+                            }
+                            metrics.recordServiceFailure();
+                            throw ex;
+                        } finally {
+                            if (load != null) {
+                                load.stop();
+                                ServiceProfile.enter(previous);
+                            }
+                        }
+                        QueryExecutionBase.failureMemo.recordSuccess(uri);
+                        if (sourceSelection && filter == null && !mappedIndex) {
+                            QueryExecutionBase.sourceSelection.record(uri, model);
+                        }
+                        if (!knownNonEndpoint) {
+                            QueryExecutionBase.nonEndpointIndex.add(uri);
+                        }
+                        qIter = execLocal(query, model, call);
                     }
                 }
             }
@@ -258,6 +567,20 @@ public class Service {
          
          */
 
+        // Add the results in the results cache (if it is enabled) //
+        if (resultsKey != null) {
+            List<Binding> results = new ArrayList<>();
+            try {
+                while (qIter.hasNext()) {
+                    results.add(qIter.nextBinding());
+                }
+            } finally {
+                qIter.close();
+            }
+            QueryExecutionBase.resultsCache.put(resultsKey, results);
+            qIter = new QueryIterPlainWrapper(results.iterator());
+        }
+
         // In some cases we may need to apply a re-mapping
         // This solves JENA-494 the naive way and may be brittle for complex
         // nested SERVICE clauses
@@ -268,6 +591,117 @@ public class Service {
         return qIter;
     }
 
+    /**
+     * [SPARQL-LD] Record the number of bindings returned by a SERVICE call
+     * (when the iterator is closed).
+     *
+     * @param qIter The results of the SERVICE call.
+     * @param metrics The metrics (or null).
+     * @param call The node of the call in the execution profile (or null).
+     * @return Query iterator of the same results
+     */
+    private static QueryIterator countBindings(QueryIterator qIter, final ServiceMetrics metrics, final ServiceProfile.Node call) {
+        return new QueryIterProcessBinding(qIter, null) {
+            private long count; // The number of bindings returned
+
+            @Override
+            public Binding accept(Binding binding) {
+                count++;
+                return binding;
+            }
+
+            @Override
+            protected void closeSubIterator() {
+                if (metrics != null) {
+                    metrics.recordBindings(count);
+                }
+                if (call != null) {
+                    call.set("rows", count);
+                }
+                super.closeSubIterator();
+            }
+        };
+    }
+
+    /**
+     * [SPARQL-LD] Check if a source may contribute results to a sub-query: a
+     * known SPARQL endpoint is checked with probe queries (if
+     * sourceSelectionProbe is set), any other IRI with its summary.
+     *
+     * @param uri The IRI of the source.
+     * @param opRemote The sub-query.
+     * @param context The query context.
+     * @return False if the source certainly has no results.
+     */
+    private static boolean canMatch(String uri, Op opRemote, Context context) {
+        if (QueryExecutionBase.endpointIndex.inIndex(uri)) {
+            return !context.isTrue(sourceSelectionProbe) || QueryExecutionBase.sourceSelection.endpointCanMatch(uri, opRemote, context);
+        }
+        return QueryExecutionBase.sourceSelection.canMatch(uri, opRemote);
+    }
+
+    /**
+     * [SPARQL-LD] Run the query at the RDF model of a Web resource.
+     *
+     * @param query The query to run.
+     * @param model The RDF model of the Web resource.
+     * @param call The node of the call in the execution profile (or null).
+     * @return Query iterator of the (materialized) results
+     */
+    private static QueryIterator execLocal(Query query, Model model, ServiceProfile.Node call) {
+        long start = call != null ? System.nanoTime() : 0;
+        QueryExecution qe = QueryExecutionFactory.create(query, model);
+        try {
+            ResultSet rs = qe.execSelect();
+            return QueryIter.materialize(new QueryIteratorResultSet(rs));
+        } finally {
+            qe.close();
+            if (call != null) {
+                call.phase("localEval", start).set("triples", model.size());
+            }
+        }
+    }
+
+    /**
+     * [SPARQL-LD] Send the query to a SPARQL endpoint. The request is sent
+     * through the shared HTTP client, according to the profile of the endpoint
+     * (see QueryIterRemoteResults).
+     *
+     * @param uri The IRI of the SPARQL endpoint.
+     * @param context The query context.
+     * @param query The query to send.
+     * @return Query iterator of the results (streamed while the response is
+     * read if serviceStreamResults is set, otherwise materialized)
+     */
+    static QueryIterator execRemote(String uri, Context context, Query query) {
+        HttpQuery httpQuery = configureQuery(uri, context, query);
+        Context serviceCxt = serviceContext(uri, context);
+        QueryIterator qIter = new QueryIterRemoteResults(uri, httpQuery, serviceCxt.getAsString(queryAuthUser), serviceCxt.getAsString(queryAuthPwd));
+        return serviceCxt.isTrue(serviceStreamResults) ? qIter : QueryIter.materialize(qIter);
+    }
+
+    /**
+     * [SPARQL-LD] Send the query to a SPARQL endpoint, recording the request
+     * in the execution profile.
+     *
+     * @param uri The IRI of the SPARQL endpoint.
+     * @param context The query context.
+     * @param query The query to send.
+     * @param call The node of the call in the execution profile (or null).
+     * @return Query iterator of the results
+     */
+    private static QueryIterator execRemote(String uri, Context context, Query query, ServiceProfile.Node call) {
+        if (call == null) {
+            return execRemote(uri, context, query);
+        }
+        long start = System.nanoTime();
+        try {
+            return execRemote(uri, context, query);
+        } finally {
+            call.phase("remote", start);
+        }
+    }
+
     /**
      * Create and configure the HttpQuery object.
      *
@@ -279,24 +713,14 @@ public class Service {
      * @param Query the Query to execute.
      * @return An HttpQuery configured as per the context.
      */
-    private static HttpQuery configureQuery(String uri, Context parentContext, Query query) {
+    static HttpQuery configureQuery(String uri, Context parentContext, Query query) {
         HttpQuery httpQuery = new HttpQuery(uri);
-        Context context = new Context(parentContext);
-
-        // add the context settings from the service context
-        @SuppressWarnings("unchecked")
-        Map<String, Context> serviceContextMap = (Map<String, Context>) context.get(serviceContext);
-        if (serviceContextMap != null) {
-            Context serviceContext = serviceContextMap.get(uri);
-            if (serviceContext != null) {
-                context.putAll(serviceContext);
-            }
-        }
+        Context context = serviceContext(uri, parentContext);
 
         // configure the query object.
         httpQuery.merge(QueryEngineHTTP.getServiceParams(uri, context));
         httpQuery.addParam(HttpParams.pQuery, query.toString());
-        httpQuery.setAccept(WebContent.contentTypeResultsXML);
+        httpQuery.setAccept(EndpointResults.acceptFor(uri)); // [SPARQL-LD] negotiate the result format
         httpQuery.setAllowGZip(context.isTrueOrUndef(queryGzip));
         httpQuery.setAllowDeflate(context.isTrueOrUndef(queryDeflate));
 
@@ -314,6 +738,29 @@ public class Service {
         return httpQuery;
     }
 
+    /**
+     * Return a copy of the context with the settings of the service context of
+     * an IRI (see serviceContext).
+     *
+     * @param uri The uri of the endpoint
+     * @param parentContext The initial context.
+     * @return The context of the SERVICE call.
+     */
+    static Context serviceContext(String uri, Context parentContext) {
+        Context context = new Context(parentContext);
+
+        // add the context settings from the service context
+        @SuppressWarnings("unchecked")
+        Map<String, Context> serviceContextMap = (Map<String, Context>) context.get(serviceContext);
+        if (serviceContextMap != null) {
+            Context serviceContext = serviceContextMap.get(uri);
+            if (serviceContext != null) {
+                context.putAll(serviceContext);
+            }
+        }
+        return context;
+    }
+
     /**
      * Modified from QueryExecutionBase
      *
@@ -347,4 +794,27 @@ public class Service {
             }
         }
     }
+
+    /**
+     * [SPARQL-LD] Read an integer setting from the context.
+     *
+     * @param context The context.
+     * @param symbol The symbol of the setting.
+     * @param defaultValue The value to return if the setting is not defined.
+     * @return The value of the setting.
+     */
+    static int getAsInt(Context context, Symbol symbol, int defaultValue) {
+        if (context == null || !context.isDefined(symbol)) {
+            return defaultValue;
+        }
+        Object obj = context.get(symbol);
+        if (obj instanceof Number) {
+            return ((Number) obj).intValue();
+        }
+        try {
+            return Integer.parseInt(obj.toString().trim());
+        } catch (NumberFormatException ex) {
+            throw new QueryExecException("Can't interpret value for " + symbol + ": " + obj);
+        }
+    }
 }
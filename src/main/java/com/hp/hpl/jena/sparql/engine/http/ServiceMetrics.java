@@ -0,0 +1,439 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and histograms of the evaluation of SERVICE operators: cache hits
+ * and misses, endpoint checks, source selection, remote latency, fetched bytes,
+ * parse time and bindings per IRI.
+ *
+ * Recording is disabled by default; when disabled, each record method returns
+ * after reading a volatile flag. The values can be read with snapshot or
+ * dump, or published by an exporter (see MetricsExporter and
+ * JmxMetricsExporter).
+ *
+ * The tracing messages of the SERVICE evaluation are written (see trace) to
+ * the java.util.logging logger of this class at level FINE, so they are not
+ * written by default.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class ServiceMetrics {
+
+    private static final Logger TRACE = Logger.getLogger(ServiceMetrics.class.getName()); // The logger of the tracing messages
+    private volatile boolean enabled; // True if the metrics are recorded
+    private final Map<String, Counter> counters; // The counters, by name
+    private final Map<String, Histogram> histograms; // The histograms, by name
+    private final List<MetricsExporter> exporters; // The started exporters
+    private final Counter serviceCalls; // The number of SERVICE calls
+    private final Counter serviceFailures; // The number of failed SERVICE calls
+    private final Counter cacheHits; // The number of IRIs found in the cache of resources
+    private final Counter cacheMisses; // The number of IRIs not found in the cache of resources
+    private final Counter endpointIndexHits; // The number of IRIs found in the index of endpoints
+    private final Counter endpointChecks; // The number of endpoint checks (ASK queries) that found an endpoint
+    private final Counter nonEndpointChecks; // The number of endpoint checks (ASK queries) that did not find an endpoint
+    private final Counter sourcesSkipped; // The number of sources skipped by source selection
+    private final Counter probesFound; // The number of source selection probes that found a match
+    private final Counter probesNotFound; // The number of source selection probes that did not find a match
+    private final Counter probesFailed; // The number of failed source selection probes
+    private final Counter remoteErrors; // The number of failed requests to SPARQL endpoints
+    private final Counter fetchErrors; // The number of failed reads of Web resources
+    private final Histogram remoteLatency; // The latency (microseconds) of the requests to SPARQL endpoints
+    private final Histogram fetchBytes; // The bytes read per Web resource
+    private final Histogram parseTime; // The time (microseconds) of reading and parsing a Web resource
+    private final Histogram bindings; // The bindings returned per SERVICE call
+
+    /**
+     * Create new (disabled) metrics.
+     *
+     */
+    public ServiceMetrics() {
+        this.counters = new LinkedHashMap<>();
+        this.histograms = new LinkedHashMap<>();
+        this.exporters = new ArrayList<>();
+        this.serviceCalls = counter("service.calls");
+        this.serviceFailures = counter("service.failures");
+        this.cacheHits = counter("resourcesCache.hits");
+        this.cacheMisses = counter("resourcesCache.misses");
+        this.endpointIndexHits = counter("endpointIndex.hits");
+        this.endpointChecks = counter("endpointCheck.endpoints");
+        this.nonEndpointChecks = counter("endpointCheck.nonEndpoints");
+        this.sourcesSkipped = counter("sourceSelection.skipped");
+        this.probesFound = counter("sourceSelection.probes.found");
+        this.probesNotFound = counter("sourceSelection.probes.notFound");
+        this.probesFailed = counter("sourceSelection.probes.failed");
+        this.remoteErrors = counter("remote.errors");
+        this.fetchErrors = counter("fetch.errors");
+        this.remoteLatency = histogram("remote.latencyMicros");
+        this.fetchBytes = histogram("fetch.bytes");
+        this.parseTime = histogram("fetch.parseMicros");
+        this.bindings = histogram("service.bindings");
+    }
+
+    private Counter counter(String name) {
+        Counter counter = new Counter();
+        counters.put(name, counter);
+        return counter;
+    }
+
+    private Histogram histogram(String name) {
+        Histogram histogram = new Histogram();
+        histograms.put(name, histogram);
+        return histogram;
+    }
+
+    /**
+     * Write a tracing message of the SERVICE evaluation (at level FINE).
+     *
+     * @param message The message.
+     */
+    public static void trace(String message) {
+        if (TRACE.isLoggable(Level.FINE)) {
+            TRACE.fine(message);
+        }
+    }
+
+    /**
+     * Write a tracing message of the SERVICE evaluation (at level FINE). The
+     * message is formatted (see String.format) only if tracing messages are
+     * written, so that the hot paths do not build messages that are dropped.
+     *
+     * @param pattern The format of the message.
+     * @param args The arguments of the format.
+     */
+    public static void trace(String pattern, Object... args) {
+        if (TRACE.isLoggable(Level.FINE)) {
+            TRACE.fine(String.format(pattern, args));
+        }
+    }
+
+    /**
+     * Check if tracing messages are written, so that expensive messages are
+     * built only if needed.
+     *
+     * @return True if tracing messages are written.
+     */
+    public static boolean isTracing() {
+        return TRACE.isLoggable(Level.FINE);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Start timing an operation.
+     *
+     * @return The start time (in nanoseconds), or 0 if the metrics are
+     * disabled.
+     */
+    public long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void recordServiceCall() {
+        if (enabled) {
+            serviceCalls.increment();
+        }
+    }
+
+    public void recordServiceFailure() {
+        if (enabled) {
+            serviceFailures.increment();
+        }
+    }
+
+    /**
+     * Record a lookup in the cache of resources.
+     *
+     * @param hit True if the IRI was found in the cache.
+     */
+    public void recordCacheLookup(boolean hit) {
+        if (enabled) {
+            (hit ? cacheHits : cacheMisses).increment();
+        }
+    }
+
+    public void recordEndpointIndexHit() {
+        if (enabled) {
+            endpointIndexHits.increment();
+        }
+    }
+
+    /**
+     * Record the outcome of an endpoint check (ASK query).
+     *
+     * @param endpoint True if the IRI is a SPARQL endpoint.
+     */
+    public void recordEndpointCheck(boolean endpoint) {
+        if (enabled) {
+            (endpoint ? endpointChecks : nonEndpointChecks).increment();
+        }
+    }
+
+    public void recordSourceSkipped() {
+        if (enabled) {
+            sourcesSkipped.increment();
+        }
+    }
+
+    /**
+     * Record the outcome of a source selection probe query.
+     *
+     * @param found True if a match was found, false if not, null if the probe
+     * failed.
+     */
+    public void recordProbe(Boolean found) {
+        if (enabled) {
+            (found == null ? probesFailed : found ? probesFound : probesNotFound).increment();
+        }
+    }
+
+    /**
+     * Record a request to a SPARQL endpoint.
+     *
+     * @param start The start time (see startTimer).
+     * @param success False if the request failed.
+     */
+    public void recordRemote(long start, boolean success) {
+        if (enabled && start != 0) {
+            if (success) {
+                remoteLatency.record((System.nanoTime() - start) / 1000);
+            } else {
+                remoteErrors.increment();
+            }
+        }
+    }
+
+    /**
+     * Record the read of a Web resource.
+     *
+     * @param start The start time (see startTimer).
+     * @param bytes The number of bytes read.
+     */
+    public void recordFetch(long start, long bytes) {
+        if (enabled && start != 0) {
+            parseTime.record((System.nanoTime() - start) / 1000);
+            fetchBytes.record(bytes);
+        }
+    }
+
+    public void recordFetchError() {
+        if (enabled) {
+            fetchErrors.increment();
+        }
+    }
+
+    /**
+     * Record the number of bindings returned by a SERVICE call.
+     *
+     * @param count The number of bindings.
+     */
+    public void recordBindings(long count) {
+        if (enabled) {
+            bindings.record(count);
+        }
+    }
+
+    /**
+     * Return the current values: the counters, the count, mean, 50th, 90th
+     * and 99th percentiles and maximum of each histogram, and the sizes of
+     * the shared caches and indexes.
+     *
+     * @return The values, by name.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".p50", histogram.getPercentile(0.5));
+            values.put(name + ".p90", histogram.getPercentile(0.9));
+            values.put(name + ".p99", histogram.getPercentile(0.99));
+            values.put(name + ".max", histogram.getMax());
+        }
+        values.put("resourcesCache.size", (long) QueryExecutionBase.cache.size());
+        values.put("resourcesCache.estimatedBytes", QueryExecutionBase.cache.getEstimatedBytes());
+        OffHeapResourcesCache offHeap = QueryExecutionBase.cache.getOffHeapTier();
+        if (offHeap != null) {
+            values.put("offHeapCache.size", (long) offHeap.size());
+            values.put("offHeapCache.allocatedBytes", offHeap.getAllocatedBytes());
+            values.put("offHeapCache.hits", offHeap.getHits());
+            values.put("offHeapCache.misses", offHeap.getMisses());
+        }
+        values.put("resultsCache.size", (long) QueryExecutionBase.resultsCache.size());
+        values.put("resultsCache.hits", QueryExecutionBase.resultsCache.getHits());
+        values.put("resultsCache.misses", QueryExecutionBase.resultsCache.getMisses());
+        values.put("endpointIndex.size", (long) QueryExecutionBase.endpointIndex.getEndpoints().size());
+        return values;
+    }
+
+    /**
+     * Return the current values as text, one "name = value" per line.
+     *
+     * @return The values.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Set all the counters and histograms to zero.
+     *
+     */
+    public void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Start an exporter of the metrics.
+     *
+     * @param exporter The exporter.
+     */
+    public synchronized void addExporter(MetricsExporter exporter) {
+        exporter.start(this);
+        exporters.add(exporter);
+    }
+
+    /**
+     * Stop an exporter of the metrics.
+     *
+     * @param exporter The exporter.
+     */
+    public synchronized void removeExporter(MetricsExporter exporter) {
+        if (exporters.remove(exporter)) {
+            exporter.stop();
+        }
+    }
+
+    public synchronized List<MetricsExporter> getExporters() {
+        return Collections.unmodifiableList(new ArrayList<>(exporters));
+    }
+
+    /**
+     * A counter.
+     */
+    private static final class Counter {
+
+        private final AtomicLong value = new AtomicLong(); // The value
+
+        void increment() {
+            value.incrementAndGet();
+        }
+
+        long get() {
+            return value.get();
+        }
+
+        void reset() {
+            value.set(0);
+        }
+    }
+
+    /**
+     * A histogram of non-negative values, with a bucket per power of two (so
+     * the percentiles are approximate, within a factor of two).
+     */
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64); // Bucket i counts the values with i significant bits
+        private final AtomicLong count = new AtomicLong(); // The number of values
+        private final AtomicLong sum = new AtomicLong(); // The sum of the values
+        private final AtomicLong max = new AtomicLong(); // The maximum value
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Return the upper bound of the bucket that contains a percentile.
+         */
+        long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.engine.Rename;
+import com.hp.hpl.jena.sparql.util.Context;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches in parallel the RDF models of the IRIs of a set of SERVICE operators
+ * and adds them to the (shared) cache of already-retrieved resources, so that
+ * the subsequent evaluation of each SERVICE operator does not wait for the
+ * network. A resource is read the way the evaluation of its SERVICE operator
+ * would read it (see Service): as a memory-mapped index if serviceMappedIndex
+ * is set, as a filtered model if serviceFilterTriples is set, or else as a
+ * full model. A resource whose sub-query is streamed (serviceStreaming) is not
+ * prefetched.
+ *
+ * The fetches of all prefetchers run on one shared pool of daemon threads.
+ * The number of concurrent fetches of a prefetcher, and of the same host, is
+ * bounded.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class ServicePrefetcher {
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SPARQL-LD-prefetch-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }); // The worker pool shared by all prefetchers (idle threads exit after a minute)
+    private final Semaphore slots; // The permits of the concurrent fetches of this prefetcher
+    private final int maxPerHost; // The maximum number of concurrent fetches per host
+    private final Map<String, Semaphore> hostPermits; // The fetch permits of each host
+    private final boolean mappedIndex; // True if the resources are read as memory-mapped indexes
+    private final boolean filterTriples; // True if only the triples that can match the sub-query are kept
+    private final boolean streaming; // True if single triple patterns are streamed (not prefetched)
+    private final List<Future<Model>> running; // The fetches of the current prefetch
+    private volatile boolean closed; // True if the prefetcher has been shut down
+
+    /**
+     * Create a new prefetcher.
+     *
+     * @param maxThreads The maximum number of concurrent fetches.
+     * @param maxPerHost The maximum number of concurrent fetches per host.
+     * @param context The query context (it selects how the resources are
+     * read, as in Service).
+     */
+    public ServicePrefetcher(int maxThreads, int maxPerHost, Context context) {
+        this.slots = new Semaphore(Math.max(1, maxThreads));
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.hostPermits = new HashMap<>();
+        this.mappedIndex = context != null && context.isTrue(Service.serviceMappedIndex);
+        this.filterTriples = !mappedIndex && context != null && context.isTrue(Service.serviceFilterTriples);
+        this.streaming = !mappedIndex && context != null && context.isTrue(Service.serviceStreaming);
+        this.running = new ArrayList<>();
+    }
+
+    /**
+     * Fetch the IRIs of the given SERVICE operators (with their variables
+     * substituted by the values of a binding) in parallel and wait until all
+     * of them have been fetched. The resources that already exist in the cache
+     * (or as memory-mapped indexes), the IRIs in the index of known endpoints,
+     * and the IRIs that failed recently are skipped. The IRIs found to
+     * correspond to a SPARQL endpoint are added in the index of known
+     * endpoints, and the others in the index of known non-endpoints. Failed
+     * fetches are recorded in the failure memo; they are reported when the
+     * SERVICE operator is evaluated.
+     *
+     * @param services The SERVICE operators.
+     */
+    public void prefetch(Collection<OpService> services) {
+        Set<String> keys = new HashSet<>();
+        List<String> pending = new ArrayList<>();
+        List<Future<Model>> futures = new ArrayList<>();
+        for (OpService op : services) {
+            if (closed) {
+                break;
+            }
+            if (!op.getService().isURI()) {
+                continue;
+            }
+            final String iri = op.getService().getURI();
+            Op opRemote = Rename.reverseVarRename(op.getSubOp(), true); // as in Service.exec
+            if (streaming && QueryIterStreamingPattern.applies(opRemote)) {
+                continue;
+            }
+            final TripleFilter filter = filterTriples ? TripleFilter.create(opRemote) : null;
+            String key = filter == null ? iri : filter.key(iri);
+            if (!keys.add(key)
+                    || QueryExecutionBase.cache.inCache(iri)
+                    || (filter != null && QueryExecutionBase.cache.inCache(key))
+                    || (mappedIndex && QueryExecutionBase.mappedIndexes.get(iri) != null)
+                    || QueryExecutionBase.endpointIndex.inIndex(iri)
+                    || QueryExecutionBase.failureMemo.isBlocked(iri)) {
+                continue;
+            }
+            try {
+                slots.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            FutureTask<Model> task = new FutureTask<Model>(new Callable<Model>() {
+                @Override
+                public Model call() throws Exception {
+                    return fetch(iri, filter);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    slots.release(); // also if the fetch is cancelled before it starts
+                }
+            };
+            synchronized (running) {
+                running.add(task);
+            }
+            if (closed) {
+                task.cancel(true);
+                break;
+            }
+            executor.execute(task);
+            futures.add(task);
+            pending.add(iri);
+        }
+
+        // The index is updated by the calling thread only.
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                String iri = pending.get(i);
+                try {
+                    if (futures.get(i).get() == null) {
+                        QueryExecutionBase.endpointIndex.add(iri);
+                    }
+                } catch (ExecutionException ex) {
+                    ServiceMetrics.trace("Prefetching the IRI \"%s\" failed: %s", iri, ex.getCause());
+                    if (FailureMemo.isUnreachable(ex.getCause())) {
+                        QueryExecutionBase.failureMemo.recordFailure(iri, ex.getCause());
+                    }
+                } catch (CancellationException ex) {
+                    return;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            synchronized (running) {
+                running.clear();
+            }
+        }
+    }
+
+    /**
+     * Fetch the RDF model of an IRI, holding a permit of its host.
+     *
+     * @param iri The IRI to fetch.
+     * @param filter The filter of the triples (null for the full RDF model).
+     * @return The RDF model of the IRI, or null if the IRI corresponds to a
+     * SPARQL endpoint.
+     */
+    private Model fetch(final String iri, TripleFilter filter) throws InterruptedException {
+        Semaphore permits = permitsOf(iri);
+        permits.acquire();
+        try {
+            boolean knownNonEndpoint = QueryExecutionBase.nonEndpointIndex.inIndex(iri);
+            if (!knownNonEndpoint && ReadRDFFromIRI.isEndpoint(iri)) {
+                return null;
+            }
+            Model model;
+            if (mappedIndex) {
+                model = QueryExecutionBase.mappedIndexes.getOrBuild(iri);
+            } else if (filter != null) {
+                model = QueryExecutionBase.cache.getOrLoad(iri, filter);
+            } else {
+                model = QueryExecutionBase.cache.getOrLoad(iri);
+            }
+            QueryExecutionBase.failureMemo.recordSuccess(iri);
+            if (!knownNonEndpoint) {
+                QueryExecutionBase.nonEndpointIndex.add(iri);
+            }
+            return model;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Return the fetch permits of the host of an IRI.
+     *
+     * @param iri The IRI.
+     * @return The permits of the IRI host.
+     */
+    private Semaphore permitsOf(String iri) {
+        String host;
+        try {
+            host = URI.create(iri).getHost();
+        } catch (IllegalArgumentException ex) {
+            host = null;
+        }
+        if (host == null) {
+            host = "";
+        }
+        synchronized (hostPermits) {
+            Semaphore permits = hostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(maxPerHost);
+                hostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+
+    /**
+     * Stop the prefetcher, cancelling its running fetches. The shared worker
+     * pool is not stopped.
+     *
+     */
+    public void shutdown() {
+        closed = true;
+        synchronized (running) {
+            for (Future<Model> task : running) {
+                task.cancel(true);
+            }
+        }
+    }
+}
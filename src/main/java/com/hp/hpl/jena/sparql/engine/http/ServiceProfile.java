@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.hp.hpl.jena.sparql.util.Context;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The execution profile of a query: a tree of timings with a node for each
+ * SERVICE call, and a child node for each of its phases (source selection,
+ * endpoint check, remote request, fetch, parse, local evaluation), with the
+ * cache status, the rows returned and the error (if any) of the call.
+ *
+ * A profile is collected if the context of the query execution contains
+ * Service.serviceProfile set to "true". It is then available in the context
+ * (see get) and from QueryExecutionBase.getServiceProfile. The rows of a call
+ * are counted while its results are read, so the profile is complete after
+ * the results of the query have been read.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class ServiceProfile {
+
+    private static final JsonFactory JSON = new JsonFactory(); // Creates the JSON generators
+    private static final ThreadLocal<Node> current = new ThreadLocal<>(); // The SERVICE call evaluated by the current thread
+    private final Node root; // The root of the tree (the query)
+
+    /**
+     * Create a new (empty) profile.
+     *
+     */
+    public ServiceProfile() {
+        this.root = new Node("query", null);
+    }
+
+    /**
+     * Return the profile of a query execution.
+     *
+     * @param context The context of the query execution.
+     * @return The profile, or null if no profile is collected.
+     */
+    public static ServiceProfile get(Context context) {
+        if (context == null) {
+            return null;
+        }
+        Object profile = context.get(Service.serviceProfileResult);
+        return profile instanceof ServiceProfile ? (ServiceProfile) profile : null;
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Return the node of the SERVICE call evaluated by the current thread.
+     *
+     * @return The node, or null if no profile is collected.
+     */
+    public static Node current() {
+        return current.get();
+    }
+
+    /**
+     * Set the node of the SERVICE call evaluated by the current thread.
+     *
+     * @param node The node (or null).
+     * @return The previous node of the thread, to be restored after the call.
+     */
+    static Node enter(Node node) {
+        Node previous = current.get();
+        current.set(node);
+        return previous;
+    }
+
+    /**
+     * Render the profile as indented text, one node per line.
+     *
+     * @return The text.
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        toText(root, 0, sb);
+        return sb.toString();
+    }
+
+    private static void toText(Node node, int depth, StringBuilder sb) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        sb.append(node.name);
+        if (node.label != null) {
+            sb.append(" <").append(node.label).append('>');
+        }
+        sb.append(String.format(Locale.ROOT, " %.3f ms", node.getElapsedMillis()));
+        for (Map.Entry<String, Object> entry : node.getAttributes().entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        sb.append('\n');
+        for (Node child : node.getChildren()) {
+            toText(child, depth + 1, sb);
+        }
+    }
+
+    /**
+     * Render the profile as JSON: each node is an object with the members
+     * "name", "iri" (if any), "ms", its attributes and "children".
+     *
+     * @return The JSON text.
+     */
+    public String toJSON() {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator json = JSON.createGenerator(out)) {
+            toJSON(root, json);
+        } catch (IOException ex) {
+            Logger.getLogger(ServiceProfile.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return out.toString();
+    }
+
+    private static void toJSON(Node node, JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("name", node.name);
+        if (node.label != null) {
+            json.writeStringField("iri", node.label);
+        }
+        json.writeNumberField("ms", node.getElapsedMillis());
+        for (Map.Entry<String, Object> entry : node.getAttributes().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Long || value instanceof Integer) {
+                json.writeNumberField(entry.getKey(), ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                json.writeBooleanField(entry.getKey(), (Boolean) value);
+            } else {
+                json.writeStringField(entry.getKey(), String.valueOf(value));
+            }
+        }
+        List<Node> children = node.getChildren();
+        if (!children.isEmpty()) {
+            json.writeArrayFieldStart("children");
+            for (Node child : children) {
+                toJSON(child, json);
+            }
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    /**
+     * A node of the profile: a timed operation, with attributes and child
+     * operations. The nodes are thread-safe (the SERVICE calls of a query may
+     * be evaluated by several threads).
+     */
+    public static final class Node {
+
+        private final String name; // The name of the operation
+        private final String label; // The IRI of the operation (or null)
+        private final long start; // The start time (in nanoseconds)
+        private long elapsed = -1; // The duration (in nanoseconds), or -1 if the operation has not finished
+        private final Map<String, Object> attributes = new LinkedHashMap<>(); // The attributes
+        private final List<Node> children = new ArrayList<>(); // The child operations
+
+        private Node(String name, String label) {
+            this(name, label, System.nanoTime());
+        }
+
+        private Node(String name, String label, long start) {
+            this.name = name;
+            this.label = label;
+            this.start = start;
+        }
+
+        /**
+         * Start a child operation.
+         *
+         * @param name The name of the operation.
+         * @param label The IRI of the operation (or null).
+         * @return The node of the operation.
+         */
+        public Node start(String name, String label) {
+            Node child = new Node(name, label);
+            synchronized (this) {
+                children.add(child);
+            }
+            return child;
+        }
+
+        /**
+         * Add a child operation that has finished.
+         *
+         * @param name The name of the operation.
+         * @param start The start time (in nanoseconds, see System.nanoTime).
+         * @return The node of the operation.
+         */
+        public Node phase(String name, long start) {
+            Node child = new Node(name, null, start);
+            child.stop();
+            synchronized (this) {
+                children.add(child);
+            }
+            return child;
+        }
+
+        /**
+         * Finish the operation (only its first finish is recorded).
+         *
+         */
+        public synchronized void stop() {
+            if (elapsed < 0) {
+                elapsed = System.nanoTime() - start;
+            }
+        }
+
+        public synchronized void set(String key, Object value) {
+            attributes.put(key, value);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Return the duration of the operation.
+         *
+         * @return The duration (in milliseconds), or the time elapsed since
+         * its start if the operation has not finished.
+         */
+        public synchronized double getElapsedMillis() {
+            return (elapsed < 0 ? System.nanoTime() - start : elapsed) / 1e6;
+        }
+
+        public synchronized Map<String, Object> getAttributes() {
+            return new LinkedHashMap<>(attributes);
+        }
+
+        public synchronized List<Node> getChildren() {
+            return new ArrayList<>(children);
+        }
+    }
+}
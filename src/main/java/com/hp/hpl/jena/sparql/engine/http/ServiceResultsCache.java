@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.util.Context;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of the results of SERVICE sub-queries, shared across queries. The
+ * cache stores the materialized bindings of a sub-query, keyed by the IRI of
+ * the service, the settings of the call (e.g. the credentials) and the algebra
+ * of the sub-query (in which the upstream bindings have already been
+ * substituted), so a repeated sub-query is answered without running it again
+ * at a cached RDF model or sending it to a SPARQL endpoint.
+ *
+ * The cache is thread-safe. It is bounded by the total number of cached
+ * values (the bound variables of all the cached bindings); when the bound is
+ * exceeded, the least recently used results are evicted. Each result expires
+ * after a time-to-live.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class ServiceResultsCache {
+
+    /**
+     * The estimated heap size (in bytes) of a cached value.
+     */
+    public static final long ESTIMATED_BYTES_PER_VALUE = 100;
+    /**
+     * The default maximum number of cached values.
+     */
+    public static final long DEFAULT_MAX_VALUES = 1000000;
+    /**
+     * The default time-to-live (in milliseconds) of cached results.
+     */
+    public static final long DEFAULT_TTL = 10 * 60 * 1000;
+    private final LinkedHashMap<String, CachedResults> key2results; // The cached results, in least-recently-used order
+    private long maxValues; // The maximum number of cached values
+    private long ttl; // The time-to-live of cached results
+    private long values; // The number of cached values
+    private long hits; // The number of lookups that found the results
+    private long misses; // The number of lookups that did not find the results
+
+    /**
+     * Initialize a new cache with the default bounds.
+     *
+     */
+    public ServiceResultsCache() {
+        this(DEFAULT_MAX_VALUES, DEFAULT_TTL);
+    }
+
+    /**
+     * Initialize a new cache.
+     *
+     * @param maxValues The maximum number of cached values.
+     * @param ttl The time-to-live (in milliseconds) of cached results.
+     */
+    public ServiceResultsCache(long maxValues, long ttl) {
+        this.key2results = new LinkedHashMap<>(16, 0.75f, true);
+        this.maxValues = maxValues;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Return the cache key of a sub-query: the IRI, the settings of the
+     * SERVICE call that may change its results, and the algebra of the
+     * sub-query (exactly as serialized, so the literals and IRIs are kept as
+     * they are).
+     *
+     * @param iri The IRI of the service.
+     * @param opRemote The algebra of the sub-query, with the upstream bindings
+     * substituted.
+     * @param context The query context (or null).
+     * @return The key.
+     */
+    public static String key(String iri, Op opRemote, Context context) {
+        return iri + "\n" + settings(iri, context) + "\n" + opRemote.toString();
+    }
+
+    /**
+     * Return the cache key of a query sent to a SPARQL endpoint (see key).
+     *
+     * @param iri The IRI of the SPARQL endpoint.
+     * @param query The query.
+     * @param context The query context (or null).
+     * @return The key.
+     */
+    public static String key(String iri, Query query, Context context) {
+        return iri + "\n" + settings(iri, context) + "\n" + query.toString();
+    }
+
+    /**
+     * Return the settings of a SERVICE call (including the service context of
+     * the IRI) that may change its results: the credentials, the timeouts and
+     * the service parameters.
+     */
+    private static String settings(String iri, Context context) {
+        if (context == null) {
+            return "";
+        }
+        Context serviceCxt = Service.serviceContext(iri, context);
+        String password = serviceCxt.getAsString(Service.queryAuthPwd);
+        return "user=" + serviceCxt.getAsString(Service.queryAuthUser)
+                + " password=" + (password == null ? "" : Integer.toHexString(password.hashCode()))
+                + " timeout=" + serviceCxt.get(Service.queryTimeout)
+                + " params=" + QueryEngineHTTP.getServiceParams(iri, serviceCxt).httpString();
+    }
+
+    /**
+     * Get the cached results of a sub-query.
+     *
+     * @param key The key of the sub-query (see key).
+     * @return The bindings (unmodifiable), or null if they do not exist in the
+     * cache (or they have expired).
+     */
+    public synchronized List<Binding> get(String key) {
+        CachedResults entry = key2results.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.bindings;
+    }
+
+    /**
+     * Add the results of a sub-query to the cache. Results larger than the
+     * cache are not added.
+     *
+     * @param key The key of the sub-query (see key).
+     * @param bindings The bindings.
+     */
+    public synchronized void put(String key, List<Binding> bindings) {
+        CachedResults entry = new CachedResults(bindings, System.currentTimeMillis() + ttl);
+        remove(key);
+        if (entry.values > maxValues) {
+            return;
+        }
+        key2results.put(key, entry);
+        values += entry.values;
+        evict();
+    }
+
+    /**
+     * Remove the results of a sub-query from the cache.
+     *
+     * @param key The key of the sub-query.
+     */
+    public synchronized void remove(String key) {
+        CachedResults entry = key2results.remove(key);
+        if (entry != null) {
+            values -= entry.values;
+        }
+    }
+
+    /**
+     * Return the number of cached sub-queries.
+     *
+     * @return The number of cached sub-queries.
+     */
+    public synchronized int size() {
+        return key2results.size();
+    }
+
+    /**
+     * Return the estimated heap size (in bytes) of the cached results.
+     *
+     * @return The estimated heap size of the cached results.
+     */
+    public synchronized long getEstimatedBytes() {
+        return values * ESTIMATED_BYTES_PER_VALUE;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Set the maximum number of cached values.
+     *
+     * @param maxValues The maximum number of cached values.
+     */
+    public synchronized void setMaxValues(long maxValues) {
+        this.maxValues = maxValues;
+        evict();
+    }
+
+    /**
+     * Set the time-to-live of cached results.
+     *
+     * @param ttl The time-to-live (in milliseconds).
+     */
+    public synchronized void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Clear the cache.
+     *
+     */
+    public synchronized void clear() {
+        key2results.clear();
+        values = 0;
+    }
+
+    /**
+     * Evict the least recently used results until the cache is within its
+     * bound.
+     */
+    private void evict() {
+        Iterator<CachedResults> it = key2results.values().iterator();
+        while (values > maxValues && it.hasNext()) {
+            values -= it.next().values;
+            it.remove();
+        }
+    }
+
+    /**
+     * The cached results of a sub-query.
+     */
+    private static class CachedResults {
+
+        final List<Binding> bindings; // The bindings
+        final long values; // The number of bound values of the bindings (at least one per binding)
+        final long expires; // The expiration time
+
+        CachedResults(List<Binding> bindings, long expires) {
+            this.bindings = Collections.unmodifiableList(bindings);
+            long count = 0;
+            for (Binding binding : bindings) {
+                count += Math.max(1, binding.size());
+            }
+            this.values = count;
+            this.expires = expires;
+        }
+    }
+}
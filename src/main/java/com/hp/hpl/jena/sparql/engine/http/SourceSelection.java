@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpAsQuery;
+import com.hp.hpl.jena.sparql.algebra.op.Op1;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpConditional;
+import com.hp.hpl.jena.sparql.algebra.op.OpDatasetNames;
+import com.hp.hpl.jena.sparql.algebra.op.OpDiff;
+import com.hp.hpl.jena.sparql.algebra.op.OpDisjunction;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph;
+import com.hp.hpl.jena.sparql.algebra.op.OpGroup;
+import com.hp.hpl.jena.sparql.algebra.op.OpJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpLeftJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpMinus;
+import com.hp.hpl.jena.sparql.algebra.op.OpPropFunc;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuad;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadBlock;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadPattern;
+import com.hp.hpl.jena.sparql.algebra.op.OpSequence;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.algebra.op.OpTriple;
+import com.hp.hpl.jena.sparql.algebra.op.OpUnion;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.vocabulary.RDF;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Source selection: decides, before any network I/O, whether a Web resource
+ * or a SPARQL endpoint can contribute results to the sub-query of a SERVICE
+ * operator. A source is skipped if it certainly does not contain a predicate
+ * (or class) that every solution of the sub-query must match:
+ * <ul>
+ * <li>For Web resources, the summaries (SourceSummary) of the resources read
+ * before are checked; a resource without a summary is not skipped.</li>
+ * <li>For SPARQL endpoints, a probe query (one triple pattern with LIMIT 1) is
+ * sent for each required predicate and class the first time, and its answer
+ * is remembered.</li>
+ * </ul>
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class SourceSelection {
+
+    /**
+     * The default time-to-live (in milliseconds) of a summary or of a probe
+     * answer.
+     */
+    public static final long DEFAULT_TTL = 60 * 60 * 1000;
+    /**
+     * The default maximum number of summaries kept.
+     */
+    public static final int DEFAULT_MAX_SUMMARIES = 100000;
+    private final LinkedHashMap<String, SourceSummary> summaries; // The summaries of the Web resources, in least-recently-used order
+    private final HashMap<String, Probe> probes; // The probe answers, keyed by endpoint IRI and predicate (or class) key
+    private long ttl; // The time-to-live of a summary or of a probe answer
+    private int maxSummaries; // The maximum number of summaries kept
+
+    /**
+     * Create a new source selection with the default time-to-live and size.
+     *
+     */
+    public SourceSelection() {
+        this.summaries = new LinkedHashMap<String, SourceSummary>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SourceSummary> eldest) {
+                return size() > maxSummaries;
+            }
+        };
+        this.probes = new HashMap<>();
+        this.ttl = DEFAULT_TTL;
+        this.maxSummaries = DEFAULT_MAX_SUMMARIES;
+    }
+
+    /**
+     * Record the summary of the RDF model of a Web resource (unless a valid
+     * summary already exists).
+     *
+     * @param iri The IRI of the Web resource.
+     * @param model The (complete) RDF model of the Web resource.
+     */
+    public void record(String iri, Model model) {
+        if (getSummary(iri) != null) {
+            return;
+        }
+        SourceSummary summary = SourceSummary.of(model.getGraph(), ttl);
+        synchronized (this) {
+            summaries.put(iri, summary);
+        }
+    }
+
+    /**
+     * Get the summary of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The summary, or null if there is none (or it has expired).
+     */
+    public synchronized SourceSummary getSummary(String iri) {
+        SourceSummary summary = summaries.get(iri);
+        if (summary != null && summary.isExpired()) {
+            summaries.remove(iri);
+            return null;
+        }
+        return summary;
+    }
+
+    /**
+     * Check if a Web resource may contribute results to a sub-query, using its
+     * summary (no network I/O).
+     *
+     * @param iri The IRI of the Web resource.
+     * @param op The sub-query.
+     * @return False if the resource certainly has no results.
+     */
+    public boolean canMatch(String iri, Op op) {
+        final SourceSummary summary = getSummary(iri);
+        if (summary == null) {
+            return true;
+        }
+        return mightMatch(op, new Check() {
+            @Override
+            public boolean mightContain(String key) {
+                return summary.mightContain(key);
+            }
+        });
+    }
+
+    /**
+     * Check if a SPARQL endpoint may contribute results to a sub-query,
+     * sending a probe query for each required predicate and class whose answer
+     * is not known. A failed probe does not skip the endpoint.
+     *
+     * @param uri The IRI of the SPARQL endpoint.
+     * @param op The sub-query.
+     * @param context The query context.
+     * @return False if the endpoint certainly has no results.
+     */
+    public boolean endpointCanMatch(final String uri, Op op, final Context context) {
+        return mightMatch(op, new Check() {
+            @Override
+            public boolean mightContain(String key) {
+                Node iri = NodeFactory.createURI(key.substring(2));
+                Triple pattern = SourceSummary.isClassKey(key)
+                        ? Triple.create(Var.alloc("s"), RDF.Nodes.type, iri)
+                        : Triple.create(Var.alloc("s"), iri, Var.alloc("o"));
+                return probe(uri, key, pattern, context);
+            }
+        });
+    }
+
+    /**
+     * Check if an endpoint has a match of a triple pattern, using the
+     * remembered answer or sending a probe query.
+     */
+    private boolean probe(String uri, String key, Triple pattern, Context context) {
+        String probeKey = uri + " " + key;
+        synchronized (this) {
+            Probe probe = probes.get(probeKey);
+            if (probe != null && probe.expires > System.currentTimeMillis()) {
+                return probe.found;
+            }
+        }
+        BasicPattern bgp = new BasicPattern();
+        bgp.add(pattern);
+        Query query = OpAsQuery.asQuery(new OpBGP(bgp));
+        query.setLimit(1);
+        boolean found;
+        try {
+            QueryIterator qIter = Service.execRemote(uri, context, query);
+            try {
+                found = qIter.hasNext();
+            } finally {
+                qIter.close();
+            }
+        } catch (RuntimeException ex) {
+            ServiceMetrics.trace("The probe query of the SPARQL endpoint \"%s\" failed: %s", uri, ex.getMessage());
+            QueryExecutionBase.metrics.recordProbe(null);
+            return true;
+        }
+        QueryExecutionBase.metrics.recordProbe(found);
+        synchronized (this) {
+            probes.put(probeKey, new Probe(found, System.currentTimeMillis() + ttl));
+            if (probes.size() > maxSummaries) {
+                sweep();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Remove the expired probe answers.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Probe> it = probes.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expires < now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Check if a sub-query may have solutions over a source, given which
+     * predicates and classes the source may contain. Parts whose solutions may
+     * not match any triple (OPTIONAL, MINUS, aggregation, property functions,
+     * nested SERVICE operators) are not checked, nor are the patterns over
+     * named graphs (the summaries and the probes cover only the default
+     * graph); a UNION may match if any of its branches may match.
+     *
+     * @param op The sub-query.
+     * @param check The predicates and classes (keys of SourceSummary) that
+     * the source may contain.
+     * @return False if the sub-query certainly has no solutions.
+     */
+    static boolean mightMatch(Op op, Check check) {
+        if (op instanceof OpGraph || op instanceof OpQuadPattern || op instanceof OpQuadBlock
+                || op instanceof OpQuad || op instanceof OpDatasetNames) {
+            return true;
+        } else if (op instanceof OpBGP) {
+            for (Triple triple : ((OpBGP) op).getPattern()) {
+                if (!mightMatch(triple, check)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (op instanceof OpTriple) {
+            return mightMatch(((OpTriple) op).getTriple(), check);
+        } else if (op instanceof OpJoin) {
+            return mightMatch(((OpJoin) op).getLeft(), check) && mightMatch(((OpJoin) op).getRight(), check);
+        } else if (op instanceof OpSequence) {
+            for (Op element : ((OpSequence) op).getElements()) {
+                if (!mightMatch(element, check)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (op instanceof OpLeftJoin) {
+            return mightMatch(((OpLeftJoin) op).getLeft(), check);
+        } else if (op instanceof OpConditional) {
+            return mightMatch(((OpConditional) op).getLeft(), check);
+        } else if (op instanceof OpMinus) {
+            return mightMatch(((OpMinus) op).getLeft(), check);
+        } else if (op instanceof OpDiff) {
+            return mightMatch(((OpDiff) op).getLeft(), check);
+        } else if (op instanceof OpUnion) {
+            return mightMatch(((OpUnion) op).getLeft(), check) || mightMatch(((OpUnion) op).getRight(), check);
+        } else if (op instanceof OpDisjunction) {
+            for (Op element : ((OpDisjunction) op).getElements()) {
+                if (mightMatch(element, check)) {
+                    return true;
+                }
+            }
+            return ((OpDisjunction) op).getElements().isEmpty();
+        } else if (op instanceof Op1 && !(op instanceof OpGroup) && !(op instanceof OpPropFunc) && !(op instanceof OpService)) {
+            return mightMatch(((Op1) op).getSubOp(), check);
+        }
+        return true;
+    }
+
+    private static boolean mightMatch(Triple triple, Check check) {
+        Node p = triple.getPredicate();
+        if (!p.isURI()) {
+            return true;
+        }
+        if (p.equals(RDF.Nodes.type) && triple.getObject().isURI()) {
+            return check.mightContain(SourceSummary.classKey(triple.getObject().getURI()));
+        }
+        return check.mightContain(SourceSummary.predicateKey(p.getURI()));
+    }
+
+    /**
+     * Clear the summaries and the probe answers.
+     *
+     */
+    public synchronized void clear() {
+        summaries.clear();
+        probes.clear();
+    }
+
+    public synchronized int size() {
+        return summaries.size();
+    }
+
+    public synchronized void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public synchronized void setMaxSummaries(int maxSummaries) {
+        this.maxSummaries = maxSummaries;
+    }
+
+    /**
+     * Tells which predicates and classes a source may contain.
+     */
+    interface Check {
+
+        /**
+         * @param key The key of a predicate or class (see SourceSummary).
+         * @return False if the source certainly does not contain it.
+         */
+        boolean mightContain(String key);
+    }
+
+    /**
+     * The answer of a probe query.
+     */
+    private static final class Probe {
+
+        private final boolean found; // True if the triple pattern has a match
+        private final long expires; // The expiration time of the answer
+
+        private Probe(boolean found, long expires) {
+            this.found = found;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A compact summary of the RDF model of a Web resource: a Bloom filter of the
+ * predicates and of the classes (objects of rdf:type) of its triples. A
+ * predicate (or class) that the filter does not contain certainly does not
+ * occur in the resource; one that it contains occurs with high probability
+ * (about 1% false positives).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class SourceSummary {
+
+    private static final int HASHES = 7; // The number of bits set per key
+    private static final double BITS_PER_KEY = 9.6; // The bits per key for about 1% false positives
+    private final long[] bits; // The bits of the filter
+    private final int size; // The number of bits of the filter
+    private final long triples; // The number of triples of the resource
+    private final long expires; // The expiration time of the summary
+
+    private SourceSummary(int keys, long triples, long expires) {
+        int words = Math.max(1, (int) Math.ceil(keys * BITS_PER_KEY / 64));
+        this.bits = new long[words];
+        this.size = words * 64;
+        this.triples = triples;
+        this.expires = expires;
+    }
+
+    /**
+     * Create the summary of an RDF graph.
+     *
+     * @param graph The graph.
+     * @param ttl The time-to-live (in milliseconds) of the summary.
+     * @return The summary.
+     */
+    public static SourceSummary of(Graph graph, long ttl) {
+        Set<String> keys = new HashSet<>();
+        long triples = 0;
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (it.hasNext()) {
+                Triple triple = it.next();
+                triples++;
+                Node p = triple.getPredicate();
+                if (p.isURI()) {
+                    keys.add(predicateKey(p.getURI()));
+                    if (p.equals(RDF.Nodes.type) && triple.getObject().isURI()) {
+                        keys.add(classKey(triple.getObject().getURI()));
+                    }
+                }
+            }
+        } finally {
+            it.close();
+        }
+        SourceSummary summary = new SourceSummary(keys.size(), triples, System.currentTimeMillis() + ttl);
+        for (String key : keys) {
+            summary.add(key);
+        }
+        return summary;
+    }
+
+    /**
+     * Check if the resource may contain triples with a predicate.
+     *
+     * @param iri The IRI of the predicate.
+     * @return False if the resource certainly does not contain the predicate.
+     */
+    public boolean mightContainPredicate(String iri) {
+        return mightContain(predicateKey(iri));
+    }
+
+    /**
+     * Check if the resource may contain instances of a class.
+     *
+     * @param iri The IRI of the class.
+     * @return False if the resource certainly does not contain rdf:type
+     * triples with the class.
+     */
+    public boolean mightContainClass(String iri) {
+        return mightContain(classKey(iri));
+    }
+
+    public boolean isExpired() {
+        return expires < System.currentTimeMillis();
+    }
+
+    public long getTriples() {
+        return triples;
+    }
+
+    private void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Check if the filter may contain a key.
+     *
+     * @param key The key of a predicate or class (see predicateKey and
+     * classKey).
+     * @return False if the key was certainly not added.
+     */
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The 64-bit FNV-1a hash of a key (its two halves are used as the two
+     * hashes of double hashing).
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static String predicateKey(String iri) {
+        return "p " + iri;
+    }
+
+    static String classKey(String iri) {
+        return "c " + iri;
+    }
+
+    static boolean isClassKey(String key) {
+        return key.startsWith("c ");
+    }
+}
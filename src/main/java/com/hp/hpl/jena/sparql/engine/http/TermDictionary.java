@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import java.util.Arrays;
+
+/**
+ * A dictionary of RDF terms, which encodes each term as an integer ID. The
+ * dictionary is shared by the compact graphs (see CompactGraph) of the
+ * cached resources, so a term that occurs in many resources (e.g. a common
+ * predicate or class) is stored once. The terms are found through two
+ * open-addressing hash tables of IDs (by term and, for literals, by value),
+ * so a term costs little more than its Node object.
+ *
+ * Literals are also indexed by value, so a literal of a triple pattern matches
+ * the literals that have the same value (e.g. "3"^^xsd:long and 3), as in an
+ * in-memory graph.
+ *
+ * The dictionary is thread-safe. IDs are never reused, so a dictionary only
+ * grows; the resources cache replaces it by a new one when most of its terms
+ * are no longer used.
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class TermDictionary {
+
+    /**
+     * The estimated heap size (in bytes) of a term of the dictionary.
+     */
+    public static final long ESTIMATED_BYTES_PER_TERM = 120;
+    private volatile Node[] id2node; // The terms, by ID (a full copy is published when it grows)
+    private int[] terms; // The hash table of the terms (ID + 1 per slot, 0 for an empty slot)
+    private int[] values; // The hash table of the literals by indexing value (ID + 1 per slot, 0 for an empty slot)
+    private int size; // The number of terms
+
+    /**
+     * Initialize a new (empty) dictionary.
+     *
+     */
+    public TermDictionary() {
+        this.id2node = new Node[1024];
+        this.terms = new int[2048];
+        this.values = new int[2048];
+    }
+
+    /**
+     * Return the ID of a term, adding the term if it does not exist.
+     *
+     * @param node The (concrete) term.
+     * @return The ID of the term.
+     */
+    public synchronized int encode(Node node) {
+        int slot = slot(node);
+        if (terms[slot] != 0) {
+            return terms[slot] - 1;
+        }
+        Node[] nodes = id2node;
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        }
+        nodes[size] = node;
+        id2node = nodes;
+        terms[slot] = size + 1;
+        if (node.isLiteral()) {
+            insertValue(values, size);
+        }
+        size++;
+        if (size * 2 > terms.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Return the ID of a term, without adding it.
+     *
+     * @param node The (concrete) term.
+     * @return The ID of the term, or -1 if it does not exist.
+     */
+    public synchronized int lookup(Node node) {
+        return terms[slot(node)] - 1;
+    }
+
+    /**
+     * Return the IDs of the literals that have the same value as a literal.
+     *
+     * @param literal The literal.
+     * @return The IDs (empty if there are none).
+     */
+    public synchronized int[] lookupValue(Node literal) {
+        int[] matches = new int[4];
+        int count = 0;
+        int mask = values.length - 1;
+        for (int slot = mix(literal.getIndexingValue().hashCode()) & mask; values[slot] != 0; slot = (slot + 1) & mask) {
+            int id = values[slot] - 1;
+            if (id2node[id].sameValueAs(literal)) {
+                if (count == matches.length) {
+                    matches = Arrays.copyOf(matches, count * 2);
+                }
+                matches[count++] = id;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * Return the term of an ID.
+     *
+     * @param id An ID returned by encode.
+     * @return The term.
+     */
+    public Node decode(int id) {
+        return id2node[id];
+    }
+
+    /**
+     * Return the number of terms.
+     *
+     * @return The number of terms.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Return the estimated heap size (in bytes) of the terms.
+     *
+     * @return The estimated heap size of the terms.
+     */
+    public synchronized long getEstimatedBytes() {
+        return size * ESTIMATED_BYTES_PER_TERM;
+    }
+
+    /**
+     * Return the slot of a term in the table of the terms: the slot of its ID,
+     * or the empty slot where its ID is to be inserted.
+     */
+    private int slot(Node node) {
+        int mask = terms.length - 1;
+        int slot = mix(node.hashCode()) & mask;
+        while (terms[slot] != 0 && !id2node[terms[slot] - 1].equals(node)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Insert the ID of a literal in a table of literals by indexing value.
+     */
+    private void insertValue(int[] table, int id) {
+        int mask = table.length - 1;
+        int slot = mix(id2node[id].getIndexingValue().hashCode()) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    /**
+     * Double the hash tables.
+     */
+    private void rehash() {
+        terms = new int[terms.length * 2];
+        values = new int[values.length * 2];
+        int mask = terms.length - 1;
+        for (int id = 0; id < size; id++) {
+            Node node = id2node[id];
+            int slot = mix(node.hashCode()) & mask;
+            while (terms[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            terms[slot] = id + 1;
+            if (node.isLiteral()) {
+                insertValue(values, id);
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of a hash code (the tables are indexed by its low bits).
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
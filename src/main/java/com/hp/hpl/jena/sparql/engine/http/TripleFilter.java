@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hp.hpl.jena.sparql.engine.http;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpAssign;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpDatasetNames;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.algebra.op.OpExtend;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph;
+import com.hp.hpl.jena.sparql.algebra.op.OpGroup;
+import com.hp.hpl.jena.sparql.algebra.op.OpLeftJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpPath;
+import com.hp.hpl.jena.sparql.algebra.op.OpProcedure;
+import com.hp.hpl.jena.sparql.algebra.op.OpPropFunc;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuad;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadBlock;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadPattern;
+import com.hp.hpl.jena.sparql.algebra.op.OpTriple;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.core.VarExprList;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprAggregator;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.ExprList;
+import com.hp.hpl.jena.sparql.expr.ExprVisitorBase;
+import com.hp.hpl.jena.sparql.expr.ExprWalker;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+
+/**
+ * Filter of the triples of a Web resource, built from the triple patterns of
+ * a SERVICE sub-query. A triple is kept only if it can match at least one of
+ * the triple patterns (i.e. it agrees with the constant subject, predicate and
+ * object of the pattern), so the triples that can never match are dropped
+ * while the resource is parsed.
+ *
+ * The filter is only built for sub-queries whose results depend on their
+ * triple patterns only (e.g. not for property paths or EXISTS expressions).
+ *
+ * @author Pavlos Fafalios (fafalios@ics.forth.gr, fafalios.pavlos@gmail.com)
+ */
+public class TripleFilter {
+
+    private final List<Triple> patterns; // The triple patterns of the sub-query
+    private final String signature; // The canonical form of the triple patterns
+
+    private TripleFilter(List<Triple> patterns) {
+        this.patterns = patterns;
+        TreeSet<String> forms = new TreeSet<>();
+        for (Triple pattern : patterns) {
+            forms.add(form(pattern.getSubject()) + " " + form(pattern.getPredicate()) + " " + form(pattern.getObject()));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String form : forms) {
+            sb.append(form).append(" . ");
+        }
+        this.signature = sb.toString().trim();
+    }
+
+    /**
+     * Build the filter of a SERVICE sub-query.
+     *
+     * @param op The sub-query of the SERVICE operator.
+     * @return The filter, or null if the sub-query needs all the triples of the
+     * resource (it has a triple pattern without constants, or an operator
+     * whose results do not depend on its triple patterns only).
+     */
+    public static TripleFilter create(Op op) {
+        PatternCollector collector = new PatternCollector();
+        OpWalker.walk(op, collector);
+        if (collector.unfiltered || collector.patterns.isEmpty()) {
+            return null;
+        }
+        for (Triple pattern : collector.patterns) {
+            if (Var.isVar(pattern.getSubject()) && Var.isVar(pattern.getPredicate()) && Var.isVar(pattern.getObject())) {
+                return null;
+            }
+        }
+        return new TripleFilter(collector.patterns);
+    }
+
+    /**
+     * Check if a triple can match at least one of the triple patterns.
+     *
+     * @param triple The triple.
+     * @return True if the triple must be kept.
+     */
+    public boolean accept(Triple triple) {
+        for (Triple pattern : patterns) {
+            if (matches(pattern.getPredicate(), triple.getPredicate())
+                    && matches(pattern.getSubject(), triple.getSubject())
+                    && matches(pattern.getObject(), triple.getObject())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(Node patternNode, Node node) {
+        return Var.isVar(patternNode) || patternNode.matches(node);
+    }
+
+    /**
+     * Wrap a destination of triples, so that it receives only the accepted
+     * triples.
+     *
+     * @param sink The destination of the triples.
+     * @return The filtered destination.
+     */
+    public StreamRDF wrap(StreamRDF sink) {
+        return new StreamRDFWrapper(sink) {
+            @Override
+            public void triple(Triple triple) {
+                if (accept(triple)) {
+                    super.triple(triple);
+                }
+            }
+        };
+    }
+
+    /**
+     * Return a new RDF model with the accepted triples of a model.
+     *
+     * @param model The RDF model.
+     * @return The filtered RDF model.
+     */
+    public Model filter(Model model) {
+        Model filtered = ModelFactory.createDefaultModel();
+        Iterator<Triple> it = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+        while (it.hasNext()) {
+            Triple triple = it.next();
+            if (accept(triple)) {
+                filtered.getGraph().add(triple);
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * Return the cache key of the filtered RDF model of a Web resource.
+     *
+     * @param iri The IRI of the Web resource.
+     * @return The cache key (the IRI and the filter signature).
+     */
+    public String key(String iri) {
+        return iri + " { " + signature + " }";
+    }
+
+    /**
+     * Return the canonical form of the triple patterns.
+     *
+     * @return The signature of the filter.
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    private static String form(Node node) {
+        return Var.isVar(node) ? "?" : node.toString();
+    }
+
+    /**
+     * Collects the triple patterns of a sub-query, and detects the operators
+     * and expressions that need triples not described by the patterns.
+     */
+    private static class PatternCollector extends OpVisitorBase {
+
+        final List<Triple> patterns = new ArrayList<>();
+        boolean unfiltered = false;
+
+        @Override
+        public void visit(OpBGP opBGP) {
+            patterns.addAll(opBGP.getPattern().getList());
+        }
+
+        @Override
+        public void visit(OpTriple opTriple) {
+            patterns.add(opTriple.getTriple());
+        }
+
+        @Override
+        public void visit(OpPath opPath) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpPropFunc opPropFunc) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpProcedure opProc) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpQuadPattern quadPattern) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpQuadBlock quadBlock) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpQuad opQuad) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpGraph opGraph) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpDatasetNames dsNames) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpExt opExt) {
+            unfiltered = true;
+        }
+
+        @Override
+        public void visit(OpFilter opFilter) {
+            check(opFilter.getExprs());
+        }
+
+        @Override
+        public void visit(OpLeftJoin opLeftJoin) {
+            check(opLeftJoin.getExprs());
+        }
+
+        @Override
+        public void visit(OpExtend opExtend) {
+            check(opExtend.getVarExprList());
+        }
+
+        @Override
+        public void visit(OpAssign opAssign) {
+            check(opAssign.getVarExprList());
+        }
+
+        @Override
+        public void visit(OpGroup opGroup) {
+            check(opGroup.getGroupVars());
+            for (ExprAggregator aggregator : opGroup.getAggregators()) {
+                check(aggregator);
+            }
+        }
+
+        @Override
+        public void visit(OpOrder opOrder) {
+            for (SortCondition condition : opOrder.getConditions()) {
+                check(condition.getExpression());
+            }
+        }
+
+        private void check(VarExprList exprs) {
+            for (Var var : exprs.getVars()) {
+                check(exprs.getExpr(var));
+            }
+        }
+
+        private void check(ExprList exprs) {
+            if (exprs != null) {
+                for (Expr expr : exprs) {
+                    check(expr);
+                }
+            }
+        }
+
+        /**
+         * Detect the EXISTS and NOT EXISTS expressions, which evaluate graph
+         * patterns that are not collected.
+         */
+        private void check(Expr expr) {
+            if (expr == null) {
+                return;
+            }
+            ExprWalker.walk(new ExprVisitorBase() {
+                @Override
+                public void visit(ExprFunctionOp funcOp) {
+                    unfiltered = true;
+                }
+            }, expr);
+        }
+    }
+}